@@ -0,0 +1,140 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.siggi.credentialserver.benchmarks.Fixtures;
+import io.siggi.credentialserver.storage.StorageException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Actions on users the way requests to /users perform them, from the
+ * parsed request to the response object, with users kept in memory so the
+ * numbers show the cost of dispatch, projection and the update loop.
+ * <p>
+ * It lives in the server package to reach {@link CredentialServer#performUserAction}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    private static final String NAMESPACE = "benchmark";
+
+    private File root;
+    private CredentialServer server;
+    private JsonObject metaget;
+    private JsonObject metaset;
+    private JsonObject passwordLogin;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("credentialserver-benchmark").toFile();
+        File namespaceDirectory = new File(root, "namespaces/" + NAMESPACE);
+        namespaceDirectory.mkdirs();
+        try (OutputStream out = new FileOutputStream(new File(namespaceDirectory, "config.txt"))) {
+            Fixtures.memoryConfiguration().store(out, null);
+        }
+        server = new CredentialServer("127.0.0.1", 0, root);
+        // only started so that stop() closes the namespace
+        server.start();
+
+        metaget = new JsonObject();
+        JsonArray keys = new JsonArray();
+        keys.add("username");
+        keys.add("email");
+        metaget.add("keys", keys);
+        metaset = new JsonObject();
+        metaset.addProperty("lastlogin", "0");
+        passwordLogin = new JsonObject();
+        passwordLogin.addProperty("type", "password");
+        passwordLogin.addProperty("data", Fixtures.PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        Fixtures.delete(root);
+    }
+
+    /**
+     * A user of its own for each benchmark thread, so updates never
+     * conflict.
+     */
+    @State(Scope.Thread)
+    public static class ThreadUser {
+        String userId;
+
+        @Setup(Level.Trial)
+        public void create(DispatchBenchmark benchmark) throws StorageException {
+            userId = UUID.randomUUID().toString();
+            JsonObject variables = new JsonObject();
+            variables.addProperty("username", "benchmark-user");
+            variables.addProperty("email", "benchmark-user@example.com");
+            benchmark.server.performUserAction(NAMESPACE, userId, "metaset", variables);
+            JsonObject password = new JsonObject();
+            password.addProperty("type", "password");
+            password.addProperty("data", Fixtures.PASSWORD);
+            benchmark.server.performUserAction(NAMESPACE, userId, "finishregistration", password);
+        }
+    }
+
+    @Benchmark
+    public Object types(ThreadUser user) throws StorageException {
+        return server.performUserAction(NAMESPACE, user.userId, "types", null);
+    }
+
+    @Benchmark
+    public Object metaget(ThreadUser user) throws StorageException {
+        return server.performUserAction(NAMESPACE, user.userId, "metaget", metaget);
+    }
+
+    @Benchmark
+    public Object metaset(ThreadUser user) throws StorageException {
+        return server.performUserAction(NAMESPACE, user.userId, "metaset", metaset);
+    }
+
+    /**
+     * A whole password login, which is mostly the hash verification.
+     */
+    @Benchmark
+    public Object passwordLogin(ThreadUser user) throws StorageException {
+        return server.performUserAction(NAMESPACE, user.userId, "finishlogin", passwordLogin);
+    }
+}
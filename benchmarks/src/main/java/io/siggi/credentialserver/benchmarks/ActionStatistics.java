@@ -0,0 +1,84 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every latency of one action, kept exactly since a load test is short
+ * and the tail is what capacity planning is about.
+ */
+final class ActionStatistics {
+    private long[] latencies = new long[1024];
+    private int count;
+    private final AtomicLong errors = new AtomicLong();
+
+    synchronized void record(long nanos) {
+        if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+        latencies[count++] = nanos;
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    long getErrors() {
+        return errors.get();
+    }
+
+    synchronized long[] getSortedLatencies() {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Print a table of the statistics of each action.
+     *
+     * @param seconds how long the actions were measured for
+     */
+    static void report(Map<String, ActionStatistics> statistics, double seconds) {
+        System.out.println(String.format("%-30s %8s %8s %7s %9s %9s %9s %9s %9s",
+                "action", "count", "per sec", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (Map.Entry<String, ActionStatistics> entry : new TreeMap<>(statistics).entrySet()) {
+            ActionStatistics actionStatistics = entry.getValue();
+            long[] latencies = actionStatistics.getSortedLatencies();
+            long errors = actionStatistics.getErrors();
+            System.out.println(String.format("%-30s %8d %8.1f %6.2f%% %9.2f %9.2f %9.2f %9.2f %9.2f",
+                    entry.getKey(), latencies.length, latencies.length / Math.max(0.001, seconds),
+                    100.0 * errors / Math.max(1L, latencies.length + errors),
+                    toMillis(percentile(latencies, 0.5)), toMillis(percentile(latencies, 0.9)),
+                    toMillis(percentile(latencies, 0.99)), toMillis(percentile(latencies, 0.999)),
+                    toMillis(latencies.length == 0 ? 0L : latencies[latencies.length - 1])));
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0L;
+        int index = (int) Math.ceil(sorted.length * fraction) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,105 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import io.siggi.credentialserver.credential.totp.Base32;
+import io.siggi.credentialserver.util.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The small encoders that run on every request: hex for challenges and
+ * keys, Base32 for TOTP secrets and UUIDs for user and credential IDs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private byte[] data;
+    private String hex;
+    private String base32;
+    private UUID uuid;
+    private String uuidString;
+    private byte[] uuidBytes;
+
+    @Setup
+    public void setup() {
+        // the size of a WebAuthn challenge or a TOTP key
+        data = new byte[32];
+        new Random(1L).nextBytes(data);
+        hex = Util.hex(data);
+        base32 = Base32.encode(data);
+        uuid = UUID.randomUUID();
+        uuidString = Util.uuidToString(uuid);
+        uuidBytes = Util.uuidToBytes(uuid);
+    }
+
+    @Benchmark
+    public String hexEncode() {
+        return Util.hex(data);
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return Util.unhex(hex);
+    }
+
+    @Benchmark
+    public String base32Encode() {
+        return Base32.encode(data);
+    }
+
+    @Benchmark
+    public byte[] base32Decode() throws Base32.DecodingException {
+        return Base32.decode(base32);
+    }
+
+    @Benchmark
+    public String uuidToString() {
+        return Util.uuidToString(uuid);
+    }
+
+    @Benchmark
+    public UUID uuidFromString() {
+        return Util.uuidFromString(uuidString);
+    }
+
+    @Benchmark
+    public byte[] uuidToBytes() {
+        return Util.uuidToBytes(uuid);
+    }
+
+    @Benchmark
+    public UUID uuidFromBytes() {
+        return Util.uuidFromBytes(uuidBytes);
+    }
+}
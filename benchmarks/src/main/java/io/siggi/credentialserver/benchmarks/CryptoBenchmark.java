@@ -0,0 +1,80 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import io.siggi.credentialserver.credential.password.PasswordHashing;
+import io.siggi.credentialserver.credential.totp.Base32;
+import io.siggi.credentialserver.credential.totp.TOTP;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password hashing and TOTP codes, the CPU cost behind every login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+    private char[] password;
+    private String passwordHash;
+    private String totpSecret;
+    private byte[] totpKey;
+    private String totpCode;
+
+    @Setup
+    public void setup() throws Base32.DecodingException {
+        password = Fixtures.PASSWORD.toCharArray();
+        passwordHash = PasswordHashing.hash(password);
+        totpSecret = TOTP.randomKey();
+        totpKey = Base32.decode(totpSecret);
+        // a code from the previous step, so validation checks both steps
+        totpCode = TOTP.getOTP(System.currentTimeMillis() / 30000L - 1L, totpKey);
+    }
+
+    @Benchmark
+    public String passwordHash() {
+        return PasswordHashing.hash(password);
+    }
+
+    @Benchmark
+    public boolean passwordVerify() {
+        return PasswordHashing.verify(password, passwordHash);
+    }
+
+    @Benchmark
+    public String totpCode() {
+        return TOTP.getOTP(System.currentTimeMillis() / 30000L, totpKey);
+    }
+
+    @Benchmark
+    public boolean totpValidate() {
+        return TOTP.validate(totpSecret, totpCode);
+    }
+}
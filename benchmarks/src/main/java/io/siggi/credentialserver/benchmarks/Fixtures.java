@@ -0,0 +1,101 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.credential.password.CredentialPassword;
+import io.siggi.credentialserver.credential.password.PasswordHashing;
+import io.siggi.credentialserver.credential.totp.CredentialTOTP;
+import io.siggi.credentialserver.credential.totp.TOTP;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Data shared by the benchmarks.
+ */
+public final class Fixtures {
+    public static final String PASSWORD = "correct horse battery staple";
+    private static final String PASSWORD_HASH = PasswordHashing.hash(PASSWORD.toCharArray());
+
+    private Fixtures() {
+    }
+
+    /**
+     * Create a user shaped like a typical account: a password, a TOTP key, a
+     * handful of variables and an open login session.
+     */
+    public static User createUser() {
+        User user = new User();
+        user.setVariable("username", "benchmark-user");
+        user.setVariable("email", "benchmark-user@example.com");
+        user.setVariable("displayname", "Benchmark User");
+        user.setVariable("created", Long.toString(System.currentTimeMillis()));
+        user.addCredential(new CredentialPassword(UUID.randomUUID(), "main", 12L, System.currentTimeMillis(), 0L,
+                PASSWORD_HASH));
+        user.addCredential(new CredentialTOTP(UUID.randomUUID(), "phone", 3L, System.currentTimeMillis(), 0L,
+                TOTP.randomKey()));
+        user.getCredentialSession("webauthn", false, 300000L, 0L).setData(UUID.randomUUID().toString().replace("-", ""));
+        return user;
+    }
+
+    /**
+     * Create a namespace directory in a new temporary directory.
+     *
+     * @param parent where to create it, or null for the default temporary
+     *               directory
+     * @return the namespace directory
+     */
+    public static File createNamespace(File parent, Properties configuration) throws IOException {
+        File directory = (parent == null
+                ? Files.createTempDirectory("credentialserver-benchmark")
+                : Files.createTempDirectory(parent.toPath(), "credentialserver-benchmark")).toFile();
+        try (OutputStream out = new FileOutputStream(new File(directory, "config.txt"))) {
+            configuration.store(out, null);
+        }
+        return directory;
+    }
+
+    /**
+     * Get the configuration for a namespace kept in memory only, with
+     * WebAuthn enabled for https://localhost.
+     */
+    public static Properties memoryConfiguration() {
+        Properties configuration = new Properties();
+        configuration.setProperty("storage", "memory");
+        configuration.setProperty("memory-durability", "none");
+        configuration.setProperty("webauthn-id", "localhost");
+        configuration.setProperty("webauthn-name", "Benchmark");
+        configuration.setProperty("webauthn-origin", "https://localhost");
+        return configuration;
+    }
+
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
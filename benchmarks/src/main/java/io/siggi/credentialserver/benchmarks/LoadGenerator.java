@@ -0,0 +1,373 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.siggi.credentialserver.CredentialServer;
+import io.siggi.credentialserver.credential.totp.Base32;
+import io.siggi.credentialserver.credential.totp.TOTP;
+import io.siggi.credentialserver.credential.webauthn.SoftwareAuthenticator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a server over HTTP with a mix of complete login flows, for
+ * capacity planning.
+ * <p>
+ * It starts a server on an ephemeral port with a namespace in a temporary
+ * directory, then starts flows at a fixed rate whether or not earlier ones
+ * have finished, the way independent users arrive. A flow's latency is
+ * measured from when it was due to start, so time spent waiting for a free
+ * worker counts against the server rather than disappearing from the
+ * numbers.
+ * <p>
+ * The flows are:
+ * <ul>
+ * <li>password: register a password for a new user and log in with it</li>
+ * <li>totp: register a TOTP key for a new user, or log in as a user that
+ * registered one in an earlier 30 second step, since a code is only
+ * accepted once</li>
+ * <li>webauthn: register a credential for a new user with a software
+ * authenticator and log in with it</li>
+ * <li>metaget and metaset: read or write variables of a recent user</li>
+ * </ul>
+ * <p>
+ * Usage: {@code java -cp benchmarks/target/benchmarks.jar io.siggi.credentialserver.benchmarks.LoadGenerator
+ * [option=value...]} with the options
+ * <ul>
+ * <li>rate: flows started per second, default 50</li>
+ * <li>seconds: how long to measure, default 60</li>
+ * <li>warmup: seconds to run before measuring, default 10</li>
+ * <li>threads: how many flows may run at once, default 64</li>
+ * <li>arrivals: poisson for random gaps between flows, or uniform for
+ * even gaps, default poisson</li>
+ * <li>mix: the weight of each flow, default
+ * password:3,totp:2,webauthn:1,metaget:6,metaset:3</li>
+ * </ul>
+ * Any other option is added to the namespace config.txt, so
+ * {@code storage=memory} or {@code durability=always} choose the storage
+ * under test. Storage defaults to files in the temporary directory.
+ */
+public final class LoadGenerator {
+    private static final String NAMESPACE = "load";
+    private static final String ORIGIN = "https://localhost";
+    private static final int RECENT_USERS = 4096;
+
+    private final ServerClient client;
+    private final SoftwareAuthenticator authenticator = new SoftwareAuthenticator(ORIGIN);
+    private final Queue<TotpUser> totpUsers = new ConcurrentLinkedQueue<>();
+    private final AtomicReferenceArray<String> recentUsers = new AtomicReferenceArray<>(RECENT_USERS);
+    private final AtomicLong recentUserCount = new AtomicLong();
+    private volatile Map<String, ActionStatistics> statistics = new ConcurrentHashMap<>();
+
+    public LoadGenerator(String baseUrl) {
+        this.client = new ServerClient(baseUrl);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties options = new Properties();
+        options.setProperty("rate", "50");
+        options.setProperty("seconds", "60");
+        options.setProperty("warmup", "10");
+        options.setProperty("threads", "64");
+        options.setProperty("arrivals", "poisson");
+        options.setProperty("mix", "password:3,totp:2,webauthn:1,metaget:6,metaset:3");
+        Properties configuration = new Properties();
+        configuration.setProperty("storage", "file");
+        configuration.setProperty("webauthn-id", "localhost");
+        configuration.setProperty("webauthn-name", "Load test");
+        configuration.setProperty("webauthn-origin", ORIGIN);
+        for (String arg : args) {
+            int equalsPosition = arg.indexOf('=');
+            if (equalsPosition == -1) {
+                System.err.println("Usage: LoadGenerator [option=value...]");
+                System.exit(1);
+                return;
+            }
+            String key = arg.substring(0, equalsPosition);
+            String value = arg.substring(equalsPosition + 1);
+            if (options.containsKey(key)) {
+                options.setProperty(key, value);
+            } else {
+                configuration.setProperty(key, value);
+            }
+        }
+        double rate = Double.parseDouble(options.getProperty("rate"));
+        int seconds = Integer.parseInt(options.getProperty("seconds"));
+        int warmup = Integer.parseInt(options.getProperty("warmup"));
+        int threads = Integer.parseInt(options.getProperty("threads"));
+        boolean poisson = options.getProperty("arrivals").equals("poisson");
+        Map<String, Integer> mix = parseMix(options.getProperty("mix"));
+
+        File root = Files.createTempDirectory("credentialserver-load").toFile();
+        CredentialServer server = null;
+        try {
+            File namespaceDirectory = new File(root, "namespaces/" + NAMESPACE);
+            namespaceDirectory.mkdirs();
+            try (OutputStream out = new FileOutputStream(new File(namespaceDirectory, "config.txt"))) {
+                configuration.store(out, null);
+            }
+            server = new CredentialServer("127.0.0.1", 0, root);
+            server.start();
+            LoadGenerator generator = new LoadGenerator("http://127.0.0.1:" + server.getPort());
+            System.out.println("Running " + mix + " at " + rate + " flows per second for " + warmup
+                    + " + " + seconds + " seconds against " + configuration.getProperty("storage") + " storage");
+            generator.run(mix, rate, poisson, threads, warmup * 1000L, seconds * 1000L);
+            generator.report(seconds);
+            System.out.println("server: " + generator.client.get("/metrics/" + NAMESPACE));
+        } finally {
+            if (server != null)
+                server.stop();
+            Fixtures.delete(root);
+        }
+        System.exit(0);
+    }
+
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new TreeMap<>();
+        List<String> flows = Arrays.asList("password", "totp", "webauthn", "metaget", "metaset");
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":", 2);
+            String flow = parts[0].trim();
+            if (!flows.contains(flow))
+                throw new IllegalArgumentException("Unknown flow " + flow + ", expected one of " + flows);
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            if (weight > 0)
+                weights.put(flow, weight);
+        }
+        if (weights.isEmpty())
+            throw new IllegalArgumentException("The mix has no flows");
+        return weights;
+    }
+
+    /**
+     * Start flows at the given rate until the warmup and the measurement
+     * are over, then wait for the flows still running.
+     */
+    public void run(Map<String, Integer> mix, double rate, boolean poisson, int threads,
+                    long warmupMillis, long durationMillis) throws InterruptedException {
+        List<String> flows = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                flows.add(entry.getKey());
+            }
+        }
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double meanGap = TimeUnit.SECONDS.toNanos(1L) / rate;
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        boolean measuring = false;
+        int maxBacklog = 0;
+        long next = start;
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0L)
+                LockSupport.parkNanos(wait);
+            if (!measuring && next >= measureStart) {
+                measuring = true;
+                statistics = new ConcurrentHashMap<>();
+                maxBacklog = 0;
+            }
+            String flow = flows.get(random.nextInt(flows.size()));
+            long due = next;
+            workers.execute(() -> runFlow(flow, due));
+            maxBacklog = Math.max(maxBacklog, workers.getQueue().size());
+            next += poisson ? (long) (-Math.log(1.0 - random.nextDouble()) * meanGap) : (long) meanGap;
+        }
+        workers.shutdown();
+        workers.awaitTermination(1L, TimeUnit.MINUTES);
+        System.out.println("Most flows waiting for a worker: " + maxBacklog);
+    }
+
+    private void runFlow(String flow, long due) {
+        ActionStatistics flowStatistics = getStatistics("flow " + flow);
+        try {
+            switch (flow) {
+                case "password":
+                    passwordFlow();
+                    break;
+                case "totp":
+                    totpFlow();
+                    break;
+                case "webauthn":
+                    webAuthnFlow();
+                    break;
+                case "metaget":
+                    metagetFlow();
+                    break;
+                case "metaset":
+                    metasetFlow();
+                    break;
+            }
+            flowStatistics.record(System.nanoTime() - due);
+        } catch (Exception e) {
+            flowStatistics.recordError();
+        }
+    }
+
+    private void passwordFlow() throws IOException {
+        String userId = UUID.randomUUID().toString();
+        JsonObject password = new JsonObject();
+        password.addProperty("type", "password");
+        password.addProperty("data", "password-" + userId);
+        perform("password", userId, "finishregistration", password);
+        addRecentUser(userId);
+        perform("password", userId, "finishlogin", password);
+    }
+
+    private void totpFlow() throws IOException, Base32.DecodingException {
+        long step = System.currentTimeMillis() / 30000L;
+        TotpUser user = totpUsers.poll();
+        if (user != null && user.lastStep >= step) {
+            // users are queued in the order they last logged in
+            totpUsers.add(user);
+            user = null;
+        }
+        JsonObject totp = new JsonObject();
+        totp.addProperty("type", "totp");
+        if (user == null) {
+            String userId = UUID.randomUUID().toString();
+            String secret = perform("totp", userId, "startregistration", totp).get("data").getAsString();
+            byte[] key = Base32.decode(secret);
+            totp.addProperty("data", TOTP.getOTP(step, key));
+            perform("totp", userId, "finishregistration", totp);
+            addRecentUser(userId);
+            totpUsers.add(new TotpUser(userId, key, step));
+        } else {
+            totp.addProperty("data", TOTP.getOTP(step, user.key));
+            perform("totp", user.userId, "finishlogin", totp);
+            totpUsers.add(new TotpUser(user.userId, user.key, step));
+        }
+    }
+
+    private void webAuthnFlow() throws IOException, GeneralSecurityException {
+        String userId = UUID.randomUUID().toString();
+        JsonObject webAuthn = new JsonObject();
+        webAuthn.addProperty("type", "webauthn");
+        String creationOptions = perform("webauthn", userId, "startregistration", webAuthn).get("data").getAsString();
+        JsonObject registration = new JsonObject();
+        registration.addProperty("type", "webauthn");
+        registration.addProperty("data", authenticator.register(creationOptions));
+        perform("webauthn", userId, "finishregistration", registration);
+        addRecentUser(userId);
+        String requestOptions = perform("webauthn", userId, "startlogin", webAuthn).get("data").getAsString();
+        JsonObject login = new JsonObject();
+        login.addProperty("type", "webauthn");
+        login.addProperty("data", authenticator.login(requestOptions));
+        perform("webauthn", userId, "finishlogin", login);
+    }
+
+    private void metagetFlow() throws IOException {
+        JsonObject metaget = new JsonObject();
+        JsonArray keys = new JsonArray();
+        keys.add("lastseen");
+        metaget.add("keys", keys);
+        perform("meta", getRecentUser(), "metaget", metaget);
+    }
+
+    private void metasetFlow() throws IOException {
+        JsonObject metaset = new JsonObject();
+        metaset.addProperty("lastseen", Long.toString(System.currentTimeMillis()));
+        perform("meta", getRecentUser(), "metaset", metaset);
+    }
+
+    private void addRecentUser(String userId) {
+        recentUsers.set((int) (recentUserCount.getAndIncrement() % RECENT_USERS), userId);
+    }
+
+    /**
+     * Get a user registered recently, or a new one if none is yet.
+     */
+    private String getRecentUser() {
+        long count = Math.min(recentUserCount.get(), RECENT_USERS);
+        if (count == 0L)
+            return UUID.randomUUID().toString();
+        String userId = recentUsers.get(ThreadLocalRandom.current().nextInt((int) count));
+        return userId == null ? UUID.randomUUID().toString() : userId;
+    }
+
+    /**
+     * Perform an action on a user, recording its latency under the flow and
+     * action.
+     *
+     * @return the response
+     * @throws IOException if the request failed or the response reports
+     *                     failure
+     */
+    private JsonObject perform(String flow, String userId, String action, JsonObject data) throws IOException {
+        ActionStatistics actionStatistics = getStatistics(flow + " " + action);
+        long start = System.nanoTime();
+        try {
+            JsonObject response = client.post("/users/" + NAMESPACE + "/" + userId + "/" + action, data);
+            JsonElement success = response.get("success");
+            if (success != null && !success.getAsBoolean())
+                throw new IOException(action + " failed: " + response);
+            actionStatistics.record(System.nanoTime() - start);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            actionStatistics.recordError();
+            throw e;
+        }
+    }
+
+    private ActionStatistics getStatistics(String name) {
+        return statistics.computeIfAbsent(name, n -> new ActionStatistics());
+    }
+
+    public void report(int seconds) {
+        ActionStatistics.report(statistics, seconds);
+    }
+
+    private static final class TotpUser {
+        private final String userId;
+        private final byte[] key;
+        private final long lastStep;
+
+        private TotpUser(String userId, byte[] key, long lastStep) {
+            this.userId = userId;
+            this.key = key;
+            this.lastStep = lastStep;
+        }
+    }
+}
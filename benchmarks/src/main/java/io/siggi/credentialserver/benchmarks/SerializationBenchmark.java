@@ -0,0 +1,80 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import com.google.gson.JsonElement;
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.serialization.Serialization;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting a user to and from the JSON the storage backends keep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    private User user;
+    private String json;
+    private JsonElement tree;
+
+    @Setup
+    public void setup() {
+        user = Fixtures.createUser();
+        tree = Serialization.serializeToTree(user);
+        json = Serialization.serialize(tree, true);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return Serialization.serialize(Serialization.serializeToTree(user), true);
+    }
+
+    @Benchmark
+    public JsonElement serializeToTree() {
+        return Serialization.serializeToTree(user);
+    }
+
+    @Benchmark
+    public User deserialize() {
+        return Serialization.deserialize(json, User.class);
+    }
+
+    @Benchmark
+    public User deserializeTree() {
+        return Serialization.deserialize(tree, User.class);
+    }
+
+    @Benchmark
+    public User roundTrip() {
+        return Serialization.deserialize(Serialization.serialize(Serialization.serializeToTree(user), true), User.class);
+    }
+}
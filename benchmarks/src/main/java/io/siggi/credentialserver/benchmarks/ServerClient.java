@@ -0,0 +1,86 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.siggi.credentialserver.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends requests to a server over HTTP the way its clients do.
+ */
+final class ServerClient {
+    private final String baseUrl;
+
+    ServerClient(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    JsonObject post(String path, JsonObject data) throws IOException {
+        return requireObject(send(path, data));
+    }
+
+    JsonObject get(String path) throws IOException {
+        return requireObject(send(path, null));
+    }
+
+    /**
+     * Send a request, as a GET without data or a POST with it.
+     *
+     * @return the response, which need not be an object
+     */
+    JsonElement send(String path, JsonObject data) throws IOException {
+        if (data == null)
+            return readResponse((HttpURLConnection) new URL(baseUrl + path).openConnection());
+        byte[] body = data.toString().getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return readResponse(connection);
+    }
+
+    private static JsonElement readResponse(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        // read to the end so the connection can be reused
+        String response = in == null ? "" : new String(Util.readFully(in), StandardCharsets.UTF_8);
+        if (in != null)
+            in.close();
+        if (status != 200)
+            throw new IOException("HTTP " + status + ": " + response);
+        return JsonParser.parseString(response);
+    }
+
+    private static JsonObject requireObject(JsonElement element) throws IOException {
+        if (!element.isJsonObject())
+            throw new IOException("Unexpected response: " + element);
+        return element.getAsJsonObject();
+    }
+}
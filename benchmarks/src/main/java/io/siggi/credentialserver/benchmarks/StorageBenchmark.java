@@ -0,0 +1,173 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.credential.password.CredentialPassword;
+import io.siggi.credentialserver.storage.Storage;
+import io.siggi.credentialserver.storage.StorageException;
+import io.siggi.credentialserver.storage.VersionConflictException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput and latency of the storage backend configured for
+ * a namespace, for comparing backends or MySQL schemas on the same machine.
+ * <p>
+ * The users it creates look like those of a password login, with a few
+ * variables, a password credential and a login session, and are written to
+ * the namespace for real, so point it at a namespace set up for the purpose.
+ * <p>
+ * Usage: {@code java -cp benchmarks.jar io.siggi.credentialserver.benchmarks.StorageBenchmark
+ * <namespace directory> [users] [threads] [seconds] [write percentage]}
+ */
+public final class StorageBenchmark {
+    private static final String HASH = "argon2id$v=19$m=65536,t=3,p=1$c29tZXNhbHRzb21lc2FsdA$"
+            + "cGxhY2Vob2xkZXJoYXNocGxhY2Vob2xkZXJoYXNocGxhY2Vob2xkZXI";
+
+    private final Storage storage;
+    private final List<UUID> users = new ArrayList<>();
+    private final Map<String, ActionStatistics> statistics = new LinkedHashMap<>();
+    private final ActionStatistics reads = new ActionStatistics();
+    private final ActionStatistics writes = new ActionStatistics();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public StorageBenchmark(Storage storage) {
+        this.storage = storage;
+        statistics.put("read", reads);
+        statistics.put("write", writes);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: StorageBenchmark <namespace directory> [users] [threads] [seconds] [write percentage]");
+            System.exit(1);
+            return;
+        }
+        File directory = new File(args[0]);
+        int userCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int writePercentage = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+        Properties configuration = new Properties();
+        try (FileInputStream in = new FileInputStream(new File(directory, "config.txt"))) {
+            configuration.load(in);
+        } catch (IOException e) {
+            System.err.println("Unable to read config.txt: " + e);
+            System.exit(1);
+            return;
+        }
+        Storage storage = Storage.create(configuration, directory);
+        try {
+            StorageBenchmark benchmark = new StorageBenchmark(storage);
+            benchmark.populate(userCount, threads);
+            benchmark.run(threads, seconds * 1000L, writePercentage);
+            benchmark.report(seconds);
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * Create the users the benchmark works on.
+     */
+    public void populate(int userCount, int threads) throws StorageException {
+        long start = System.nanoTime();
+        Map<UUID, User> page = new LinkedHashMap<>();
+        for (int i = 0; i < userCount; i++) {
+            UUID uuid = UUID.randomUUID();
+            users.add(uuid);
+            page.put(uuid, createUser());
+            if (page.size() == threads * 8 || i == userCount - 1) {
+                Storage.await(storage.saveUsersAsync(page));
+                page = new LinkedHashMap<>();
+            }
+        }
+        System.out.println("Created " + userCount + " users in " + (System.nanoTime() - start) / 1000000L + " ms");
+    }
+
+    private static User createUser() {
+        User user = new User();
+        user.setVersion(User.ANY_VERSION);
+        user.setVariable("username", "user" + ThreadLocalRandom.current().nextInt(100000000));
+        user.setVariable("email", "user@example.com");
+        user.setVariable("created", Long.toString(System.currentTimeMillis()));
+        user.addCredential(new CredentialPassword(UUID.randomUUID(), null, 0L, 0L, 0L, HASH));
+        user.getCredentialSession("password", false, 300000L, 0L);
+        return user;
+    }
+
+    /**
+     * Read users at random from several threads, changing and saving a
+     * percentage of them the way a login does.
+     */
+    public void run(int threads, long duration, int writePercentage) throws InterruptedException {
+        long end = System.currentTimeMillis() + duration;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < end) {
+                    UUID uuid = users.get(random.nextInt(users.size()));
+                    boolean write = random.nextInt(100) < writePercentage;
+                    try {
+                        long start = System.nanoTime();
+                        User user = storage.readUser(uuid);
+                        long read = System.nanoTime();
+                        reads.record(read - start);
+                        if (!write)
+                            continue;
+                        user.setVariable("lastlogin", Long.toString(System.currentTimeMillis()));
+                        user.getCredentialSession("password", false, 300000L, 150000L);
+                        storage.saveUser(uuid, user);
+                        writes.record(System.nanoTime() - read);
+                    } catch (VersionConflictException e) {
+                        conflicts.incrementAndGet();
+                    } catch (StorageException | RuntimeException e) {
+                        (write ? writes : reads).recordError();
+                        if (errors.incrementAndGet() == 1L)
+                            e.printStackTrace();
+                    }
+                }
+            }, "StorageBenchmark-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    public void report(int seconds) {
+        ActionStatistics.report(statistics, seconds);
+        System.out.println("conflicts: " + conflicts.get());
+        Map<String, Object> metrics = storage.getMetrics();
+        if (!metrics.isEmpty())
+            System.out.println("storage: " + metrics);
+    }
+}
@@ -0,0 +1,119 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.storage.Storage;
+import io.siggi.credentialserver.storage.StorageException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and saving users with file storage.
+ * <p>
+ * The users are kept in /dev/shm when it exists so the numbers show the
+ * cost of the storage code rather than the disk; pass
+ * {@code -p directory=...} to measure a real filesystem, and
+ * {@code -p durability=always} to include the flushes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageFileBenchmark {
+    @Param({"none", "batch"})
+    public String durability;
+    @Param({"0", "1000"})
+    public int cacheSize;
+    @Param({""})
+    public String directory;
+
+    private File namespaceDirectory;
+    private Storage storage;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        File parent;
+        if (!directory.isEmpty()) {
+            parent = new File(directory);
+        } else if (new File("/dev/shm").isDirectory()) {
+            parent = new File("/dev/shm");
+        } else {
+            parent = null;
+        }
+        Properties configuration = new Properties();
+        configuration.setProperty("storage", "file");
+        configuration.setProperty("durability", durability);
+        configuration.setProperty("cache-size", Integer.toString(cacheSize));
+        namespaceDirectory = Fixtures.createNamespace(parent, configuration);
+        storage = Storage.create(configuration, namespaceDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        storage.close();
+        Fixtures.delete(namespaceDirectory);
+    }
+
+    /**
+     * A user of its own for each benchmark thread, so saves never conflict.
+     */
+    @State(Scope.Thread)
+    public static class ThreadUser {
+        UUID uuid;
+
+        @Setup(Level.Trial)
+        public void create(StorageFileBenchmark benchmark) throws StorageException {
+            uuid = UUID.randomUUID();
+            User user = Fixtures.createUser();
+            user.setVersion(User.ANY_VERSION);
+            benchmark.storage.saveUser(uuid, user);
+        }
+    }
+
+    @Benchmark
+    public User read(ThreadUser threadUser) throws StorageException {
+        return storage.readUser(threadUser.uuid);
+    }
+
+    @Benchmark
+    public User readAndSave(ThreadUser threadUser) throws StorageException {
+        User user = storage.readUser(threadUser.uuid);
+        user.setVariable("lastlogin", Long.toString(System.nanoTime()));
+        storage.saveUser(threadUser.uuid, user);
+        return user;
+    }
+}
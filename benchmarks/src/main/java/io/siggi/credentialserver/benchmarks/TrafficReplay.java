@@ -0,0 +1,552 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.siggi.credentialserver.CredentialServer;
+import io.siggi.credentialserver.credential.totp.Base32;
+import io.siggi.credentialserver.credential.totp.TOTP;
+import io.siggi.credentialserver.credential.webauthn.SoftwareAuthenticator;
+import io.siggi.credentialserver.log.TrafficCapture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays traffic recorded with {@link TrafficCapture} against a server
+ * with synthetic users.
+ * <p>
+ * A capture holds no secrets, so every credential is made up during the
+ * replay: passwords are derived from the user, TOTP codes are computed
+ * from the key the server hands out at registration and WebAuthn
+ * credentials live in a software authenticator. Requests that failed when
+ * captured are sent with wrong credentials so they fail again. Users that
+ * log in without registering during the capture were registered before it
+ * started, so their credentials are registered before the replay starts.
+ * <p>
+ * Each user's requests are sent one at a time in the order they arrived,
+ * and requests are sent when they are due whether or not earlier ones
+ * have finished. How late requests start shows whether the replay kept
+ * up. Captured requests that turn out differently in the replay are
+ * counted, since a replay that fails where the original succeeded
+ * measures something else.
+ * <p>
+ * Usage: {@code java -cp benchmarks/target/benchmarks.jar io.siggi.credentialserver.benchmarks.TrafficReplay
+ * capture [option=value...]} with the options
+ * <ul>
+ * <li>speed: how many times faster than captured to replay, or max to
+ * send every request as soon as the one before it for the same user is
+ * done, default 1</li>
+ * <li>threads: how many users may have a request in flight at once,
+ * default 64</li>
+ * <li>url: the server to replay against, which must have the captured
+ * namespaces and accept WebAuthn from {@code https://localhost}. Without
+ * it, a server is started with the namespaces in a temporary
+ * directory.</li>
+ * </ul>
+ * Any other option is added to the config.txt of each namespace of a
+ * server started by the replay, as with {@link LoadGenerator}.
+ */
+public final class TrafficReplay {
+    private static final String ORIGIN = "https://localhost";
+
+    private final ServerClient client;
+    private final SoftwareAuthenticator authenticator = new SoftwareAuthenticator(ORIGIN);
+    // users of earlier replays against the same server are left alone
+    private final long run = ThreadLocalRandom.current().nextLong();
+    private final Map<String, ReplayUser> users = new HashMap<>();
+    private final Map<String, ActionStatistics> statistics = new ConcurrentHashMap<>();
+    private final ActionStatistics lag = new ActionStatistics();
+    private final Map<String, AtomicLong> mismatches = new ConcurrentHashMap<>();
+
+    public TrafficReplay(String baseUrl) {
+        this.client = new ServerClient(baseUrl);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: TrafficReplay capture [option=value...]");
+            System.exit(1);
+            return;
+        }
+        Properties options = new Properties();
+        options.setProperty("speed", "1");
+        options.setProperty("threads", "64");
+        Properties configuration = new Properties();
+        configuration.setProperty("storage", "file");
+        configuration.setProperty("webauthn-id", "localhost");
+        configuration.setProperty("webauthn-name", "Traffic replay");
+        configuration.setProperty("webauthn-origin", ORIGIN);
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int equalsPosition = arg.indexOf('=');
+            if (equalsPosition == -1) {
+                System.err.println("Usage: TrafficReplay capture [option=value...]");
+                System.exit(1);
+                return;
+            }
+            String key = arg.substring(0, equalsPosition);
+            String value = arg.substring(equalsPosition + 1);
+            if (options.containsKey(key) || key.equals("url")) {
+                options.setProperty(key, value);
+            } else {
+                configuration.setProperty(key, value);
+            }
+        }
+        String speedOption = options.getProperty("speed");
+        double speed = speedOption.equals("max") ? Double.POSITIVE_INFINITY : Double.parseDouble(speedOption);
+        int threads = Integer.parseInt(options.getProperty("threads"));
+
+        List<TrafficCapture.Entry> entries;
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(new File(args[0]))) {
+            entries = reader.readAll();
+        }
+        Set<String> namespaces = new HashSet<>();
+        for (TrafficCapture.Entry entry : entries) {
+            if (entry.namespace != null)
+                namespaces.add(entry.namespace);
+        }
+
+        String url = options.getProperty("url");
+        File root = null;
+        CredentialServer server = null;
+        try {
+            if (url == null) {
+                root = Files.createTempDirectory("credentialserver-replay").toFile();
+                for (String namespace : namespaces) {
+                    if (namespace.isEmpty() || namespace.contains("/") || namespace.startsWith("."))
+                        throw new IOException("Unsafe namespace name " + namespace);
+                    File namespaceDirectory = new File(root, "namespaces/" + namespace);
+                    namespaceDirectory.mkdirs();
+                    try (OutputStream out = new FileOutputStream(new File(namespaceDirectory, "config.txt"))) {
+                        configuration.store(out, null);
+                    }
+                }
+                server = new CredentialServer("127.0.0.1", 0, root);
+                server.start();
+                url = "http://127.0.0.1:" + server.getPort();
+            }
+            TrafficReplay replay = new TrafficReplay(url);
+            System.out.println("Preparing " + entries.size() + " requests in " + namespaces);
+            replay.prepare(entries, threads);
+            System.out.println("Replaying at " + (Double.isInfinite(speed) ? "maximum" : speed + "x") + " speed");
+            long start = System.nanoTime();
+            replay.run(entries, speed, threads);
+            replay.report((System.nanoTime() - start) / 1.0e9);
+        } finally {
+            if (server != null)
+                server.stop();
+            if (root != null)
+                Fixtures.delete(root);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Register the credentials users had before the capture started.
+     */
+    public void prepare(List<TrafficCapture.Entry> entries, int threads) throws InterruptedException {
+        Map<ReplayUser, Set<String>> missing = new HashMap<>();
+        Map<ReplayUser, Set<String>> registered = new HashMap<>();
+        for (TrafficCapture.Entry entry : entries) {
+            if (entry.namespace == null || entry.action == null)
+                continue;
+            ReplayUser user = getUser(entry);
+            Set<String> types = registered.computeIfAbsent(user, u -> new HashSet<>());
+            switch (entry.action) {
+                case "finishregistration":
+                    if (entry.type != null)
+                        types.add(entry.type);
+                    break;
+                case "startlogin":
+                case "finishlogin":
+                    if (entry.type != null && !types.contains(entry.type)) {
+                        missing.computeIfAbsent(user, u -> new HashSet<>()).add(entry.type);
+                        types.add(entry.type);
+                    }
+                    break;
+                case "rename":
+                case "delete":
+                    if (types.isEmpty()) {
+                        missing.computeIfAbsent(user, u -> new HashSet<>()).add("password");
+                        types.add("password");
+                    }
+                    break;
+            }
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        AtomicLong failures = new AtomicLong();
+        for (Map.Entry<ReplayUser, Set<String>> entry : missing.entrySet()) {
+            ReplayUser user = entry.getKey();
+            workers.execute(() -> {
+                try {
+                    for (String type : entry.getValue()) {
+                        register(user, type);
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1L, TimeUnit.HOURS);
+        System.out.println("Registered existing credentials of " + missing.size() + " users, "
+                + failures.get() + " failed");
+    }
+
+    /**
+     * Send each request when it is due, then wait for the requests still
+     * in flight.
+     *
+     * @param speed how many times faster than captured to replay, which
+     *              may be infinite
+     */
+    public void run(List<TrafficCapture.Entry> entries, double speed, int threads) throws InterruptedException {
+        ExecutorService[] lanes = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+        }
+        long start = System.nanoTime();
+        for (TrafficCapture.Entry entry : entries) {
+            if (entry.namespace == null || entry.action == null)
+                continue;
+            ReplayUser user = getUser(entry);
+            long due;
+            if (Double.isInfinite(speed)) {
+                due = System.nanoTime();
+            } else {
+                due = start + (long) (TimeUnit.MICROSECONDS.toNanos(entry.offsetMicros) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0L)
+                    LockSupport.parkNanos(wait);
+            }
+            lanes[Math.floorMod(Long.hashCode(entry.user), threads)].execute(() -> replay(entry, user, due));
+        }
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.awaitTermination(1L, TimeUnit.HOURS);
+        }
+    }
+
+    private ReplayUser getUser(TrafficCapture.Entry entry) {
+        return users.computeIfAbsent(entry.namespace + "/" + Long.toHexString(entry.user),
+                k -> new ReplayUser(entry.namespace, new UUID(run, entry.user).toString()));
+    }
+
+    private void replay(TrafficCapture.Entry entry, ReplayUser user, long due) {
+        long started = System.nanoTime();
+        lag.record(started - due);
+        ActionStatistics actionStatistics = statistics.computeIfAbsent(
+                entry.type == null ? entry.action : entry.type + " " + entry.action, n -> new ActionStatistics());
+        String result;
+        try {
+            result = send(entry, user, actionStatistics);
+        } catch (Exception e) {
+            actionStatistics.recordError();
+            result = "failed";
+        }
+        if (entry.result != null && !entry.result.equals(result)) {
+            mismatches.computeIfAbsent(entry.action + ": " + entry.result + " became " + result,
+                    k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    /**
+     * Synthesize a request like the captured one and send it.
+     *
+     * @return how it turned out, described the way the capture does
+     */
+    private String send(TrafficCapture.Entry entry, ReplayUser user, ActionStatistics actionStatistics)
+            throws IOException, GeneralSecurityException, Base32.DecodingException {
+        boolean fail = "fail".equals(entry.result);
+        String type = entry.type;
+        JsonObject data = null;
+        switch (entry.action) {
+            case "types":
+            case "credentials":
+                break;
+            case "metaget":
+                if (entry.bytesIn > 0L) {
+                    data = new JsonObject();
+                    JsonArray keys = new JsonArray();
+                    keys.add("lastseen");
+                    data.add("keys", keys);
+                }
+                break;
+            case "metaset":
+                data = new JsonObject();
+                data.addProperty("lastseen", Long.toString(System.currentTimeMillis()));
+                int padding = (int) Math.min(65536L, entry.bytesIn) - data.toString().length() - 14;
+                if (padding > 0)
+                    data.addProperty("padding", pad(padding));
+                break;
+            case "startregistration":
+            case "startlogin":
+                data = typed(type);
+                break;
+            case "finishregistration":
+                data = typed(type);
+                data.addProperty("data", getRegistration(user, type, fail));
+                break;
+            case "finishlogin":
+                data = typed(type);
+                data.addProperty("data", getLogin(user, type, fail));
+                break;
+            case "rename":
+                data = new JsonObject();
+                data.addProperty("credential", getCredential(user, fail));
+                data.addProperty("name", "replay");
+                break;
+            case "delete":
+                data = new JsonObject();
+                data.addProperty("credential", getCredential(user, fail));
+                break;
+            default:
+                data = entry.bytesIn > 0L ? new JsonObject() : null;
+                break;
+        }
+
+        long start = System.nanoTime();
+        JsonElement response = client.send(user.path(entry.action), data);
+        actionStatistics.record(System.nanoTime() - start);
+
+        String result = describe(response);
+        if (result.equals("ok"))
+            afterSuccess(entry.action, type, user, response.getAsJsonObject(), data);
+        return result;
+    }
+
+    /**
+     * Keep track of what the server handed out or changed.
+     */
+    private static void afterSuccess(String action, String type, ReplayUser user, JsonObject response, JsonObject data) {
+        switch (action) {
+            case "startregistration":
+                if ("totp".equals(type)) {
+                    user.totpSecret = response.get("data").getAsString();
+                } else if ("webauthn".equals(type)) {
+                    user.creationOptions = response.get("data").getAsString();
+                }
+                break;
+            case "startlogin":
+                if ("webauthn".equals(type))
+                    user.requestOptions = response.get("data").getAsString();
+                break;
+            case "finishregistration": {
+                JsonElement credential = response.get("credential");
+                if (credential != null && !credential.isJsonNull()) {
+                    if ("password".equals(type))
+                        user.credentials.clear();
+                    user.credentials.add(credential.getAsString());
+                }
+            }
+            break;
+            case "delete":
+                user.credentials.remove(data.get("credential").getAsString());
+                break;
+        }
+    }
+
+    /**
+     * Register a credential outside of the timed replay.
+     */
+    private void register(ReplayUser user, String type) throws IOException, GeneralSecurityException, Base32.DecodingException {
+        JsonObject data = typed(type);
+        data.addProperty("data", getRegistration(user, type, false));
+        JsonObject response = client.post(user.path("finishregistration"), data);
+        if (!"ok".equals(describe(response)))
+            throw new IOException("Registration failed: " + response);
+        afterSuccess("finishregistration", type, user, response, data);
+    }
+
+    private String getRegistration(ReplayUser user, String type, boolean fail)
+            throws IOException, GeneralSecurityException, Base32.DecodingException {
+        switch (type == null ? "" : type) {
+            case "password":
+                return user.password;
+            case "totp": {
+                if (user.totpSecret == null)
+                    start(user, type, "startregistration");
+                long step = System.currentTimeMillis() / 30000L;
+                return getTotpCode(Base32.decode(user.totpSecret), step, fail);
+            }
+            case "webauthn": {
+                if (user.creationOptions == null)
+                    start(user, type, "startregistration");
+                String creationOptions = user.creationOptions;
+                user.creationOptions = null;
+                return fail ? "{}" : authenticator.register(creationOptions);
+            }
+            default:
+                return "";
+        }
+    }
+
+    private String getLogin(ReplayUser user, String type, boolean fail)
+            throws IOException, GeneralSecurityException, Base32.DecodingException {
+        switch (type == null ? "" : type) {
+            case "password":
+                return fail ? user.password + "-wrong" : user.password;
+            case "totp": {
+                if (user.totpSecret == null)
+                    return "000000";
+                // a code is only accepted once, so a second login in the same
+                // step fails and shows up as a mismatch
+                long step = System.currentTimeMillis() / 30000L;
+                return getTotpCode(Base32.decode(user.totpSecret), step, fail);
+            }
+            case "webauthn": {
+                if (user.requestOptions == null)
+                    start(user, type, "startlogin");
+                String requestOptions = user.requestOptions;
+                user.requestOptions = null;
+                return fail ? "{}" : authenticator.login(requestOptions);
+            }
+            default:
+                return "";
+        }
+    }
+
+    private static String getTotpCode(byte[] key, long step, boolean fail) {
+        String code = TOTP.getOTP(step, key);
+        if (!fail)
+            return code;
+        // a code from an hour ago is outside any window the server accepts
+        return TOTP.getOTP(step - 120L, key);
+    }
+
+    /**
+     * Start a registration or login outside of the timed replay, for a
+     * finish whose start happened before the capture.
+     */
+    private void start(ReplayUser user, String type, String action) throws IOException {
+        JsonObject response = client.post(user.path(action), typed(type));
+        if (!"ok".equals(describe(response)))
+            throw new IOException(action + " failed: " + response);
+        afterSuccess(action, type, user, response, null);
+    }
+
+    /**
+     * Get a credential of the user, looking it up outside of the timed
+     * replay if it was registered before the capture.
+     */
+    private String getCredential(ReplayUser user, boolean fail) throws IOException {
+        if (fail)
+            return UUID.randomUUID().toString();
+        if (user.credentials.isEmpty()) {
+            JsonElement credentials = client.send(user.path("credentials"), null);
+            if (credentials.isJsonArray()) {
+                for (JsonElement credential : credentials.getAsJsonArray()) {
+                    user.credentials.add(credential.getAsJsonObject().get("credential").getAsString());
+                }
+            }
+        }
+        return user.credentials.isEmpty() ? UUID.randomUUID().toString() : user.credentials.get(0);
+    }
+
+    private static JsonObject typed(String type) {
+        JsonObject data = new JsonObject();
+        if (type != null)
+            data.addProperty("type", type);
+        return data;
+    }
+
+    private static String pad(int length) {
+        StringBuilder padding = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            padding.append('x');
+        }
+        return padding.toString();
+    }
+
+    /**
+     * Describe a response the way the server describes it in a capture.
+     */
+    private static String describe(JsonElement response) {
+        if (response == null || response.isJsonNull())
+            return "none";
+        if (!response.isJsonObject())
+            return "ok";
+        JsonObject object = response.getAsJsonObject();
+        JsonElement success = object.get("success");
+        if (success == null || success.getAsBoolean())
+            return "ok";
+        return object.has("message") || object.has("exception") ? "error" : "fail";
+    }
+
+    public void report(double seconds) {
+        ActionStatistics.report(statistics, seconds);
+        Map<String, ActionStatistics> startLag = new HashMap<>();
+        startLag.put("start lag", lag);
+        ActionStatistics.report(startLag, seconds);
+        if (mismatches.isEmpty()) {
+            System.out.println("Every request turned out as captured");
+        } else {
+            System.out.println("Requests that turned out differently than captured:");
+            for (Map.Entry<String, AtomicLong> entry : new HashMap<>(mismatches).entrySet()) {
+                System.out.println("  " + entry.getKey() + ": " + entry.getValue().get());
+            }
+        }
+    }
+
+    /**
+     * What the replay knows about a synthetic user. Only the user's lane
+     * touches it once the replay has started.
+     */
+    private static final class ReplayUser {
+        private final String namespace;
+        private final String userId;
+        private final String password;
+        private final List<String> credentials = new ArrayList<>();
+        private String totpSecret;
+        private String creationOptions;
+        private String requestOptions;
+
+        private ReplayUser(String namespace, String userId) {
+            this.namespace = namespace;
+            this.userId = userId;
+            this.password = "password-" + userId;
+        }
+
+        private String path(String action) {
+            return "/users/" + namespace + "/" + userId + "/" + action;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.benchmarks;
+
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.credential.UserNamespace;
+import io.siggi.credentialserver.credential.webauthn.CredentialWebAuthn;
+import io.siggi.credentialserver.credential.webauthn.SoftwareAuthenticator;
+import io.siggi.credentialserver.credential.webauthn.WebAuthn;
+import io.siggi.credentialserver.storage.StorageException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starting and finishing a WebAuthn login, with a software authenticator
+ * answering the challenges.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebAuthnBenchmark {
+    private File namespaceDirectory;
+    private UserNamespace namespace;
+    private WebAuthn webAuthn;
+    private SoftwareAuthenticator authenticator;
+    private User user;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, StorageException, GeneralSecurityException {
+        namespaceDirectory = Fixtures.createNamespace(null, Fixtures.memoryConfiguration());
+        namespace = new UserNamespace(null, "benchmark", namespaceDirectory);
+        webAuthn = namespace.getWebAuthn();
+        authenticator = new SoftwareAuthenticator("https://localhost");
+        user = namespace.readUser(UUID.randomUUID());
+        user.setVariable("name", "benchmark");
+        String registration = authenticator.register(webAuthn.startRegistration(user));
+        try {
+            if (webAuthn.finishRegistration(user, registration) == null)
+                throw new IllegalStateException("Registration was not accepted");
+        } catch (Exception e) {
+            throw new IllegalStateException("Registration failed", e);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        namespace.close();
+        Fixtures.delete(namespaceDirectory);
+    }
+
+    /**
+     * A fresh assertion for each login, signed outside the measurement.
+     */
+    @State(Scope.Thread)
+    public static class Assertion {
+        String json;
+
+        @Setup(Level.Invocation)
+        public void sign(WebAuthnBenchmark benchmark) throws GeneralSecurityException {
+            json = benchmark.authenticator.login(benchmark.webAuthn.startLogin(benchmark.user));
+        }
+    }
+
+    @Benchmark
+    public String startLogin() {
+        return webAuthn.startLogin(user);
+    }
+
+    @Benchmark
+    public CredentialWebAuthn finishLogin(Assertion assertion) {
+        CredentialWebAuthn credential = webAuthn.finishLogin(user, assertion.json);
+        if (credential == null)
+            throw new IllegalStateException("Login was not accepted");
+        return credential;
+    }
+}
@@ -20,6 +20,10 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import io.siggi.credentialserver.admission.AdmissionControl;
+import io.siggi.credentialserver.admission.ConcurrencyLimit;
+import io.siggi.credentialserver.admission.Deadline;
+import io.siggi.credentialserver.admission.DeadlineExceededException;
 import io.siggi.credentialserver.apiresponses.ClientsideCredential;
 import io.siggi.credentialserver.apiresponses.ExceptionInfo;
 import io.siggi.credentialserver.apiresponses.LoginResult;
@@ -29,8 +33,17 @@ import io.siggi.credentialserver.credential.Credential;
 import io.siggi.credentialserver.credential.CredentialType;
 import io.siggi.credentialserver.credential.User;
 import io.siggi.credentialserver.credential.UserNamespace;
+import io.siggi.credentialserver.log.AccessLog;
+import io.siggi.credentialserver.log.TrafficCapture;
+import io.siggi.credentialserver.profiling.Profiling;
+import io.siggi.credentialserver.profiling.RequestTimer;
+import io.siggi.credentialserver.profiling.Span;
 import io.siggi.credentialserver.serialization.Serialization;
+import io.siggi.credentialserver.storage.Storage;
 import io.siggi.credentialserver.storage.StorageException;
+import io.siggi.credentialserver.storage.StorageFile;
+import io.siggi.credentialserver.storage.StorageOverloadedException;
+import io.siggi.credentialserver.storage.UserProjection;
 import io.siggi.credentialserver.util.Util;
 import io.siggi.http.HTTPRequest;
 import io.siggi.http.HTTPServer;
@@ -43,16 +56,18 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.sql.SQLTimeoutException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 public final class CredentialServer {
 
-    public final File tmpDirectory;
     private final File root;
     private final File namespacesDirectory;
     private final File webRoot;
@@ -61,19 +76,15 @@ public final class CredentialServer {
     private final Map<String, UserNamespace> namespaces = new HashMap<>();
     private ServerSocket serverSocket;
     private HTTPServer server;
+    private AccessLog accessLog;
+    private TrafficCapture trafficCapture;
+    private ConcurrencyLimit requestLimit;
 
     public CredentialServer(String listenIP, int listenPort, File root) {
         this.listenIP = listenIP;
         this.listenPort = listenPort;
         this.root = root;
         this.namespacesDirectory = new File(root, "namespaces");
-        this.tmpDirectory = new File(root, "tmp");
-        if (tmpDirectory.exists())
-            for (File f : this.tmpDirectory.listFiles()) {
-                f.delete();
-            }
-        else
-            tmpDirectory.mkdirs();
         File[] namespaceDirectories = namespacesDirectory.listFiles();
         if (namespaceDirectories != null) {
             for (File namespaceDir : namespaceDirectories) {
@@ -91,17 +102,27 @@ public final class CredentialServer {
         }
     }
 
-    private static void writeResponse(HTTPRequest request, String data, String contentType) throws IOException {
+    /**
+     * @return the number of bytes written
+     */
+    private static int writeResponse(HTTPRequest request, String data, String contentType) throws IOException {
         byte[] dataBytes = data.getBytes(StandardCharsets.UTF_8);
         request.response.setContentType(contentType);
         request.response.contentLength(dataBytes.length);
         request.response.write(dataBytes);
+        return dataBytes.length;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int writeJsonResponse(HTTPRequest request, Object data) throws IOException {
+        return writeResponse(request, serializeResponse(request, data), "application/json");
     }
 
-    private static void writeJsonResponse(HTTPRequest request, Object data) throws IOException {
+    private static String serializeResponse(HTTPRequest request, Object data) {
         boolean pretty = request.get.get("pretty") != null;
-        String serialized = Serialization.serialize(data, pretty);
-        writeResponse(request, serialized, "application/json");
+        return Serialization.serialize(data, pretty);
     }
 
     public static void main(String[] args) throws IOException {
@@ -127,6 +148,19 @@ public final class CredentialServer {
         if (serverSocket != null)
             throw new IllegalStateException("Already started!");
         serverSocket = new ServerSocket(listenPort, 0, listenIP == null ? null : InetAddress.getByName(listenIP));
+        String accessLogPath = System.getProperty("credentialserveraccesslog", new File(root, "logs/access.log").getPath());
+        if (!accessLogPath.equals("off")) {
+            accessLog = new AccessLog(new File(accessLogPath),
+                    Integer.parseInt(System.getProperty("credentialserveraccesslogbuffer", "65536")),
+                    Long.parseLong(System.getProperty("credentialserveraccesslogmaxsize", "104857600")),
+                    TimeUnit.HOURS.toMillis(Long.parseLong(System.getProperty("credentialserveraccesslogmaxage", "24"))),
+                    Integer.parseInt(System.getProperty("credentialserveraccesslogkeep", "30")));
+        }
+        requestLimit = new ConcurrencyLimit(Integer.parseInt(System.getProperty("credentialservermaxrequests", "0")));
+        String capturePath = System.getProperty("credentialservercapture");
+        if (capturePath != null) {
+            trafficCapture = new TrafficCapture(new File(capturePath));
+        }
         server = new HTTPServerBuilder().build();
         server.responderRegistry.register("/", this::respond, true, true);
         new Thread(() -> {
@@ -140,6 +174,16 @@ public final class CredentialServer {
         }).start();
     }
 
+    /**
+     * Get the port the server is listening on, which is only known after
+     * starting when it was created with port 0.
+     */
+    public int getPort() {
+        if (serverSocket == null)
+            throw new IllegalStateException("Never started!");
+        return serverSocket.getLocalPort();
+    }
+
     public void stop() {
         if (serverSocket == null)
             throw new IllegalStateException("Never started!");
@@ -147,13 +191,23 @@ public final class CredentialServer {
             serverSocket.close();
         } catch (Exception e) {
         }
+        for (UserNamespace namespace : namespaces.values()) {
+            namespace.close();
+        }
+        if (accessLog != null)
+            accessLog.close();
+        if (trafficCapture != null)
+            trafficCapture.close();
     }
 
     private void respond(HTTPRequest request) throws IOException {
+        long start = System.nanoTime();
+        AccessRecord record = new AccessRecord();
         try {
             if (webRoot != null && !request.url.contains("..")) {
                 File requestedFile = new File(webRoot, request.url.substring(1));
                 if (requestedFile.exists()) {
+                    record.action = "file";
                     if (requestedFile.isDirectory()) {
                         File indexFile = new File(requestedFile, "index.html");
                         if (indexFile.exists()) {
@@ -162,6 +216,7 @@ public final class CredentialServer {
                         return;
                     }
                     request.response.returnFile(requestedFile);
+                    record.bytesOut = requestedFile.length();
                     return;
                 }
             }
@@ -185,96 +240,354 @@ public final class CredentialServer {
                     String namespace = parts[0];
                     String user = parts[1];
                     String action = parts[2];
-                    respondToUsers(request, namespace, user, action);
+                    record.namespace = namespace;
+                    record.user = user;
+                    record.action = action;
+                    admitToUsers(request, record, namespace, user, action);
+                }
+                break;
+                case "metrics": {
+                    record.namespace = subpath;
+                    record.action = "metrics";
+                    record.bytesOut = respondToMetrics(request, subpath);
+                }
+                break;
+                case "admin": {
+                    if (subpath == null)
+                        break;
+                    String[] parts = subpath.split("/", 2);
+                    if (parts.length < 2)
+                        break;
+                    record.namespace = parts[0];
+                    record.action = "admin/" + parts[1];
+                    respondToAdmin(request, record, parts[0], parts[1]);
                 }
                 break;
             }
         } catch (Exception e) {
-            writeJsonResponse(request, new ExceptionInfo(e));
+            record.result = "exception";
+            record.bytesOut = writeJsonResponse(request, new ExceptionInfo(e));
             e.printStackTrace();
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            long bytesIn = getContentLength(request);
+            if (accessLog != null) {
+                accessLog.log(System.currentTimeMillis(), record.namespace, record.user, record.action, record.type,
+                        record.result, elapsed, bytesIn, record.bytesOut);
+            }
+            // only requests to /users can be replayed
+            if (trafficCapture != null && record.user != null) {
+                trafficCapture.record(start, record.namespace, record.user, record.action, record.type,
+                        record.result, bytesIn, record.bytesOut, elapsed);
+            }
         }
     }
 
-    private void respondToUsers(HTTPRequest request, String namespace, String userId, String action) throws StorageException, IOException {
-        UUID userUuid;
+    private static long getContentLength(HTTPRequest request) {
+        String contentLength = request.getHeader("Content-Length");
+        if (contentLength == null)
+            return 0L;
         try {
-            userUuid = Util.uuidFromString(userId);
-        } catch (Exception e) {
-            // the user string was not a UUID
-            userUuid = UUID.nameUUIDFromBytes((namespace + ":" + userId).getBytes(StandardCharsets.UTF_8));
+            return Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            return 0L;
         }
-        if (userId.isEmpty()) {
-            writeJsonResponse(request, new ExceptionInfo("User is blank"));
-            return;
+    }
+
+    /**
+     * Describe how a request went, for the access log.
+     */
+    private static String describeResult(Object response) {
+        if (response == null)
+            return "none";
+        if (response instanceof ExceptionInfo)
+            return "error";
+        if (response instanceof LoginResult)
+            return ((LoginResult) response).success ? "ok" : "fail";
+        if (response instanceof Success)
+            return ((Success) response).isSuccess() ? "ok" : "fail";
+        return "ok";
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private int respondToMetrics(HTTPRequest request, String namespace) throws IOException {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, UserNamespace> entry : namespaces.entrySet()) {
+            if (namespace != null && !namespace.isEmpty() && !namespace.equals(entry.getKey()))
+                continue;
+            metrics.put(entry.getKey(), entry.getValue().getMetrics());
         }
+        return writeJsonResponse(request, metrics);
+    }
+
+    private void respondToAdmin(HTTPRequest request, AccessRecord record, String namespace, String action) throws IOException {
         UserNamespace userNamespace = getNamespace(namespace);
-        User user = userNamespace.readUser(userUuid);
-        JsonObject postData;
-        // <editor-fold desc="Parse POST data" defaultstate="collapsed">
-        if (request.method.equals("POST")) {
-            String contentType = request.getHeader("Content-Type");
-            if (contentType != null && contentType.contains("json")) {
-                String contentLengthStr = request.getHeader("Content-Length");
-                if (contentLengthStr == null) {
-                    request.response.setHeader("400 Bad Request");
-                    request.response.sendHeaders();
+        if (userNamespace == null) {
+            record.respond(request, new ExceptionInfo("Unknown namespace"));
+            return;
+        }
+        switch (action) {
+            case "sweep": {
+                userNamespace.getSweeper().trigger();
+                record.respond(request, new Success(true));
+            }
+            break;
+            case "rebalance": {
+                Storage storage = userNamespace.getStorage().getBackend();
+                if (!(storage instanceof StorageFile)) {
+                    record.respond(request, new ExceptionInfo("Storage cannot be rebalanced"));
                     return;
                 }
-                int contentLength = Integer.parseInt(contentLengthStr);
-                if (contentLength > 65536) {
-                    request.response.setHeader("413 Payload Too Large");
-                    request.response.sendHeaders();
+                record.respond(request, new Success(((StorageFile) storage).startRebalance()));
+            }
+            break;
+        }
+    }
+
+    /**
+     * Respond to a request to /users if the server and the namespace have
+     * room for it, otherwise turn it away before any work is done on it.
+     * Work on it stops once its deadline passes, since nobody is waiting
+     * for the answer any more.
+     */
+    private void admitToUsers(HTTPRequest request, AccessRecord record, String namespace, String userId, String action) throws StorageException, IOException {
+        UserNamespace userNamespace = getNamespace(namespace);
+        AdmissionControl admissionControl = userNamespace == null ? null : userNamespace.getAdmissionControl();
+        if (!requestLimit.tryAcquire()) {
+            if (admissionControl != null)
+                admissionControl.recordOverloaded();
+            reject(request, record, "503 Service Unavailable", 1000L);
+            return;
+        }
+        try {
+            UUID userUuid = getUserUuid(namespace, userId);
+            long admitted = System.currentTimeMillis();
+            if (admissionControl != null) {
+                long retryAfter = admissionControl.admit(userUuid, action, admitted);
+                if (retryAfter > 0L) {
+                    reject(request, record, "429 Too Many Requests", retryAfter);
                     return;
                 }
-                postData = JsonParser.parseReader(new InputStreamReader(request.inStream)).getAsJsonObject();
-            } else {
-                postData = new JsonObject();
-                for (Map.Entry<String, String> entry : request.post.entrySet()) {
-                    postData.addProperty(entry.getKey(), entry.getValue());
+            }
+            try {
+                respondWithDeadline(request, record, namespace, userId, action, admissionControl);
+            } finally {
+                if (admissionControl != null && action.equals("finishlogin"))
+                    admissionControl.finishLogin(userUuid, admitted, "fail".equals(record.result));
+            }
+        } finally {
+            requestLimit.release();
+        }
+    }
+
+    private void respondWithDeadline(HTTPRequest request, AccessRecord record, String namespace, String userId, String action,
+                                     AdmissionControl admissionControl) throws StorageException, IOException {
+        Deadline deadline = admissionControl == null ? null
+                : admissionControl.getDeadline(getRequestTimeout(request));
+        Deadline previousDeadline = Deadline.set(deadline);
+        try {
+            respondToUsers(request, record, namespace, userId, action);
+        } catch (StorageOverloadedException e) {
+            reject(request, record, "503 Service Unavailable", 1000L);
+            return;
+        } catch (DeadlineExceededException e) {
+            admissionControl.recordAbandoned(e.getPhase());
+            abandon(request, record);
+            return;
+        } catch (StorageException e) {
+            // a query that ran into the deadline
+            if (deadline == null || !isQueryTimeout(e))
+                throw e;
+            admissionControl.recordAbandoned("storage");
+            abandon(request, record);
+            return;
+        } finally {
+            Deadline.set(previousDeadline);
+        }
+    }
+
+    private static boolean isQueryTimeout(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof SQLTimeoutException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get how many milliseconds the client says it will wait for an answer.
+     *
+     * @return the time, or 0 if the client did not say
+     */
+    private static long getRequestTimeout(HTTPRequest request) {
+        String timeout = request.getHeader("X-Request-Timeout");
+        if (timeout == null)
+            return 0L;
+        try {
+            return Math.max(0L, Long.parseLong(timeout.trim()));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    private static void abandon(HTTPRequest request, AccessRecord record) throws IOException {
+        record.result = "504";
+        request.response.setHeader("504 Gateway Timeout");
+        request.response.sendHeaders();
+    }
+
+    private static void reject(HTTPRequest request, AccessRecord record, String status, long retryAfterMillis) throws IOException {
+        record.result = status.substring(0, 3);
+        request.response.setHeader(status);
+        request.response.setHeader("Retry-After", Long.toString((retryAfterMillis + 999L) / 1000L));
+        request.response.sendHeaders();
+    }
+
+    private void respondToUsers(HTTPRequest request, AccessRecord record, String namespace, String userId, String action) throws StorageException, IOException {
+        if (userId.isEmpty()) {
+            record.respond(request, new ExceptionInfo("User is blank"));
+            return;
+        }
+        UserNamespace userNamespace = getNamespace(namespace);
+        RequestTimer timer = userNamespace != null && userNamespace.isRequestTimingEnabled() ? RequestTimer.start() : null;
+        try (Span requestSpan = Profiling.request(namespace, action)) {
+            JsonObject postData;
+            // <editor-fold desc="Parse POST data" defaultstate="collapsed">
+            long parseStart = RequestTimer.begin();
+            try (Span phase = Profiling.phase("parse")) {
+                if (request.method.equals("POST")) {
+                    String contentType = request.getHeader("Content-Type");
+                    if (contentType != null && contentType.contains("json")) {
+                        String contentLengthStr = request.getHeader("Content-Length");
+                        if (contentLengthStr == null) {
+                            record.result = "400";
+                            request.response.setHeader("400 Bad Request");
+                            request.response.sendHeaders();
+                            return;
+                        }
+                        int contentLength = Integer.parseInt(contentLengthStr);
+                        if (contentLength > 65536) {
+                            record.result = "413";
+                            request.response.setHeader("413 Payload Too Large");
+                            request.response.sendHeaders();
+                            return;
+                        }
+                        postData = JsonParser.parseReader(new InputStreamReader(request.inStream)).getAsJsonObject();
+                    } else {
+                        postData = new JsonObject();
+                        for (Map.Entry<String, String> entry : request.post.entrySet()) {
+                            postData.addProperty(entry.getKey(), entry.getValue());
+                        }
+                    }
+                } else {
+                    postData = null;
                 }
+            } finally {
+                RequestTimer.end(RequestTimer.Phase.PARSE, parseStart);
             }
-        } else {
-            postData = null;
+            // </editor-fold>
+            if (postData != null && postData.has("type"))
+                record.type = postData.get("type").getAsString();
+            Deadline.check("load");
+            Object response = performUserAction(namespace, userId, action, postData);
+            record.result = describeResult(response);
+            if (response != null) {
+                String serialized;
+                long serializeStart = RequestTimer.begin();
+                try (Span phase = Profiling.phase("serialize")) {
+                    serialized = serializeResponse(request, response);
+                } finally {
+                    RequestTimer.end(RequestTimer.Phase.SERIALIZE, serializeStart);
+                }
+                if (timer != null && userNamespace.isServerTimingEnabled())
+                    request.response.setHeader("Server-Timing", timer.toServerTiming());
+                record.bytesOut = writeResponse(request, serialized, "application/json");
+            }
+        } finally {
+            if (timer != null) {
+                timer.stop();
+                userNamespace.getSlowRequestLog().record(namespace, action, timer);
+            }
+        }
+    }
+
+    /**
+     * Perform an action on a user the way a request to /users does, once the
+     * request is parsed.
+     *
+     * @param postData the posted data, or null if it was not a POST request
+     * @return the response to send, or null to send none
+     */
+    Object performUserAction(String namespace, String userId, String action, JsonObject postData) throws StorageException {
+        UUID userUuid = getUserUuid(namespace, userId);
+        if (postData != null && postData.has("type"))
+            Profiling.setCredentialType(postData.get("type").getAsString());
+        UserNamespace userNamespace = getNamespace(namespace);
+        UserProjection projection = getProjection(action, postData,
+                userNamespace.getStorage().getBackend().canSavePartialUsers());
+        return userNamespace.updateUser(userUuid, projection, user -> {
+            long start = RequestTimer.begin();
+            try (Span phase = Profiling.phase("action")) {
+                return performAction(user, action, postData);
+            } finally {
+                RequestTimer.end(RequestTimer.Phase.CREDENTIAL, start);
+            }
+        });
+    }
+
+    private static UUID getUserUuid(String namespace, String userId) {
+        try {
+            return Util.uuidFromString(userId);
+        } catch (Exception e) {
+            // the user string was not a UUID
+            return UUID.nameUUIDFromBytes((namespace + ":" + userId).getBytes(StandardCharsets.UTF_8));
         }
-        // </editor-fold>
+    }
+
+    /**
+     * Apply an action to a user. This may run more than once for a request
+     * if the user is saved concurrently, so it must not have effects beyond
+     * the user.
+     *
+     * @return the response to send, or null to send none
+     */
+    private Object performAction(User user, String action, JsonObject postData) {
         switch (action) {
             case "types": {
                 Set<String> credentialTypes = new HashSet<>();
                 for (Credential credential : user.getCredentials()) {
                     credentialTypes.add(credential.getType());
                 }
-                writeJsonResponse(request, credentialTypes);
+                return credentialTypes;
             }
-            break;
             case "credentials": {
                 Set<ClientsideCredential> credentials = new HashSet<>();
                 for (Credential credential : user.getCredentials()) {
                     credentials.add(new ClientsideCredential(credential));
                 }
-                writeJsonResponse(request, credentials);
+                return credentials;
             }
-            break;
             case "startregistration":
             case "startlogin": {
                 if (postData == null)
-                    break;
+                    return null;
                 boolean isRegistration = action.equals("startregistration");
                 String type = postData.get("type").getAsString();
                 CredentialType credentialType = CredentialType.get(type);
                 if (!isRegistration && user.getCredentials(type).isEmpty()) {
-                    writeJsonResponse(request, new ExceptionInfo("No credential of type '" + type + "' available."));
-                    break;
+                    return new ExceptionInfo("No credential of type '" + type + "' available.");
                 }
                 String callResult = isRegistration
                         ? credentialType.startRegistration(user)
                         : credentialType.startLogin(user);
-                writeJsonResponse(request, new StartLogin(callResult));
+                return new StartLogin(callResult);
             }
-            break;
             case "finishregistration":
             case "finishlogin": {
                 if (postData == null)
-                    break;
+                    return null;
                 boolean isRegistration = action.equals("finishregistration");
                 String type = postData.get("type").getAsString();
                 JsonElement dataJson = postData.get("data");
@@ -286,8 +599,7 @@ public final class CredentialServer {
                 }
                 CredentialType credentialType = CredentialType.get(type);
                 if (credentialType == null) {
-                    writeJsonResponse(request, new LoginResult(false, null));
-                    break;
+                    return new LoginResult(false, null);
                 }
                 Credential credential = isRegistration
                         ? credentialType.finishRegistration(user, data)
@@ -299,41 +611,36 @@ public final class CredentialServer {
                             credential.setName(nameElement.getAsString());
                         }
                     }
-                    writeJsonResponse(request, new LoginResult(true, credential.getUUID()));
+                    return new LoginResult(true, credential.getUUID());
                 } else {
-                    writeJsonResponse(request, new LoginResult(false, null));
+                    return new LoginResult(false, null);
                 }
             }
-            break;
             case "rename": {
                 String credentialId = postData.get("credential").getAsString();
                 JsonElement nameElement = postData.get("name");
                 String name = nameElement.isJsonNull() ? null : nameElement.getAsString();
                 Credential credential = user.getCredential(Util.uuidFromString(credentialId));
                 credential.setName(name);
-                writeJsonResponse(request, new Success(true));
+                return new Success(true);
             }
-            break;
             case "delete": {
                 String credentialId = postData.get("credential").getAsString();
                 Credential credential = user.getCredential(Util.uuidFromString(credentialId));
                 if (credential == null) {
-                    writeJsonResponse(request, new Success(false));
-                    break;
+                    return new Success(false);
                 }
                 credential.delete();
-                writeJsonResponse(request, new Success(true));
+                return new Success(true);
             }
-            break;
             case "metaset": {
                 for (String key : postData.keySet()) {
                     JsonElement jsonValue = postData.get(key);
                     String value = jsonValue.isJsonNull() ? null : jsonValue.getAsString();
                     user.setVariable(key, value);
                 }
-                writeJsonResponse(request, new Success(true));
+                return new Success(true);
             }
-            break;
             case "metaget": {
                 JsonObject response = new JsonObject();
                 Predicate<String> predicate = s -> true;
@@ -348,15 +655,64 @@ public final class CredentialServer {
                         continue;
                     response.addProperty(entry.getKey(), entry.getValue());
                 }
-                writeJsonResponse(request, response);
+                return response;
             }
-            break;
         }
-        userNamespace.saveUser(user);
+        return null;
+    }
+
+    /**
+     * Get the smallest part of a user an action needs. Registration and
+     * login steps load what their credential type needs if the storage can
+     * save a partially loaded user. Other actions that can modify the user
+     * always load all of it.
+     *
+     * @param partialSaves whether the storage can save a partially loaded
+     *                     user
+     */
+    static UserProjection getProjection(String action, JsonObject postData, boolean partialSaves) {
+        switch (action) {
+            case "types":
+            case "credentials":
+                return UserProjection.CREDENTIALS;
+            case "metaget":
+                return UserProjection.VARIABLES;
+            case "startregistration":
+            case "finishregistration":
+            case "startlogin":
+            case "finishlogin": {
+                JsonElement type = postData == null ? null : postData.get("type");
+                CredentialType credentialType = partialSaves && type != null && type.isJsonPrimitive()
+                        ? CredentialType.get(type.getAsString()) : null;
+                if (credentialType == null)
+                    return UserProjection.ALL;
+                return credentialType.getProjection(action.endsWith("registration"), action.startsWith("start"));
+            }
+            default:
+                return UserProjection.ALL;
+        }
     }
 
     private UserNamespace getNamespace(String namespace) {
         return namespaces.get(namespace);
     }
 
+    /**
+     * What the access log records about a request, filled in as the request
+     * is handled.
+     */
+    private static final class AccessRecord {
+        private String namespace;
+        private String user;
+        private String action;
+        private String type;
+        private String result;
+        private long bytesOut;
+
+        private void respond(HTTPRequest request, Object response) throws IOException {
+            result = describeResult(response);
+            bytesOut = writeJsonResponse(request, response);
+        }
+    }
+
 }
@@ -0,0 +1,148 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.admission;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a request for a user in a namespace is worked on at all,
+ * before any of the work that makes a request expensive, like reading the
+ * user or hashing a password.
+ * <p>
+ * A namespace can limit its rate of requests, and the number of failed
+ * logins each user may make over a sliding window. Both are off unless
+ * configured:
+ * <ul>
+ * <li>rate-limit: requests per second, default 0 for no limit</li>
+ * <li>rate-limit-burst: requests that may arrive at once, default the
+ * rate</li>
+ * <li>login-failure-limit: failed logins a user may make within the
+ * window, default 0 for no limit</li>
+ * <li>login-failure-window: the length of the window in milliseconds,
+ * default 300000</li>
+ * <li>login-failure-slots: how many users can be told apart, default
+ * 65536, using 16 bytes each</li>
+ * </ul>
+ * It also sets the {@link Deadline} of each request, from the time the
+ * client asks for and request-timeout, the most milliseconds any request
+ * may take, default 0 for no limit. Whichever is shorter applies.
+ */
+public final class AdmissionControl {
+    private final RateLimiter rateLimiter;
+    private final FailureWindow loginFailures;
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong loginsLimited = new AtomicLong();
+    private final AtomicLong overloaded = new AtomicLong();
+    private final long requestTimeout;
+    private final Map<String, AtomicLong> abandoned = new ConcurrentHashMap<>();
+
+    public AdmissionControl(Properties configuration) {
+        double rate = Double.parseDouble(configuration.getProperty("rate-limit", "0"));
+        this.rateLimiter = new RateLimiter(rate,
+                Integer.parseInt(configuration.getProperty("rate-limit-burst", Integer.toString((int) Math.ceil(rate)))));
+        this.loginFailures = new FailureWindow(
+                Integer.parseInt(configuration.getProperty("login-failure-limit", "0")),
+                Long.parseLong(configuration.getProperty("login-failure-window", "300000")),
+                Integer.parseInt(configuration.getProperty("login-failure-slots", "65536")));
+        this.requestTimeout = Long.parseLong(configuration.getProperty("request-timeout", "0"));
+    }
+
+    /**
+     * Decide whether to work on a request. A login admitted counts as failed
+     * until {@link #finishLogin} says otherwise.
+     *
+     * @param nowMillis the time, to pass on to {@link #finishLogin}
+     * @return 0 to work on it, otherwise how many milliseconds the client
+     * should wait before trying again
+     */
+    public long admit(UUID user, String action, long nowMillis) {
+        long wait = rateLimiter.tryAcquire(System.nanoTime());
+        if (wait > 0L) {
+            rateLimited.incrementAndGet();
+            return Math.max(1L, TimeUnit.NANOSECONDS.toMillis(wait));
+        }
+        if (action.equals("finishlogin")) {
+            wait = loginFailures.acquire(user, nowMillis);
+            if (wait > 0L) {
+                loginsLimited.incrementAndGet();
+                return wait;
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Finish a login that was admitted, taking back its failure unless it
+     * failed.
+     *
+     * @param admittedMillis the time passed to {@link #admit}
+     */
+    public void finishLogin(UUID user, long admittedMillis, boolean failed) {
+        if (!failed)
+            loginFailures.release(user, admittedMillis);
+    }
+
+    /**
+     * Count a request turned away because the server was working on as many
+     * requests as it may.
+     */
+    public void recordOverloaded() {
+        overloaded.incrementAndGet();
+    }
+
+    /**
+     * Get the deadline for a request arriving now.
+     *
+     * @param requestedMillis how long the client will wait, or 0 if it did
+     *                        not say
+     * @return the deadline, or null if the request has none
+     */
+    public Deadline getDeadline(long requestedMillis) {
+        long millis = requestedMillis;
+        if (requestTimeout > 0L && (millis <= 0L || requestTimeout < millis))
+            millis = requestTimeout;
+        return millis > 0L ? Deadline.after(millis) : null;
+    }
+
+    /**
+     * Count a request given up on because its deadline passed.
+     *
+     * @param phase the work that was not started
+     */
+    public void recordAbandoned(String phase) {
+        abandoned.computeIfAbsent(phase, p -> new AtomicLong()).incrementAndGet();
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("rateLimited", rateLimited.get());
+        metrics.put("loginsLimited", loginsLimited.get());
+        metrics.put("overloaded", overloaded.get());
+        Map<String, Long> abandonedMetrics = new LinkedHashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : abandoned.entrySet()) {
+            abandonedMetrics.put(entry.getKey(), entry.getValue().get());
+        }
+        metrics.put("abandoned", abandonedMetrics);
+        return metrics;
+    }
+}
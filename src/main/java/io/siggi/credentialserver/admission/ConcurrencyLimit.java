@@ -0,0 +1,65 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.admission;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A limit on how many requests may be worked on at once. Requests over the
+ * limit are turned away rather than queued, since a queue only makes every
+ * request in it late.
+ */
+public final class ConcurrencyLimit {
+    private final int limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * @param limit how many requests may be worked on at once, or 0 for no
+     *              limit
+     */
+    public ConcurrencyLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Start working on a request if the limit allows it. Every successful
+     * call must be followed by a call to {@link #release()}.
+     *
+     * @return whether the request may be worked on
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (limit > 0 && current >= limit)
+                return false;
+            if (inFlight.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,94 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.admission;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time by which a request must be answered, after which nobody is
+ * waiting for the answer any more.
+ * <p>
+ * A deadline is set for the thread working on a request, and code that is
+ * about to start expensive work calls {@link #check(String)}, which does
+ * nothing when no deadline is set. Work handed to other threads, like
+ * storage calls, takes the deadline along.
+ */
+public final class Deadline {
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Get a deadline the given number of milliseconds from now.
+     */
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Get the deadline of the current thread.
+     *
+     * @return the deadline, or null if none is set
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    /**
+     * Set the deadline of the current thread.
+     *
+     * @param deadline the deadline, or null to remove it
+     * @return the deadline that was set before, to restore when done
+     */
+    public static Deadline set(Deadline deadline) {
+        Deadline previous = current.get();
+        if (deadline == null) {
+            current.remove();
+        } else {
+            current.set(deadline);
+        }
+        return previous;
+    }
+
+    /**
+     * Give up on the current request if its deadline has passed.
+     *
+     * @param phase the work that would have been done, for metrics
+     * @throws DeadlineExceededException if the deadline has passed
+     */
+    public static void check(String phase) {
+        Deadline deadline = current.get();
+        if (deadline != null && deadline.isExpired())
+            throw new DeadlineExceededException(phase);
+    }
+
+    public boolean isExpired() {
+        return System.nanoTime() - expiresAt >= 0L;
+    }
+
+    /**
+     * Get how many milliseconds are left, which is 0 or less once the
+     * deadline has passed.
+     */
+    public long getRemainingMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+    }
+}
@@ -0,0 +1,38 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.admission;
+
+/**
+ * Thrown instead of starting work for a request whose deadline has passed.
+ * It carries no stack trace, since it is expected in numbers whenever the
+ * server falls behind.
+ */
+public class DeadlineExceededException extends RuntimeException {
+    private final String phase;
+
+    public DeadlineExceededException(String phase) {
+        super("Deadline exceeded before " + phase, null, false, false);
+        this.phase = phase;
+    }
+
+    /**
+     * Get the work that was not started.
+     */
+    public String getPhase() {
+        return phase;
+    }
+}
@@ -0,0 +1,182 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.admission;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts failures per user over a sliding window, in a fixed amount of
+ * memory however many users fail.
+ * <p>
+ * Users are hashed into two tables of slots with different seeds, and a
+ * user's count is the smaller of their two slots, so a user is only
+ * overcounted if both of their slots are shared with users that fail.
+ * Each slot is a single long holding the number of the window it counts,
+ * the count for that window and the count for the window before it. The
+ * count over the last window length weighs the previous window by how
+ * much of it is still inside, and a slot whose window is long past reads
+ * as 0, so nothing needs to be cleaned up.
+ * <p>
+ * An attempt is counted as a failure before it is made and the count is
+ * given back if it succeeds, so attempts made at the same time can't all
+ * get past the limit before any of them has failed.
+ */
+public final class FailureWindow {
+    private static final long MAX_COUNT = 0xFFFFL;
+
+    private final int limit;
+    private final long windowMillis;
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long seed1;
+    private final long seed2;
+
+    /**
+     * @param limit        how many failures are allowed within a window, or 0
+     *                     to allow any number
+     * @param windowMillis the length of the window
+     * @param slots        how many slots each table has, rounded up to a power
+     *                     of 2
+     */
+    public FailureWindow(int limit, long windowMillis, int slots) {
+        this.limit = (int) Math.min(limit, MAX_COUNT);
+        this.windowMillis = Math.max(1L, windowMillis);
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.slots = new AtomicLongArray(limit > 0 ? size * 2 : 0);
+        this.mask = size - 1;
+        this.seed1 = ThreadLocalRandom.current().nextLong();
+        this.seed2 = ThreadLocalRandom.current().nextLong();
+    }
+
+    public boolean isEnabled() {
+        return limit > 0;
+    }
+
+    /**
+     * Start an attempt of a user, counting it as a failure until it is
+     * {@link #release released}.
+     *
+     * @return 0 if the user has failed fewer times than the limit, otherwise
+     * how many milliseconds until the current window ends, and the attempt
+     * was not counted
+     */
+    public long acquire(UUID user, long nowMillis) {
+        if (!isEnabled())
+            return 0L;
+        long window = nowMillis / windowMillis;
+        double elapsed = (double) (nowMillis % windowMillis) / windowMillis;
+        int index1 = index(user, seed1);
+        int index2 = mask + 1 + index(user, seed2);
+        increment(index1, window);
+        increment(index2, window);
+        // this attempt is part of the count, the ones before it are the rest
+        double count = Math.min(estimate(slots.get(index1), window, elapsed),
+                estimate(slots.get(index2), window, elapsed)) - 1.0;
+        if (count < limit)
+            return 0L;
+        decrement(index1, window);
+        decrement(index2, window);
+        return windowMillis - nowMillis % windowMillis;
+    }
+
+    /**
+     * Give back an attempt that did not fail.
+     *
+     * @param acquiredMillis the time passed to {@link #acquire}
+     */
+    public void release(UUID user, long acquiredMillis) {
+        if (!isEnabled())
+            return;
+        long window = acquiredMillis / windowMillis;
+        decrement(index(user, seed1), window);
+        decrement(mask + 1 + index(user, seed2), window);
+    }
+
+    private void increment(int index, long window) {
+        while (true) {
+            long slot = slots.get(index);
+            long current = advance(slot, window);
+            long count = current & MAX_COUNT;
+            if (count < MAX_COUNT)
+                current++;
+            if (slot == current || slots.compareAndSet(index, slot, current))
+                return;
+        }
+    }
+
+    /**
+     * Take back a count made in the given window, from wherever it is kept
+     * now: the current count, the previous one, or nowhere once it is too
+     * old to matter.
+     */
+    private void decrement(int index, long window) {
+        long thisWindow = window & 0xFFFFFFFFL;
+        while (true) {
+            long slot = slots.get(index);
+            long slotWindow = slot >>> 32;
+            long updated;
+            if (slotWindow == thisWindow) {
+                if ((slot & MAX_COUNT) == 0L)
+                    return;
+                updated = slot - 1L;
+            } else if (slotWindow == ((thisWindow + 1L) & 0xFFFFFFFFL)) {
+                if ((slot >>> 16 & MAX_COUNT) == 0L)
+                    return;
+                updated = slot - (1L << 16);
+            } else {
+                return;
+            }
+            if (slots.compareAndSet(index, slot, updated))
+                return;
+        }
+    }
+
+    /**
+     * Get a slot as it would be if it were moved to the given window.
+     */
+    private static long advance(long slot, long window) {
+        long slotWindow = slot >>> 32;
+        long thisWindow = window & 0xFFFFFFFFL;
+        if (slotWindow == thisWindow)
+            return slot;
+        if (slotWindow == ((thisWindow - 1L) & 0xFFFFFFFFL))
+            return (thisWindow << 32) | ((slot & MAX_COUNT) << 16);
+        return thisWindow << 32;
+    }
+
+    private static double estimate(long slot, long window, double elapsed) {
+        long current = advance(slot, window);
+        return (current >>> 16 & MAX_COUNT) * (1.0 - elapsed) + (current & MAX_COUNT);
+    }
+
+    private int index(UUID user, long seed) {
+        long hash = mix(user.getMostSignificantBits() ^ seed);
+        hash = mix(hash ^ user.getLeastSignificantBits());
+        return (int) hash & mask;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,70 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept in a single long, so it can be shared by every
+ * request thread without a lock.
+ * <p>
+ * Rather than counting tokens, it keeps the time at which the bucket would
+ * be full again. Each request pushes that time one interval further out,
+ * and a request is refused if that would put it more than the burst ahead
+ * of now.
+ */
+public final class RateLimiter {
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param perSecond how many requests are allowed each second, or 0 to
+     *                  allow every request
+     * @param burst     how many requests may arrive at once after a quiet
+     *                  period
+     */
+    public RateLimiter(double perSecond, int burst) {
+        this.intervalNanos = perSecond > 0.0 ? Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1L) / perSecond)) : 0L;
+        this.toleranceNanos = intervalNanos * Math.max(0, burst - 1);
+    }
+
+    public boolean isEnabled() {
+        return intervalNanos > 0L;
+    }
+
+    /**
+     * Take a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise how many nanoseconds until
+     * one will be
+     */
+    public long tryAcquire(long nowNanos) {
+        if (!isEnabled())
+            return 0L;
+        while (true) {
+            long current = fullAt.get();
+            long base = current == Long.MIN_VALUE || current - nowNanos < 0L ? nowNanos : current;
+            long wait = base - toleranceNanos - nowNanos;
+            if (wait > 0L)
+                return wait;
+            if (fullAt.compareAndSet(current, base + intervalNanos))
+                return 0L;
+        }
+    }
+}
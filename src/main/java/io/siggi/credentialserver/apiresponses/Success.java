@@ -25,4 +25,8 @@ public class Success {
     public Success(boolean success) {
         this.success = success;
     }
+
+    public boolean isSuccess() {
+        return success;
+    }
 }
\ No newline at end of file
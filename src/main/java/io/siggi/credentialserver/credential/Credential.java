@@ -92,6 +92,7 @@ public abstract class Credential {
 
     public void delete() {
         deleted = true;
+        if (user != null) user.removeCredential(this);
         markAsChanged();
     }
 
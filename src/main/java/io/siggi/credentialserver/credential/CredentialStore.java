@@ -0,0 +1,113 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.credential;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Indexes the credentials of a {@link User} by UUID, type and class.
+ * <p>
+ * The per-type lists are replaced rather than modified, so the lists handed
+ * out stay valid and unchanged while credentials are added or deleted.
+ */
+final class CredentialStore {
+    private final List<Credential> credentials;
+    private final List<Credential> deletedCredentials = new ArrayList<>();
+    private final Map<UUID, Credential> byUuid = new HashMap<>();
+    private final Map<String, List<Credential>> byType = new HashMap<>();
+    private final Map<Class<?>, List<Credential>> byClass = new HashMap<>();
+
+    /**
+     * @param credentials the list the user is persisted with, any null
+     *                    entries left behind by unknown credential types are
+     *                    removed from it.
+     */
+    CredentialStore(List<Credential> credentials) {
+        this.credentials = credentials;
+        credentials.removeIf(Objects::isNull);
+        for (Credential credential : credentials) {
+            index(credential);
+        }
+    }
+
+    private static List<Credential> with(List<Credential> list, Credential credential) {
+        List<Credential> newList = new ArrayList<>(list == null ? 1 : list.size() + 1);
+        if (list != null) newList.addAll(list);
+        newList.add(credential);
+        return Collections.unmodifiableList(newList);
+    }
+
+    private static List<Credential> without(List<Credential> list, Credential credential) {
+        List<Credential> newList = new ArrayList<>(list);
+        newList.remove(credential);
+        return newList.isEmpty() ? null : Collections.unmodifiableList(newList);
+    }
+
+    private void index(Credential credential) {
+        byUuid.put(credential.getUUID(), credential);
+        byType.put(credential.getType(), with(byType.get(credential.getType()), credential));
+        byClass.put(credential.getClass(), with(byClass.get(credential.getClass()), credential));
+    }
+
+    void add(Credential credential) {
+        credentials.add(credential);
+        index(credential);
+    }
+
+    void remove(Credential credential) {
+        if (byUuid.get(credential.getUUID()) != credential)
+            return;
+        credentials.remove(credential);
+        byUuid.remove(credential.getUUID());
+        byType.computeIfPresent(credential.getType(), (type, list) -> without(list, credential));
+        byClass.computeIfPresent(credential.getClass(), (type, list) -> without(list, credential));
+        deletedCredentials.add(credential);
+    }
+
+    Credential get(UUID uuid) {
+        return byUuid.get(uuid);
+    }
+
+    List<Credential> ofType(String type) {
+        List<Credential> list = byType.get(type);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    List<Credential> ofClass(Class<?> type) {
+        List<Credential> list = byClass.get(type);
+        if (list != null)
+            return list;
+        List<Credential> result = null;
+        for (Map.Entry<Class<?>, List<Credential>> entry : byClass.entrySet()) {
+            if (!type.isAssignableFrom(entry.getKey()))
+                continue;
+            if (result == null) result = new ArrayList<>();
+            result.addAll(entry.getValue());
+        }
+        return result == null ? Collections.emptyList() : Collections.unmodifiableList(result);
+    }
+
+    List<Credential> getDeleted() {
+        return Collections.unmodifiableList(deletedCredentials);
+    }
+}
@@ -19,6 +19,7 @@ package io.siggi.credentialserver.credential;
 import io.siggi.credentialserver.credential.password.CredentialTypePassword;
 import io.siggi.credentialserver.credential.totp.CredentialTypeTOTP;
 import io.siggi.credentialserver.credential.webauthn.CredentialTypeWebAuthn;
+import io.siggi.credentialserver.storage.UserProjection;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -56,6 +57,17 @@ public abstract class CredentialType<T extends Credential> {
 
     public abstract T finishLogin(User user, String data);
 
+    /**
+     * Get the parts of a user a step of registering or logging in needs,
+     * which by default are the credentials of this type and the sessions.
+     *
+     * @param registration whether it is a registration step
+     * @param start        whether it is the start step
+     */
+    public UserProjection getProjection(boolean registration, boolean start) {
+        return UserProjection.credentials(getType()).and(UserProjection.SESSIONS);
+    }
+
     public abstract T deserialize(String data, UUID uuid, String name, long useCount, long lastUse, long expires);
 
     public abstract Class<T> getTypeClass();
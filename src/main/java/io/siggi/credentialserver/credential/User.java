@@ -28,13 +28,22 @@ import java.util.Set;
 import java.util.UUID;
 
 public final class User {
+    /**
+     * Passed as the version of a user to save it whatever version is stored.
+     */
+    public static final long ANY_VERSION = -1L;
+
+    // first, so storage can find it without reading the whole user
+    private long version = 0L;
     private final Map<String, String> variables = new HashMap<>();
     private transient final Set<String> changedVariables = new HashSet<>();
     private final List<Credential> credentials = new ArrayList<>();
     private final Map<String, CredentialSession> credentialSessions = new HashMap<>();
+    private transient CredentialStore credentialStore;
     transient UserNamespace namespace;
     transient UUID uuid;
     transient boolean changed = false;
+    transient boolean partial = false;
 
     public String getDisplayName() {
         String name = getVariable("name");
@@ -56,6 +65,29 @@ public final class User {
         return uuid;
     }
 
+    /**
+     * Check whether only part of this user was loaded from storage.
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * Get the version of this user in storage when it was loaded, 0 if it
+     * was not stored yet. Saving fails if the stored version has changed
+     * since.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the version, for storage backends after loading or saving a user.
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public String getVariable(String key) {
         return variables.get(key);
     }
@@ -79,52 +111,90 @@ public final class User {
     }
 
     public <T extends Credential> List<T> getCredentials(Class<T> type) {
-        List<T> list = new ArrayList<>();
-        for (Iterator<Credential> it = credentials.iterator(); it.hasNext(); ) {
-            Credential credential = it.next();
-            if (credential == null) {
-                it.remove();
-                continue;
-            }
-            if (type.isAssignableFrom(credential.getClass())) {
-                list.add((T) credential);
-            }
-        }
-        return list;
+        return (List<T>) credentialStore().ofClass(type);
     }
 
     public <T extends Credential> List<T> getCredentials(String type) {
-        List<T> list = new ArrayList<>();
-        for (Iterator<Credential> it = credentials.iterator(); it.hasNext(); ) {
-            Credential credential = it.next();
-            if (credential == null) {
-                it.remove();
-                continue;
-            }
-            if (type.equals(credential.getType())) {
-                list.add((T) credential);
-            }
-        }
-        return list;
+        return (List<T>) credentialStore().ofType(type);
     }
 
     public Credential getCredential(UUID uuid) {
         if (uuid == null)
             return null;
-        for (Credential credential : credentials) {
-            if (credential.getUUID().equals(uuid)) {
-                return credential;
-            }
-        }
-        return null;
+        return credentialStore().get(uuid);
+    }
+
+    /**
+     * Get the credentials deleted since this user was loaded, so the storage
+     * can remove them.
+     */
+    public List<Credential> getDeletedCredentials() {
+        return credentialStore().getDeleted();
     }
 
     public void addCredential(Credential credential) {
-        credentials.add(credential);
+        credentialStore().add(credential);
         credential.user = this;
         credential.markAsChanged();
     }
 
+    void removeCredential(Credential credential) {
+        credentialStore().remove(credential);
+    }
+
+    private CredentialStore credentialStore() {
+        if (credentialStore == null)
+            credentialStore = new CredentialStore(credentials);
+        return credentialStore;
+    }
+
+    void initialize(UserNamespace namespace, UUID uuid, boolean partial) {
+        this.namespace = namespace;
+        this.uuid = uuid;
+        this.partial = partial;
+        credentialStore();
+        for (Credential credential : credentials) {
+            credential.user = this;
+        }
+        for (CredentialSession session : credentialSessions.values()) {
+            session.user = this;
+        }
+    }
+
+    /**
+     * Delete every credential with an expiry time before now.
+     *
+     * @return the number of credentials deleted
+     */
+    public int removeExpiredCredentials(long now) {
+        int removed = 0;
+        for (Credential credential : new ArrayList<>(credentials)) {
+            if (credential.getExpires() > 0L && credential.getExpires() < now) {
+                credential.user = this;
+                credential.delete();
+                removed += 1;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove every session with an expiry time before now.
+     *
+     * @return the number of sessions removed
+     */
+    public int removeExpiredSessions(long now) {
+        int removed = 0;
+        for (Iterator<CredentialSession> it = credentialSessions.values().iterator(); it.hasNext(); ) {
+            if (it.next().getExpiry() < now) {
+                it.remove();
+                removed += 1;
+            }
+        }
+        if (removed > 0) markAsChanged();
+        return removed;
+    }
+
     public CredentialSession getCredentialSession(String type, boolean registration, long validityPeriod, long expireEarlyPeriod) {
         long now = System.currentTimeMillis();
         String key = type + "-" + registration;
@@ -148,6 +218,21 @@ public final class User {
         changed = true;
     }
 
+    /**
+     * Mark every variable, credential and session as changed, so that the
+     * whole user is written when saved to a storage that only writes changes.
+     */
+    public void markAllAsChanged() {
+        changedVariables.addAll(variables.keySet());
+        for (Credential credential : credentials) {
+            credential.markAsChanged();
+        }
+        for (CredentialSession session : credentialSessions.values()) {
+            session.markAsChanged();
+        }
+        markAsChanged();
+    }
+
     public void markAsNotChanged() {
         changed = false;
         for (Credential credential : credentials) {
@@ -158,9 +243,11 @@ public final class User {
         }
     }
 
-    public boolean hasChanged() {
-        boolean value = changed;
+    public void markAsSaved() {
         changed = false;
-        return value;
+    }
+
+    public boolean hasChanged() {
+        return changed;
     }
 }
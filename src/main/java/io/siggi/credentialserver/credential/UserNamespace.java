@@ -17,18 +17,30 @@
 package io.siggi.credentialserver.credential;
 
 import io.siggi.credentialserver.CredentialServer;
+import io.siggi.credentialserver.admission.AdmissionControl;
+import io.siggi.credentialserver.admission.Deadline;
 import io.siggi.credentialserver.credential.webauthn.WebAuthn;
+import io.siggi.credentialserver.profiling.Profiling;
+import io.siggi.credentialserver.profiling.RequestTimer;
+import io.siggi.credentialserver.profiling.SlowRequestLog;
+import io.siggi.credentialserver.profiling.Span;
+import io.siggi.credentialserver.storage.ExpirySweeper;
 import io.siggi.credentialserver.storage.Storage;
 import io.siggi.credentialserver.storage.StorageException;
-import io.siggi.credentialserver.storage.StorageFile;
-import io.siggi.credentialserver.storage.StorageMySQL;
+import io.siggi.credentialserver.storage.UserProjection;
+import io.siggi.credentialserver.storage.VersionConflictException;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class UserNamespace {
     private final CredentialServer server;
@@ -36,6 +48,13 @@ public final class UserNamespace {
     private final File directory;
     private final Storage storage;
     private final WebAuthn webAuthn;
+    private final ExpirySweeper sweeper;
+    private final int updateRetries;
+    private final boolean serverTiming;
+    private final SlowRequestLog slowRequestLog;
+    private final AdmissionControl admissionControl;
+    private final AtomicLong versionConflicts = new AtomicLong();
+    private final AtomicLong failedUpdates = new AtomicLong();
 
     public UserNamespace(CredentialServer server, String name, File directory) {
         this.server = server;
@@ -58,18 +77,18 @@ public final class UserNamespace {
         } else {
             this.webAuthn = null;
         }
-        String storageBackend = configuration.getProperty("storage");
-        if (storageBackend == null) storageBackend = "file";
-        switch (storageBackend) {
-            case "file":
-                this.storage = new StorageFile(new File(directory, "users"), server.tmpDirectory);
-                break;
-            case "mysql":
-                this.storage = new StorageMySQL(configuration);
-                break;
-            default:
-                throw new RuntimeException("Unknown storage backend " + storageBackend);
-        }
+        this.storage = Storage.create(configuration, directory);
+        this.sweeper = new ExpirySweeper(name, storage,
+                configuration.getProperty("sweep", "false").equals("true"),
+                Long.parseLong(configuration.getProperty("sweep-interval", "1000")),
+                Integer.parseInt(configuration.getProperty("sweep-batch", "100")),
+                Long.parseLong(configuration.getProperty("sweep-pass-interval", "3600000")));
+        this.updateRetries = Integer.parseInt(configuration.getProperty("update-retries", "5"));
+        this.serverTiming = configuration.getProperty("server-timing", "false").equals("true");
+        this.slowRequestLog = new SlowRequestLog(
+                Long.parseLong(configuration.getProperty("slow-request-threshold", "0")),
+                Integer.parseInt(configuration.getProperty("slow-request-log-rate", "10")));
+        this.admissionControl = new AdmissionControl(configuration);
     }
 
     public String getName() {
@@ -81,20 +100,116 @@ public final class UserNamespace {
     }
 
     public User readUser(UUID uuid) throws StorageException {
-        User user = storage.readUser(uuid);
-        user.namespace = this;
-        user.uuid = uuid;
-        for (Credential credential : user.getCredentials()) {
-            credential.user = user;
-        }
-        for (CredentialSession session : user.getCredentialSessions()) {
-            session.user = user;
+        return readUser(uuid, UserProjection.ALL);
+    }
+
+    public User readUser(UUID uuid, UserProjection projection) throws StorageException {
+        long start = RequestTimer.begin();
+        try (Span span = Profiling.storage("read", storage.getBackend().getClass().getSimpleName())) {
+            User user = storage.readUser(uuid, projection);
+            user.initialize(this, uuid, !projection.isComplete());
+            return user;
+        } finally {
+            RequestTimer.end(RequestTimer.Phase.LOAD, start);
         }
-        return user;
+    }
+
+    public CompletableFuture<User> readUserAsync(UUID uuid, UserProjection projection) {
+        return storage.readUserAsync(uuid, projection).thenApply(user -> {
+            user.initialize(this, uuid, !projection.isComplete());
+            return user;
+        });
     }
 
     public void saveUser(User user) throws StorageException {
         if (!user.hasChanged()) return;
-        storage.saveUser(user.uuid, user);
+        Deadline.check("persist");
+        long start = RequestTimer.begin();
+        try (Span span = Profiling.storage("write", storage.getBackend().getClass().getSimpleName())) {
+            Storage.await(saveUserAsync(user));
+        } finally {
+            RequestTimer.end(RequestTimer.Phase.PERSIST, start);
+        }
+    }
+
+    public CompletableFuture<Void> saveUserAsync(User user) {
+        if (!user.hasChanged()) return CompletableFuture.completedFuture(null);
+        return storage.saveUserAsync(user.uuid, user).thenRun(user::markAsSaved);
+    }
+
+    /**
+     * Read a user, apply an update to it and save it. If the user was saved
+     * by someone else in between, the update is applied again to the user
+     * as it is now, up to the configured number of retries.
+     *
+     * @return the result of the update that was saved
+     */
+    public <T> T updateUser(UUID uuid, UserProjection projection, UserUpdate<T> update) throws StorageException {
+        for (int attempt = 0; ; attempt++) {
+            User user = readUser(uuid, projection);
+            T result = update.apply(user);
+            try {
+                saveUser(user);
+                return result;
+            } catch (VersionConflictException e) {
+                versionConflicts.incrementAndGet();
+                if (attempt >= updateRetries) {
+                    failedUpdates.incrementAndGet();
+                    throw e;
+                }
+            }
+            // spread out the retries of updates that keep colliding
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(1 << Math.min(attempt, 6)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Whether responses to requests for users in this namespace carry a
+     * Server-Timing header.
+     */
+    public boolean isServerTimingEnabled() {
+        return serverTiming;
+    }
+
+    public SlowRequestLog getSlowRequestLog() {
+        return slowRequestLog;
+    }
+
+    /**
+     * Whether requests for users in this namespace need to be timed.
+     */
+    public boolean isRequestTimingEnabled() {
+        return serverTiming || slowRequestLog.isEnabled();
+    }
+
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public ExpirySweeper getSweeper() {
+        return sweeper;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(storage.getMetrics());
+        metrics.put("sweeper", sweeper.getMetrics());
+        metrics.put("versionConflicts", versionConflicts.get());
+        metrics.put("failedUpdates", failedUpdates.get());
+        metrics.put("admission", admissionControl.getMetrics());
+        return metrics;
+    }
+
+    public void close() {
+        sweeper.close();
+        storage.close();
     }
 }
@@ -19,6 +19,7 @@ package io.siggi.credentialserver.credential.password;
 import io.siggi.credentialserver.credential.Credential;
 import io.siggi.credentialserver.credential.CredentialType;
 import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.storage.UserProjection;
 
 import java.util.List;
 import java.util.UUID;
@@ -61,6 +62,11 @@ public class CredentialTypePassword extends CredentialType<CredentialPassword> {
         return null;
     }
 
+    @Override
+    public UserProjection getProjection(boolean registration, boolean start) {
+        return UserProjection.credentials(getType());
+    }
+
     @Override
     public CredentialPassword deserialize(String hash, UUID uuid, String name, long useCount, long lastUse, long expires) {
         return new CredentialPassword(uuid, name, useCount, lastUse, expires, hash);
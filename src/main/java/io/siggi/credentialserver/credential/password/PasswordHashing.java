@@ -16,8 +16,11 @@
  */
 package io.siggi.credentialserver.credential.password;
 
+import io.siggi.credentialserver.admission.Deadline;
 import io.siggi.credentialserver.credential.password.algorithm.PBKDF;
 import io.siggi.credentialserver.credential.password.algorithm.Plain;
+import io.siggi.credentialserver.profiling.Profiling;
+import io.siggi.credentialserver.profiling.Span;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -37,6 +40,7 @@ public class PasswordHashing {
     }
 
     public static String hash(char[] password) {
+        Deadline.check("hash");
         return defaultAlgorithm.getName() + ";" + defaultAlgorithm.hash(password);
     }
 
@@ -51,6 +55,9 @@ public class PasswordHashing {
         HashingAlgorithm hashingAlgorithm = algorithms.get(algorithm);
         if (hashingAlgorithm == null)
             return false;
-        return hashingAlgorithm.verify(password, hash);
+        Deadline.check("hash");
+        try (Span span = Profiling.passwordVerify(algorithm)) {
+            return hashingAlgorithm.verify(password, hash);
+        }
     }
 }
@@ -19,6 +19,9 @@ package io.siggi.credentialserver.credential.totp;
 import io.siggi.credentialserver.credential.CredentialSession;
 import io.siggi.credentialserver.credential.CredentialType;
 import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.profiling.Profiling;
+import io.siggi.credentialserver.profiling.Span;
+import io.siggi.credentialserver.storage.UserProjection;
 
 import java.util.UUID;
 
@@ -27,12 +30,14 @@ public class CredentialTypeTOTP extends CredentialType<CredentialTOTP> {
     private static final long TEN_MINUTES = 60L * 10L * 1000L;
 
     private static boolean validate(long firstStep, long lastStep, byte[] key, String enteredCode) {
-        for (long step = firstStep; step <= lastStep; step++) {
-            if (TOTP.getOTP(step, key).equals(enteredCode)) {
-                return true;
+        try (Span span = Profiling.totpValidate()) {
+            for (long step = firstStep; step <= lastStep; step++) {
+                if (TOTP.getOTP(step, key).equals(enteredCode)) {
+                    return true;
+                }
             }
+            return false;
         }
-        return false;
     }
 
     @Override
@@ -71,6 +76,12 @@ public class CredentialTypeTOTP extends CredentialType<CredentialTOTP> {
         return credential;
     }
 
+    @Override
+    public UserProjection getProjection(boolean registration, boolean start) {
+        // registering only needs the session holding the new key
+        return registration ? UserProjection.SESSIONS : UserProjection.credentials(getType());
+    }
+
     @Override
     public String startLogin(User user) {
         return null;
@@ -18,6 +18,7 @@ package io.siggi.credentialserver.credential.webauthn;
 
 import io.siggi.credentialserver.credential.CredentialType;
 import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.storage.UserProjection;
 
 import java.util.UUID;
 
@@ -43,6 +44,12 @@ public class CredentialTypeWebAuthn extends CredentialType<CredentialWebAuthn> {
         }
     }
 
+    @Override
+    public UserProjection getProjection(boolean registration, boolean start) {
+        // the display name, a variable, names the user to the relying party
+        return super.getProjection(registration, start).and(UserProjection.VARIABLES);
+    }
+
     @Override
     public String startLogin(User user) {
         return user.getNamespace().getWebAuthn().startLogin(user);
@@ -16,14 +16,7 @@
  */
 package io.siggi.credentialserver.credential.webauthn;
 
-import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.yubico.webauthn.AssertionRequest;
 import com.yubico.webauthn.AssertionResult;
 import com.yubico.webauthn.CredentialRepository;
@@ -48,6 +41,8 @@ import com.yubico.webauthn.exception.AssertionFailedException;
 import com.yubico.webauthn.exception.RegistrationFailedException;
 import io.siggi.credentialserver.credential.CredentialSession;
 import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.profiling.Profiling;
+import io.siggi.credentialserver.profiling.Span;
 import io.siggi.credentialserver.util.Util;
 
 import java.io.IOException;
@@ -57,16 +52,29 @@ import java.util.Base64;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class WebAuthn {
 
     private static final long TEN_MINUTES = 60L * 10L * 1000L;
+    private static final int VIEW_LOCK_STRIPES = 64;
 
     private final RelyingParty rp;
-    private final ObjectMapper jsonMapper;
-    private final ThreadLocal<User> userThreadLocal = new ThreadLocal<>();
+    /**
+     * The credential view of the call in progress for each username. The
+     * shared RelyingParty reaches the calling user's credentials through
+     * this map, so calls may run on any thread or executor.
+     */
+    private final Map<String, CredentialView> activeViews = new ConcurrentHashMap<>();
+    /**
+     * Calls for the same username take turns, so the view in activeViews is
+     * always the one of the call the RelyingParty is working for.
+     */
+    private final ReentrantLock[] viewLocks = new ReentrantLock[VIEW_LOCK_STRIPES];
 
     public WebAuthn(String id, String name, Set<String> origins) {
         RelyingPartyIdentity rpIdentity = RelyingPartyIdentity
@@ -80,66 +88,84 @@ public class WebAuthn {
                 .credentialRepository(new CR())
                 .origins(origins)
                 .build();
-
-        this.jsonMapper = new ObjectMapper()
-                .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
-                .setSerializationInclusion(Include.NON_ABSENT)
-                .registerModule(new Jdk8Module());
-    }
-
-    private User getUser() {
-        return userThreadLocal.get();
+        for (int i = 0; i < viewLocks.length; i++) {
+            viewLocks[i] = new ReentrantLock();
+        }
     }
 
-    private CredentialSession getSession(boolean registration, boolean start) {
+    private CredentialSession getSession(User user, boolean registration, boolean start) {
         long expireEarly = start ? TEN_MINUTES / 2L : 0L;
-        return getUser().getCredentialSession("webauthn", registration, TEN_MINUTES, expireEarly);
+        return user.getCredentialSession("webauthn", registration, TEN_MINUTES, expireEarly);
     }
 
-    private byte[] getHandleBytes(String name) {
+    private static byte[] getHandleBytes(String name) {
         return name.getBytes(StandardCharsets.UTF_8);
     }
 
-    private ByteArray getHandle(String name) {
+    private static ByteArray getHandle(String name) {
         return new ByteArray(getHandleBytes(name));
     }
 
-    private String getName(ByteArray handle) {
+    private static String getName(ByteArray handle) {
         return new String(handle.getBytes(), StandardCharsets.UTF_8);
     }
 
-    private PublicKeyCredentialCreationOptions getCredentialCreationOptions(byte[] challenge) {
-        User user = getUser();
+    private ReentrantLock getViewLock(String name) {
+        return viewLocks[(name.hashCode() & 0x7fffffff) % VIEW_LOCK_STRIPES];
+    }
+
+    /**
+     * Make the user's credentials the ones the RelyingParty sees for its
+     * name until the view is closed. Must be closed on the same thread.
+     */
+    private CredentialView openView(User user) {
+        CredentialView view = new CredentialView(user);
+        getViewLock(view.name).lock();
+        activeViews.put(view.name, view);
+        return view;
+    }
+
+    private void closeView(CredentialView view) {
+        activeViews.remove(view.name, view);
+        getViewLock(view.name).unlock();
+    }
+
+    private PublicKeyCredentialCreationOptions getCredentialCreationOptions(User user, byte[] challenge) {
         String name = user.getUUID().toString();
         String displayName = user.getDisplayName();
         ByteArray userHandle = getHandle(name);
-        PublicKeyCredentialCreationOptions credentialCreationOptions = rp.startRegistration(
-                StartRegistrationOptions
-                        .builder()
-                        .user(
-                                UserIdentity.builder()
-                                        .name(name)
-                                        .displayName(displayName)
-                                        .id(userHandle)
-                                        .build()
-                        )
-                        .build()
-        );
+        PublicKeyCredentialCreationOptions credentialCreationOptions;
+        try (Span span = Profiling.webAuthn("startRegistration")) {
+            credentialCreationOptions = rp.startRegistration(
+                    StartRegistrationOptions
+                            .builder()
+                            .user(
+                                    UserIdentity.builder()
+                                            .name(name)
+                                            .displayName(displayName)
+                                            .id(userHandle)
+                                            .build()
+                            )
+                            .build()
+            );
+        }
         if (challenge != null) {
             credentialCreationOptions = credentialCreationOptions.toBuilder().challenge(new ByteArray(challenge)).build();
         }
         return credentialCreationOptions;
     }
 
-    private AssertionRequest getAssertionRequest(byte[] challenge) {
-        User user = getUser();
+    private AssertionRequest getAssertionRequest(User user, byte[] challenge) {
         String name = user.getUUID().toString();
         ByteArray userHandle = getHandle(name);
-        AssertionRequest assertionRequest = rp.startAssertion(StartAssertionOptions.builder()
-                .username(Optional.of(name))
-                .userHandle(userHandle)
-                .build()
-        );
+        AssertionRequest assertionRequest;
+        try (Span span = Profiling.webAuthn("startAssertion")) {
+            assertionRequest = rp.startAssertion(StartAssertionOptions.builder()
+                    .username(Optional.of(name))
+                    .userHandle(userHandle)
+                    .build()
+            );
+        }
         if (challenge != null) {
             assertionRequest = assertionRequest.toBuilder()
                     .publicKeyCredentialRequestOptions(
@@ -153,17 +179,16 @@ public class WebAuthn {
     }
 
     public String startRegistration(User user) {
+        CredentialView view = openView(user);
         try {
-            userThreadLocal.set(user);
-
-            CredentialSession session = getSession(true, true);
+            CredentialSession session = getSession(user, true, true);
 
             PublicKeyCredentialCreationOptions credentialCreationOptions;
             try {
                 byte[] challenge = Util.unhex(session.getData());
-                credentialCreationOptions = getCredentialCreationOptions(challenge);
+                credentialCreationOptions = getCredentialCreationOptions(user, challenge);
             } catch (NullPointerException e) {
-                credentialCreationOptions = getCredentialCreationOptions(null);
+                credentialCreationOptions = getCredentialCreationOptions(user, null);
                 session.setData(Util.hex(credentialCreationOptions.getChallenge().getBytes()));
             }
             try {
@@ -172,34 +197,35 @@ public class WebAuthn {
                 throw new RuntimeException(jpe);
             }
         } finally {
-            userThreadLocal.remove();
+            closeView(view);
         }
     }
 
     public CredentialWebAuthn finishRegistration(User user, String json)
             throws IOException, RegistrationFailedException {
+        CredentialView view = openView(user);
         try {
-            userThreadLocal.set(user);
             String name = user.getDisplayName();
-            CredentialSession session = getSession(true, false);
-
-            json = fixResultJson(json, false);
+            CredentialSession session = getSession(user, true, false);
 
             PublicKeyCredentialCreationOptions credentialCreationOptions;
             try {
-                credentialCreationOptions = getCredentialCreationOptions(Util.unhex(session.getData()));
+                credentialCreationOptions = getCredentialCreationOptions(user, Util.unhex(session.getData()));
             } catch (Exception e) {
                 return null;
             }
 
             PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> credential
-                    = PublicKeyCredential.parseRegistrationResponseJson(json);
+                    = WebAuthnJson.readRegistrationResponse(json);
             FinishRegistrationOptions registration = FinishRegistrationOptions.builder()
                     .request(credentialCreationOptions)
                     .response(credential)
                     .build();
 
-            RegistrationResult result = rp.finishRegistration(registration);
+            RegistrationResult result;
+            try (Span span = Profiling.webAuthn("finishRegistration")) {
+                result = rp.finishRegistration(registration);
+            }
             PublicKeyCredentialDescriptor id = result.getKeyId();
             ByteArray pubKeyCose = result.getPublicKeyCose();
 
@@ -209,112 +235,69 @@ public class WebAuthn {
             session.delete();
             return credentialWebAuthn;
         } finally {
-            userThreadLocal.remove();
+            closeView(view);
         }
     }
 
     public String startLogin(User user) {
+        CredentialView view = openView(user);
         try {
-            userThreadLocal.set(user);
-
-            CredentialSession session = getSession(false, true);
+            CredentialSession session = getSession(user, false, true);
 
             AssertionRequest request;
             try {
                 byte[] challenge = Util.unhex(session.getData());
-                request = getAssertionRequest(challenge);
+                request = getAssertionRequest(user, challenge);
             } catch (NullPointerException e) {
-                request = getAssertionRequest(null);
+                request = getAssertionRequest(user, null);
                 session.setData(Util.hex(request.getPublicKeyCredentialRequestOptions().getChallenge().getBytes()));
             }
             try {
-                return fixRequestJson(jsonMapper.writeValueAsString(request));
+                return WebAuthnJson.writeAssertionRequest(request);
             } catch (JsonProcessingException jpe) {
                 throw new RuntimeException(jpe);
             }
         } finally {
-            userThreadLocal.remove();
+            closeView(view);
         }
     }
 
     public CredentialWebAuthn finishLogin(User user, String json) {
+        CredentialView view = openView(user);
         try {
-            userThreadLocal.set(user);
-            CredentialSession session = getSession(false, false);
-
-            json = fixResultJson(json, true);
+            CredentialSession session = getSession(user, false, false);
 
             AssertionRequest request;
             try {
-                request = getAssertionRequest(Util.unhex(session.getData()));
+                request = getAssertionRequest(user, Util.unhex(session.getData()));
             } catch (Exception e) {
                 return null;
             }
 
             PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> pkc
-                    = PublicKeyCredential.parseAssertionResponseJson(json);
-
-            AssertionResult result = rp.finishAssertion(FinishAssertionOptions.builder()
-                    .request(request)
-                    .response(pkc)
-                    .build());
+                    = WebAuthnJson.readAssertionResponse(json, Base64.getEncoder().encodeToString(getHandleBytes(view.name)));
+
+            AssertionResult result;
+            try (Span span = Profiling.webAuthn("finishAssertion")) {
+                result = rp.finishAssertion(FinishAssertionOptions.builder()
+                        .request(request)
+                        .response(pkc)
+                        .build());
+            }
 
             if (result.isSuccess()) {
                 session.delete();
-                List<RegisteredCredentialData> data = retrieve(getUser().getUUID().toString());
-                for (RegisteredCredentialData credential : data) {
-                    if (credential.registeredCredential.getCredentialId().equals(result.getCredential().getCredentialId())) {
-                        credential.credential.recordUse();
-                        return credential.credential;
-                    }
+                RegisteredCredentialData credential = view.find(user.getUUID().toString(), result.getCredential().getCredentialId());
+                if (credential != null) {
+                    credential.credential.recordUse();
+                    return credential.credential;
                 }
             }
             return null;
         } catch (AssertionFailedException | IOException e) {
             return null;
         } finally {
-            userThreadLocal.remove();
-        }
-    }
-
-    private String fixRequestJson(String json) {
-        // The browser side WebAuthn API requires the key to be publicKey
-        // and not publicKeyCredentialRequestOptions
-        JsonObject object = JsonParser.parseString(json).getAsJsonObject();
-        if (object.has("publicKeyCredentialRequestOptions") && !object.has("publicKey")) {
-            object.add("publicKey", object.get("publicKeyCredentialRequestOptions"));
-            object.remove("publicKeyCredentialRequestOptions");
-            return object.toString();
-        } else {
-            return json;
-        }
-    }
-
-    private String fixResultJson(String json, boolean login) {
-        JsonObject object = JsonParser.parseString(json).getAsJsonObject();
-        boolean didAFix = false;
-        if (!object.has("clientExtensionResults")) {
-            // The Yubico WebAuthn API doesn't like clientExtensionResults being missing
-            // so we just add it as an empty object if it's missing.
-            object.add("clientExtensionResults", new JsonObject());
-            didAFix = true;
-        }
-        if (login && object.has("response")) {
-            // The Yubico WebAuthn API requires a userHandle in the response
-            // The Ledger FIDO U2F app returns a response with a null
-            // userHandle however.
-            JsonElement response = object.get("response");
-            if (response instanceof JsonObject) {
-                JsonObject responseObject = (JsonObject) response;
-                if (!responseObject.has("userHandle") || responseObject.get("userHandle").isJsonNull()) {
-                    responseObject.addProperty("userHandle", Base64.getEncoder().encodeToString(getHandleBytes(getUser().getDisplayName())));
-                }
-            }
-        }
-        if (didAFix) {
-            return object.toString();
-        } else {
-            return json;
+            closeView(view);
         }
     }
 
@@ -323,22 +306,11 @@ public class WebAuthn {
         return serialize(rc);
     }
 
-    private List<RegisteredCredentialData> retrieve(String name) {
-        List<RegisteredCredentialData> results = new ArrayList<>();
-        if (!name.equals(getUser().getDisplayName())) {
-            return results;
-        }
-        for (CredentialWebAuthn credential : getUser().getCredentials(CredentialWebAuthn.class)) {
-            results.add(new RegisteredCredentialData(credential, deserialize(credential.key)));
-        }
-        return results;
-    }
-
-    private String serialize(RegisteredCredential rc) {
+    private static String serialize(RegisteredCredential rc) {
         return rc.getCredentialId().getHex() + "/" + rc.getPublicKeyCose().getHex() + "/" + rc.getUserHandle().getHex() + "/" + rc.getSignatureCount();
     }
 
-    private RegisteredCredential deserialize(String string) {
+    private static RegisteredCredential deserialize(String string) {
         String[] split = string.split("/", 5);
         ByteArray credentialId = new ByteArray(Util.unhex(split[0]));
         ByteArray publicKeyCose = new ByteArray(Util.unhex(split[1]));
@@ -352,13 +324,13 @@ public class WebAuthn {
                 .build();
     }
 
-    private PublicKeyCredentialDescriptor toCredentialDescriptor(RegisteredCredential rc) {
+    private static PublicKeyCredentialDescriptor toCredentialDescriptor(RegisteredCredential rc) {
         return PublicKeyCredentialDescriptor.builder()
                 .id(rc.getCredentialId())
                 .build();
     }
 
-    private RegisteredCredential toRegisteredCredential(ByteArray userHandle, PublicKeyCredentialDescriptor pkcd, ByteArray pubKeyCose) {
+    private static RegisteredCredential toRegisteredCredential(ByteArray userHandle, PublicKeyCredentialDescriptor pkcd, ByteArray pubKeyCose) {
         return RegisteredCredential.builder()
                 .credentialId(pkcd.getId())
                 .userHandle(userHandle)
@@ -376,12 +348,46 @@ public class WebAuthn {
         }
     }
 
+    /**
+     * The WebAuthn credentials of one user, parsed once per call.
+     */
+    private static class CredentialView {
+        private final String name;
+        private final List<RegisteredCredentialData> credentials = new ArrayList<>();
+
+        private CredentialView(User user) {
+            this.name = user.getDisplayName();
+            for (CredentialWebAuthn credential : user.getCredentials(CredentialWebAuthn.class)) {
+                credentials.add(new RegisteredCredentialData(credential, deserialize(credential.key)));
+            }
+        }
+
+        private List<RegisteredCredentialData> retrieve(String name) {
+            if (!name.equals(this.name)) {
+                return Collections.emptyList();
+            }
+            return credentials;
+        }
+
+        private RegisteredCredentialData find(String name, ByteArray credentialId) {
+            for (RegisteredCredentialData credential : retrieve(name)) {
+                if (credential.registeredCredential.getCredentialId().equals(credentialId)) {
+                    return credential;
+                }
+            }
+            return null;
+        }
+    }
+
     private class CR implements CredentialRepository {
 
         @Override
         public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
             HashSet<PublicKeyCredentialDescriptor> results = new HashSet<>();
-            for (RegisteredCredentialData credential : retrieve(username)) {
+            CredentialView view = activeViews.get(username);
+            if (view == null)
+                return results;
+            for (RegisteredCredentialData credential : view.retrieve(username)) {
                 results.add(toCredentialDescriptor(credential.registeredCredential));
             }
             return results;
@@ -399,13 +405,14 @@ public class WebAuthn {
 
         @Override
         public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
-            List<RegisteredCredentialData> credentials = retrieve(getName(userHandle));
-            for (RegisteredCredentialData credential : credentials) {
-                if (credential.registeredCredential.getCredentialId().equals(credentialId)) {
-                    return Optional.of(credential.registeredCredential);
-                }
-            }
-            return Optional.empty();
+            String username = getName(userHandle);
+            CredentialView view = activeViews.get(username);
+            if (view == null)
+                return Optional.empty();
+            RegisteredCredentialData credential = view.find(username, credentialId);
+            if (credential == null)
+                return Optional.empty();
+            return Optional.of(credential.registeredCredential);
         }
 
         @Override
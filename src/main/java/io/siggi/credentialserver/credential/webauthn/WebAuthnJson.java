@@ -0,0 +1,117 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.credential.webauthn;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+
+import java.io.IOException;
+
+/**
+ * Converts WebAuthn JSON between the browser and the Yubico library, applying
+ * the compatibility rewrites directly on Jackson trees so that every message
+ * is parsed and written only once.
+ */
+final class WebAuthnJson {
+
+    private static final ObjectMapper requestMapper = new ObjectMapper()
+            .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
+            .setSerializationInclusion(Include.NON_ABSENT)
+            .registerModule(new Jdk8Module());
+
+    // Configured like the mapper the Yubico library uses in
+    // PublicKeyCredential.parse*Json, which is not part of its public API
+    private static final ObjectMapper responseMapper = JsonMapper.builder()
+            .configure(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS, true)
+            .serializationInclusion(Include.NON_ABSENT)
+            .defaultBase64Variant(Base64Variants.MODIFIED_FOR_URL)
+            .addModule(new Jdk8Module())
+            .build();
+
+    private static final ObjectReader registrationReader = responseMapper.readerFor(
+            new TypeReference<PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs>>() {
+            }
+    );
+
+    private static final ObjectReader assertionReader = responseMapper.readerFor(
+            new TypeReference<PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs>>() {
+            }
+    );
+
+    private WebAuthnJson() {
+    }
+
+    static String writeAssertionRequest(AssertionRequest request) throws JsonProcessingException {
+        ObjectNode object = requestMapper.valueToTree(request);
+        // The browser side WebAuthn API requires the key to be publicKey
+        // and not publicKeyCredentialRequestOptions
+        if (object.has("publicKeyCredentialRequestOptions") && !object.has("publicKey")) {
+            object.set("publicKey", object.remove("publicKeyCredentialRequestOptions"));
+        }
+        return requestMapper.writeValueAsString(object);
+    }
+
+    static PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> readRegistrationResponse(String json) throws IOException {
+        ObjectNode object = readResponse(json);
+        return registrationReader.readValue(object);
+    }
+
+    static PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> readAssertionResponse(String json, String defaultUserHandle) throws IOException {
+        ObjectNode object = readResponse(json);
+        JsonNode response = object.get("response");
+        if (response instanceof ObjectNode) {
+            // The Yubico WebAuthn API requires a userHandle in the response
+            // The Ledger FIDO U2F app returns a response with a null
+            // userHandle however.
+            ObjectNode responseObject = (ObjectNode) response;
+            JsonNode userHandle = responseObject.get("userHandle");
+            if (userHandle == null || userHandle.isNull()) {
+                responseObject.put("userHandle", defaultUserHandle);
+            }
+        }
+        return assertionReader.readValue(object);
+    }
+
+    private static ObjectNode readResponse(String json) throws IOException {
+        JsonNode node = responseMapper.readTree(json);
+        if (!(node instanceof ObjectNode))
+            throw new IOException("Expected a JSON object");
+        ObjectNode object = (ObjectNode) node;
+        if (!object.has("clientExtensionResults")) {
+            // The Yubico WebAuthn API doesn't like clientExtensionResults being missing
+            // so we just add it as an empty object if it's missing.
+            object.putObject("clientExtensionResults");
+        }
+        return object;
+    }
+}
@@ -0,0 +1,307 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs every request to a file without making requests wait for the disk.
+ * <p>
+ * Request threads copy their entry into a slot of a fixed ring buffer,
+ * claiming it with a single compare-and-set, and a single writer thread
+ * formats the entries and writes them in batches. If the writer falls so
+ * far behind that the ring is full, entries are dropped and counted rather
+ * than blocking requests; the count is written to the log as a
+ * {@code #dropped} line.
+ * <p>
+ * Each line holds tab separated fields, with {@code -} for a missing
+ * field:
+ * <pre>
+ * time namespace user action type result micros bytesIn bytesOut
+ * </pre>
+ * where time is in milliseconds since the epoch and micros is how long the
+ * request took. The log is rotated when it reaches a size or an age, and
+ * only the most recent rotated logs are kept.
+ */
+public final class AccessLog implements AutoCloseable {
+    private static final String HEADER = "#fields: time namespace user action type result micros bytesIn bytesOut\n";
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+    private static final int BATCH = 256;
+
+    private final File file;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final int keep;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread writer;
+    private final StringBuilder line = new StringBuilder(256);
+    private long head;
+    private OutputStream out;
+    private long fileBytes;
+    private long fileOpened;
+    private long droppedReported;
+    private volatile boolean closed;
+
+    /**
+     * @param file         the log file, whose directory is created if needed
+     * @param capacity     how many entries may wait for the writer, rounded
+     *                     up to a power of two
+     * @param maxBytes     rotate the log once it is this large, or 0 never
+     * @param maxAgeMillis rotate the log once it is this old, or 0 never
+     * @param keep         how many rotated logs to keep
+     */
+    public AccessLog(File file, int capacity, long maxBytes, long maxAgeMillis, int keep) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.keep = keep;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null)
+            directory.mkdirs();
+        open();
+        this.writer = new Thread(this::writeLoop, "AccessLog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Add an entry to the log. This never blocks; if the log is too far
+     * behind, the entry is dropped.
+     *
+     * @param latencyNanos how long the request took
+     */
+    public void log(long time, String namespace, String user, String action, String type, String result,
+                    long latencyNanos, long bytesIn, long bytesOut) {
+        Slot slot;
+        long position;
+        while (true) {
+            position = tail.get();
+            slot = slots[(int) position & mask];
+            long sequence = slot.sequence;
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1L))
+                    break;
+            } else if (sequence < position || closed) {
+                // the writer has not emptied this slot since the last lap
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        slot.time = time;
+        slot.namespace = namespace;
+        slot.user = user;
+        slot.action = action;
+        slot.type = type;
+        slot.result = result;
+        slot.latencyNanos = latencyNanos;
+        slot.bytesIn = bytesIn;
+        slot.bytesOut = bytesOut;
+        // publish the entry to the writer
+        slot.sequence = position + 1L;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write the entries already logged and close the log.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            try {
+                int count = drain();
+                if (count > 0)
+                    continue;
+                reportDropped();
+                out.flush();
+                if (closed) {
+                    if (drain() == 0)
+                        break;
+                    continue;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            } catch (IOException e) {
+                e.printStackTrace();
+                // wait before trying the disk again, dropping what arrives
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1L));
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write up to a batch of entries.
+     *
+     * @return how many entries were written
+     */
+    private int drain() throws IOException {
+        int count = 0;
+        while (count < BATCH) {
+            Slot slot = slots[(int) head & mask];
+            if (slot.sequence != head + 1L)
+                break;
+            line.setLength(0);
+            line.append(slot.time).append('\t');
+            appendField(slot.namespace);
+            appendField(slot.user);
+            appendField(slot.action);
+            appendField(slot.type);
+            appendField(slot.result);
+            line.append(TimeUnit.NANOSECONDS.toMicros(slot.latencyNanos)).append('\t')
+                    .append(slot.bytesIn).append('\t')
+                    .append(slot.bytesOut).append('\n');
+            slot.namespace = slot.user = slot.action = slot.type = slot.result = null;
+            // hand the slot back to the producers for the next lap
+            slot.sequence = head + slots.length;
+            head++;
+            count++;
+            write(line.toString());
+            written.incrementAndGet();
+        }
+        return count;
+    }
+
+    private void appendField(String value) {
+        if (value == null || value.isEmpty()) {
+            line.append('-');
+        } else {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                // keep every entry on one line with the same number of fields
+                line.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+            }
+        }
+        line.append('\t');
+    }
+
+    private void reportDropped() throws IOException {
+        long droppedNow = dropped.get();
+        if (droppedNow == droppedReported)
+            return;
+        write("#dropped " + (droppedNow - droppedReported) + " at " + System.currentTimeMillis() + "\n");
+        droppedReported = droppedNow;
+    }
+
+    private void write(String text) throws IOException {
+        if ((maxBytes > 0L && fileBytes >= maxBytes)
+                || (maxAgeMillis > 0L && System.currentTimeMillis() - fileOpened >= maxAgeMillis)) {
+            rotate();
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        fileBytes += bytes.length;
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file, true), 65536);
+        fileBytes = file.length();
+        fileOpened = System.currentTimeMillis();
+        if (fileBytes == 0L) {
+            byte[] header = HEADER.getBytes(StandardCharsets.UTF_8);
+            out.write(header);
+            fileBytes += header.length;
+        }
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File rotated = new File(file.getPath() + "." + suffix);
+        for (int i = 1; rotated.exists(); i++) {
+            rotated = new File(file.getPath() + "." + suffix + "-" + i);
+        }
+        if (!file.renameTo(rotated))
+            System.err.println("Unable to rotate " + file);
+        deleteOldLogs();
+        open();
+    }
+
+    private void deleteOldLogs() {
+        File directory = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        File[] rotated = directory.listFiles((dir, name) -> name.startsWith(prefix));
+        if (rotated == null || rotated.length <= keep)
+            return;
+        // the suffixes sort by time
+        Arrays.sort(rotated, (a, b) -> a.getName().compareTo(b.getName()));
+        for (int i = 0; i < rotated.length - keep; i++) {
+            rotated[i].delete();
+        }
+    }
+
+    private static final class Slot {
+        /**
+         * The position the slot may next be claimed for, or one past the
+         * position of the entry it holds once the entry is published.
+         */
+        volatile long sequence;
+        long time;
+        String namespace;
+        String user;
+        String action;
+        String type;
+        String result;
+        long latencyNanos;
+        long bytesIn;
+        long bytesOut;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Records the shape of the traffic to /users, for replaying it against a
+ * test server.
+ * <p>
+ * Only what describes the traffic is recorded: when each request arrived,
+ * the namespace, action and credential type, how it turned out and how
+ * large the request and response were. Request bodies are never
+ * recorded, so no password, code or key reaches the capture. Users are
+ * recorded as a keyed hash, with a key that exists only in memory while
+ * capturing, so requests for the same user can be told apart from other
+ * users but not traced back to them.
+ * <p>
+ * The file starts with {@link #MAGIC} and the time capturing started in
+ * milliseconds since the epoch, followed by one record per request:
+ * <pre>
+ * varint  microseconds from the start of capturing to the request arriving
+ * string  namespace
+ * string  action
+ * string  credential type
+ * string  result
+ * 8 bytes user hash
+ * varint  bytes in
+ * varint  bytes out
+ * varint  microseconds the request took
+ * </pre>
+ * Strings are references to a table built up as the file is written: 0
+ * for none, the index of a string seen before plus one, or the next index
+ * plus one followed by the new string's length and UTF-8 bytes. Since the
+ * strings come from requests, the table is capped, and strings that are
+ * too long or arrive once it is full are recorded as {@link #OTHER}.
+ * Records are written in the order requests finish, so arrival times may
+ * go backwards slightly.
+ * <p>
+ * Requests are handed to a writer thread through a bounded queue, and
+ * dropped and counted when it is full, so requests never wait for the
+ * disk. A capture already at the path when capturing starts is renamed
+ * with the time as a suffix rather than overwritten.
+ */
+public final class TrafficCapture implements AutoCloseable {
+    public static final byte[] MAGIC = "CSTRAFC1".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Recorded in place of strings that don't fit in the string table.
+     */
+    public static final String OTHER = "(other)";
+    private static final int MAX_STRINGS = 1024;
+    private static final int MAX_STRING_LENGTH = 64;
+
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private final Mac userHash;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final BlockingQueue<Request> queue;
+    private final Thread writer;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long lastFlush = System.nanoTime();
+    private volatile boolean closed;
+
+    public TrafficCapture(File file) throws IOException {
+        this(file, 65536);
+    }
+
+    /**
+     * @param capacity how many requests may wait for the writer
+     */
+    public TrafficCapture(File file, int capacity) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null)
+            directory.mkdirs();
+        if (file.length() > 0L)
+            keepPreviousCapture(file);
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        try {
+            userHash = Mac.getInstance("HmacSHA256");
+            userHash.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to hash users", e);
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        out.write(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        queue = new ArrayBlockingQueue<>(capacity);
+        writer = new Thread(this::writeLoop, "TrafficCapture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static void keepPreviousCapture(File file) {
+        String suffix = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(file.lastModified()));
+        File previous = new File(file.getPath() + "." + suffix);
+        for (int i = 1; previous.exists(); i++) {
+            previous = new File(file.getPath() + "." + suffix + "-" + i);
+        }
+        if (!file.renameTo(previous))
+            System.err.println("Unable to keep the previous capture " + file);
+    }
+
+    /**
+     * Record a request. This never blocks; if the writer is too far behind,
+     * the request is dropped.
+     *
+     * @param arrivalNanos the {@link System#nanoTime()} the request arrived
+     * @param latencyNanos how long the request took
+     */
+    public void record(long arrivalNanos, String namespace, String user, String action, String type,
+                       String result, long bytesIn, long bytesOut, long latencyNanos) {
+        if (closed || !queue.offer(new Request(arrivalNanos, namespace, user, action, type, result,
+                bytesIn, bytesOut, latencyNanos))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write the requests already recorded and close the capture.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Request request;
+            try {
+                request = queue.poll(100L, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (request == null && closed)
+                break;
+            try {
+                if (request != null) {
+                    write(request);
+                    recorded.incrementAndGet();
+                }
+                long now = System.nanoTime();
+                if (request == null || now - lastFlush > TimeUnit.SECONDS.toNanos(1L)) {
+                    out.flush();
+                    lastFlush = now;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write(Request request) throws IOException {
+        writeVarint(TimeUnit.NANOSECONDS.toMicros(Math.max(0L, request.arrivalNanos - startNanos)));
+        writeString(request.namespace);
+        writeString(request.action);
+        writeString(request.type);
+        writeString(request.result);
+        out.write(userHash.doFinal((request.namespace + "/" + request.user).getBytes(StandardCharsets.UTF_8)), 0, 8);
+        writeVarint(request.bytesIn);
+        writeVarint(request.bytesOut);
+        writeVarint(TimeUnit.NANOSECONDS.toMicros(request.latencyNanos));
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarint(0L);
+            return;
+        }
+        Integer index = strings.get(value);
+        if (index != null) {
+            writeVarint(index + 1L);
+            return;
+        }
+        // leave room for OTHER once the table fills up
+        if (!value.equals(OTHER) && (value.length() > MAX_STRING_LENGTH || strings.size() >= MAX_STRINGS - 1)) {
+            writeString(OTHER);
+            return;
+        }
+        index = strings.size();
+        strings.put(value, index);
+        writeVarint(index + 1L);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        value = Math.max(0L, value);
+        while ((value & ~0x7FL) != 0L) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static final class Request {
+        private final long arrivalNanos;
+        private final String namespace;
+        private final String user;
+        private final String action;
+        private final String type;
+        private final String result;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long latencyNanos;
+
+        private Request(long arrivalNanos, String namespace, String user, String action, String type, String result,
+                        long bytesIn, long bytesOut, long latencyNanos) {
+            this.arrivalNanos = arrivalNanos;
+            this.namespace = namespace;
+            this.user = user;
+            this.action = action;
+            this.type = type;
+            this.result = result;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * One recorded request.
+     */
+    public static final class Entry {
+        public final long offsetMicros;
+        public final String namespace;
+        public final String action;
+        public final String type;
+        public final String result;
+        public final long user;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long latencyMicros;
+
+        Entry(long offsetMicros, String namespace, String action, String type, String result, long user,
+              long bytesIn, long bytesOut, long latencyMicros) {
+            this.offsetMicros = offsetMicros;
+            this.namespace = namespace;
+            this.action = action;
+            this.type = type;
+            this.result = result;
+            this.user = user;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.latencyMicros = latencyMicros;
+        }
+    }
+
+    /**
+     * Reads a capture back.
+     */
+    public static final class Reader implements AutoCloseable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private final List<String> strings = new ArrayList<>();
+
+        public Reader(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                this.in.close();
+                throw new IOException("Not a traffic capture");
+            }
+            startMillis = this.in.readLong();
+        }
+
+        /**
+         * Get the time capturing started in milliseconds since the epoch.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * Read the next request.
+         *
+         * @return the request, or null at the end of the capture
+         */
+        public Entry next() throws IOException {
+            int first = in.read();
+            if (first == -1)
+                return null;
+            try {
+                long offsetMicros = readVarint(first);
+                String namespace = readString();
+                String action = readString();
+                String type = readString();
+                String result = readString();
+                long user = in.readLong();
+                long bytesIn = readVarint(in.readUnsignedByte());
+                long bytesOut = readVarint(in.readUnsignedByte());
+                long latencyMicros = readVarint(in.readUnsignedByte());
+                return new Entry(offsetMicros, namespace, action, type, result, user, bytesIn, bytesOut, latencyMicros);
+            } catch (EOFException e) {
+                // the capture ended partway through a record
+                return null;
+            }
+        }
+
+        /**
+         * Read every remaining request, in the order they arrived.
+         */
+        public List<Entry> readAll() throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            Entry entry;
+            while ((entry = next()) != null) {
+                entries.add(entry);
+            }
+            entries.sort((a, b) -> Long.compare(a.offsetMicros, b.offsetMicros));
+            return entries;
+        }
+
+        private String readString() throws IOException {
+            long reference = readVarint(in.readUnsignedByte());
+            if (reference == 0L)
+                return null;
+            int index = (int) (reference - 1L);
+            if (index < strings.size())
+                return strings.get(index);
+            if (index != strings.size())
+                throw new IOException("Corrupt string table");
+            byte[] bytes = new byte[(int) readVarint(in.readUnsignedByte())];
+            in.readFully(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        private long readVarint(int first) throws IOException {
+            long value = first & 0x7F;
+            int shift = 7;
+            int b = first;
+            while ((b & 0x80) != 0) {
+                b = in.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            }
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.profiling;
+
+/**
+ * Marks where requests spend their time, as JDK Flight Recorder events.
+ * <p>
+ * This is the version for Java 8, which has no Flight Recorder API, and
+ * profiles nothing. The jar carries a Java 11 version of this class in
+ * META-INF/versions/11 that emits the events, so the same jar runs
+ * everywhere and is profiled where it can be.
+ * <p>
+ * Spans are used with try-with-resources:
+ * <pre>
+ * try (Span span = Profiling.phase("parse")) {
+ *     ...
+ * }
+ * </pre>
+ * Spans opened on a thread inside a request span are tagged with its
+ * namespace, action and credential type.
+ */
+public final class Profiling {
+    private static final Span NONE = () -> {
+    };
+
+    private Profiling() {
+    }
+
+    /**
+     * Whether spans are recorded at all in this runtime.
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * Start handling a request to /users on this thread.
+     */
+    public static Span request(String namespace, String action) {
+        return NONE;
+    }
+
+    /**
+     * Set the credential type of the request on this thread, once the
+     * request has been parsed far enough to know it.
+     */
+    public static void setCredentialType(String credentialType) {
+    }
+
+    /**
+     * Start a phase of the request on this thread, such as parsing the
+     * request, performing the action or serializing the response.
+     */
+    public static Span phase(String phase) {
+        return NONE;
+    }
+
+    /**
+     * Start waiting for storage.
+     *
+     * @param operation read or write
+     * @param backend   the storage class
+     */
+    public static Span storage(String operation, String backend) {
+        return NONE;
+    }
+
+    /**
+     * Start checking a password against its hash.
+     */
+    public static Span passwordVerify(String algorithm) {
+        return NONE;
+    }
+
+    /**
+     * Start checking a TOTP code.
+     */
+    public static Span totpValidate() {
+        return NONE;
+    }
+
+    /**
+     * Start a call to the WebAuthn relying party.
+     *
+     * @param operation the RelyingParty method
+     */
+    public static Span webAuthn(String operation) {
+        return NONE;
+    }
+}
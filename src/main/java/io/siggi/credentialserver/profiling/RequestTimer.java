@@ -0,0 +1,156 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.profiling;
+
+/**
+ * Adds up the time a request spends in each phase, for the Server-Timing
+ * header and the slow request log.
+ * <p>
+ * A timer is started for the current thread, and code that may run inside
+ * a timed request marks its phases with {@link #begin()} and
+ * {@link #end(Phase, long)}, which do nothing when no timer is running.
+ * Phases that run more than once, such as loading a user again after a
+ * version conflict, add up.
+ */
+public final class RequestTimer {
+    private static final ThreadLocal<RequestTimer> current = new ThreadLocal<>();
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    public enum Phase {
+        PARSE("parse"),
+        LOAD("load"),
+        CREDENTIAL("credential"),
+        PERSIST("persist"),
+        SERIALIZE("serialize");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    private static final Phase[] phases = Phase.values();
+
+    private final long start = System.nanoTime();
+    private final long[] phaseNanos = new long[phases.length];
+    private long end = NOT_TIMED;
+
+    private RequestTimer() {
+    }
+
+    /**
+     * Start timing a request on this thread.
+     */
+    public static RequestTimer start() {
+        RequestTimer timer = new RequestTimer();
+        current.set(timer);
+        return timer;
+    }
+
+    /**
+     * Stop timing the request and detach the timer from this thread.
+     */
+    public void stop() {
+        if (end == NOT_TIMED)
+            end = System.nanoTime();
+        if (current.get() == this)
+            current.remove();
+    }
+
+    /**
+     * Mark the start of a phase.
+     *
+     * @return the value to pass to {@link #end(Phase, long)}
+     */
+    public static long begin() {
+        return current.get() == null ? NOT_TIMED : System.nanoTime();
+    }
+
+    /**
+     * Mark the end of a phase.
+     *
+     * @param begin what {@link #begin()} returned at the start of the phase
+     */
+    public static void end(Phase phase, long begin) {
+        if (begin == NOT_TIMED)
+            return;
+        RequestTimer timer = current.get();
+        if (timer != null)
+            timer.phaseNanos[phase.ordinal()] += System.nanoTime() - begin;
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * Get the time since the timer started, or until it stopped.
+     */
+    public long getTotalNanos() {
+        return (end == NOT_TIMED ? System.nanoTime() : end) - start;
+    }
+
+    /**
+     * Get the timings as a Server-Timing header value, such as
+     * {@code parse;dur=0.041, load;dur=1.210, ..., total;dur=1.874}.
+     */
+    public String toServerTiming() {
+        StringBuilder header = new StringBuilder(128);
+        for (Phase phase : phases) {
+            header.append(phase.metricName).append(";dur=");
+            appendMillis(header, phaseNanos[phase.ordinal()]);
+            header.append(", ");
+        }
+        header.append("total;dur=");
+        appendMillis(header, getTotalNanos());
+        return header.toString();
+    }
+
+    /**
+     * Get the timings in the form {@code parse=0.041 load=1.210 ...}.
+     */
+    public String toLogString() {
+        StringBuilder line = new StringBuilder(128);
+        for (Phase phase : phases) {
+            if (line.length() > 0)
+                line.append(' ');
+            line.append(phase.metricName).append('=');
+            appendMillis(line, phaseNanos[phase.ordinal()]);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Append a duration in milliseconds with three decimal places, without
+     * the cost of formatting a double.
+     */
+    static void appendMillis(StringBuilder builder, long nanos) {
+        long micros = Math.max(0L, nanos) / 1000L;
+        long fraction = micros % 1000L;
+        builder.append(micros / 1000L).append('.');
+        if (fraction < 100L)
+            builder.append('0');
+        if (fraction < 10L)
+            builder.append('0');
+        builder.append(fraction);
+    }
+}
@@ -0,0 +1,78 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.profiling;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs requests that took longer than a threshold, with the time each
+ * phase took. At most a set number are logged each second, so a slow
+ * period does not also flood the log; the number left out is logged with
+ * the next request that is.
+ */
+public final class SlowRequestLog {
+    private final long thresholdNanos;
+    private final int perSecond;
+    private long currentSecond;
+    private int loggedThisSecond;
+    private long suppressed;
+
+    /**
+     * @param thresholdMillis how long a request may take without being
+     *                        logged, or 0 to log nothing
+     * @param perSecond       the most requests to log each second
+     */
+    public SlowRequestLog(long thresholdMillis, int perSecond) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.perSecond = perSecond;
+    }
+
+    public boolean isEnabled() {
+        return thresholdNanos > 0L;
+    }
+
+    /**
+     * Log a finished request if it was slow.
+     */
+    public void record(String namespace, String action, RequestTimer timer) {
+        long totalNanos = timer.getTotalNanos();
+        if (!isEnabled() || totalNanos < thresholdNanos)
+            return;
+        long suppressedBefore;
+        synchronized (this) {
+            long second = System.nanoTime() / 1000000000L;
+            if (second != currentSecond) {
+                currentSecond = second;
+                loggedThisSecond = 0;
+            }
+            if (loggedThisSecond >= perSecond) {
+                suppressed++;
+                return;
+            }
+            loggedThisSecond++;
+            suppressedBefore = suppressed;
+            suppressed = 0L;
+        }
+        StringBuilder line = new StringBuilder(160);
+        line.append("Slow request: ").append(namespace).append(' ').append(action).append(' ');
+        RequestTimer.appendMillis(line, totalNanos);
+        line.append(" ms (").append(timer.toLogString()).append(')');
+        if (suppressedBefore > 0L)
+            line.append(", ").append(suppressedBefore).append(" more not logged");
+        System.err.println(line);
+    }
+}
@@ -18,6 +18,7 @@ package io.siggi.credentialserver.serialization;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.TypeAdapter;
@@ -88,7 +89,15 @@ public final class Serialization {
         return (pretty ? gsonPretty : gson).toJson(object);
     }
 
+    public static JsonElement serializeToTree(Object object) {
+        return gson.toJsonTree(object);
+    }
+
     public static <T> T deserialize(String json, Class<T> type) {
         return gson.fromJson(json, type);
     }
+
+    public static <T> T deserialize(JsonElement json, Class<T> type) {
+        return gson.fromJson(json, type);
+    }
 }
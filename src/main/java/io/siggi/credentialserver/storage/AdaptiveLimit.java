@@ -0,0 +1,232 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A limit on calls in flight to storage that follows how fast storage is.
+ * <p>
+ * Latencies are averaged over short windows and compared to a long running
+ * average. While the short average stays within the tolerance of the long
+ * one the limit grows by about its square root each window in which it was
+ * used, and when storage slows down the limit shrinks in proportion, by at
+ * most half each window. The long average follows slowly so that a slower
+ * storage becomes the new normal instead of holding the limit down
+ * forever. This finds the limit without knowing anything about the host
+ * the storage runs on.
+ * <p>
+ * Calls over the limit wait in a bounded queue. Calls that find the queue
+ * full, or that waited longer than the queue timeout, are shed. Waiting
+ * calls are only looked at when a call finishes, so {@link #shedExpired()}
+ * has to be called now and then for them to be shed while storage is stuck.
+ */
+final class AdaptiveLimit {
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100L);
+    private static final int WINDOW_SAMPLES = 10;
+    private static final double LONG_WINDOWS = 100.0;
+    private static final double TOLERANCE = 1.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final long queueTimeoutNanos;
+    private final LongSupplier clock;
+    private volatile double limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Queue<Waiter> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong sampleNanos = new AtomicLong();
+    private final AtomicInteger sampleCount = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicBoolean updating = new AtomicBoolean();
+    private volatile long windowStart;
+    private volatile double shortLatency;
+    private volatile double longLatency;
+
+    AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, int maxQueued, long queueTimeoutMillis) {
+        this(initialLimit, minLimit, maxLimit, maxQueued, queueTimeoutMillis, System::nanoTime);
+    }
+
+    /**
+     * @param clock gives the time in nanoseconds, like {@link System#nanoTime()}
+     */
+    AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, int maxQueued, long queueTimeoutMillis, LongSupplier clock) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.maxQueued = maxQueued;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.clock = clock;
+        this.windowStart = clock.getAsLong();
+    }
+
+    /**
+     * Run a call now if the limit allows it, otherwise once a call in flight
+     * finishes. The call must eventually call {@link #release(long)}.
+     *
+     * @param start the call to run
+     * @param shed  run instead of the call if it is shed
+     */
+    void submit(Runnable start, Runnable shed) {
+        if (tryAcquire()) {
+            start.run();
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            this.shed.incrementAndGet();
+            shed.run();
+            return;
+        }
+        queue.add(new Waiter(start, shed, clock.getAsLong()));
+        // a call may have finished before this one was queued
+        drain();
+    }
+
+    /**
+     * Finish a call and sample how long it took.
+     *
+     * @param nanos how long the call took from when it started
+     */
+    void release(long nanos) {
+        inFlight.decrementAndGet();
+        sample(nanos);
+        drain();
+    }
+
+    /**
+     * Shed the calls that have waited longer than the queue timeout.
+     */
+    void shedExpired() {
+        long now = clock.getAsLong();
+        Waiter waiter;
+        while ((waiter = queue.peek()) != null && now - waiter.queuedAt > queueTimeoutNanos) {
+            // drain may have taken it first
+            if (!queue.remove(waiter))
+                continue;
+            queued.decrementAndGet();
+            shed.incrementAndGet();
+            waiter.shed.run();
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit)
+                return false;
+            if (inFlight.compareAndSet(current, current + 1)) {
+                int peak;
+                while (current + 1 > (peak = peakInFlight.get())) {
+                    if (peakInFlight.compareAndSet(peak, current + 1))
+                        break;
+                }
+                return true;
+            }
+        }
+    }
+
+    private void drain() {
+        while (!queue.isEmpty() && tryAcquire()) {
+            Waiter waiter = queue.poll();
+            if (waiter == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            if (clock.getAsLong() - waiter.queuedAt > queueTimeoutNanos) {
+                inFlight.decrementAndGet();
+                shed.incrementAndGet();
+                waiter.shed.run();
+                continue;
+            }
+            waiter.start.run();
+        }
+    }
+
+    private void sample(long nanos) {
+        sampleNanos.addAndGet(nanos);
+        int count = sampleCount.incrementAndGet();
+        long now = clock.getAsLong();
+        if (count < WINDOW_SAMPLES || now - windowStart < WINDOW_NANOS)
+            return;
+        if (!updating.compareAndSet(false, true))
+            return;
+        try {
+            count = sampleCount.getAndSet(0);
+            long total = sampleNanos.getAndSet(0L);
+            int peak = peakInFlight.getAndSet(inFlight.get());
+            windowStart = now;
+            if (count == 0)
+                return;
+            double latency = (double) total / count;
+            shortLatency = latency;
+            double longAverage = longLatency == 0.0 ? latency : longLatency + (latency - longLatency) / LONG_WINDOWS;
+            // after a slow period, come back to normal quickly
+            if (longAverage > latency * 2.0)
+                longAverage = latency * 2.0;
+            longLatency = longAverage;
+
+            double current = limit;
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longAverage / latency));
+            double next = current * gradient;
+            // only grow a limit that was used
+            if (peak * 2 >= (int) current)
+                next += Math.sqrt(current);
+            limit = Math.max(minLimit, Math.min(maxLimit, next));
+        } finally {
+            updating.set(false);
+        }
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("limit", (int) limit);
+        metrics.put("inFlight", inFlight.get());
+        metrics.put("queued", queued.get());
+        metrics.put("shed", shed.get());
+        metrics.put("latencyMs", shortLatency / 1000000.0);
+        metrics.put("baselineLatencyMs", longLatency / 1000000.0);
+        return metrics;
+    }
+
+    private static final class Waiter {
+        private final Runnable start;
+        private final Runnable shed;
+        private final long queuedAt;
+
+        private Waiter(Runnable start, Runnable shed, long queuedAt) {
+            this.start = start;
+            this.shed = shed;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replaces files atomically by writing a temporary file and moving it over
+ * the target, so readers see either the old or the new contents.
+ * <p>
+ * With {@link Durability#ALWAYS} the temporary file is flushed before the
+ * move and the target's directory after it. With {@link Durability#BATCH}
+ * writes are handed to a background thread that flushes, moves and flushes
+ * the directories of everything written since its last round, so one
+ * directory flush covers every file written to it in that round.
+ * <p>
+ * The temporary directory must be on the same filesystem as the targets.
+ */
+final class AtomicFileWriter {
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File tmpDirectory;
+    private final Durability durability;
+    private final long syncInterval;
+    private final Thread syncThread;
+    private List<PendingWrite> pending = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong fileSyncs = new AtomicLong();
+    private final AtomicLong directorySyncs = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * @param syncInterval milliseconds between rounds of the background
+     *                     thread in {@link Durability#BATCH}
+     */
+    AtomicFileWriter(File tmpDirectory, Durability durability, long syncInterval) {
+        this.tmpDirectory = tmpDirectory;
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        if (!tmpDirectory.isDirectory())
+            tmpDirectory.mkdirs();
+        // left behind by writes that never completed
+        File[] leftovers = tmpDirectory.listFiles((directory, name) -> name.endsWith(TEMPORARY_SUFFIX));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+        if (durability == Durability.BATCH) {
+            syncThread = new Thread(this::syncLoop, "AtomicFileWriter-" + tmpDirectory.getParentFile().getName());
+            syncThread.setDaemon(true);
+            syncThread.start();
+        } else {
+            syncThread = null;
+        }
+    }
+
+    /**
+     * Replace the target file with the data, creating its directory if
+     * needed, and return once the write is as durable as configured.
+     */
+    void write(File target, byte[] data) throws IOException {
+        long start = System.nanoTime();
+        File parent = target.getParentFile();
+        if (!parent.isDirectory()) {
+            if (!parent.mkdirs() && !parent.isDirectory())
+                throw new IOException("Unable to create " + parent);
+            if (durability != Durability.NONE)
+                syncDirectory(parent.getParentFile());
+        }
+        Path temporary = new File(tmpDirectory, UUID.randomUUID() + TEMPORARY_SUFFIX).toPath();
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            switch (durability) {
+                case NONE:
+                    channel.close();
+                    move(temporary, target);
+                    break;
+                case ALWAYS:
+                    channel.force(false);
+                    fileSyncs.incrementAndGet();
+                    channel.close();
+                    move(temporary, target);
+                    syncDirectory(parent);
+                    break;
+                case BATCH:
+                    awaitBatch(new PendingWrite(channel, temporary, target));
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        bytesWritten.addAndGet(data.length);
+        latency.record(System.nanoTime() - start);
+    }
+
+    private static void move(Path temporary, File target) throws IOException {
+        Files.move(temporary, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Flush a directory so that files moved into it survive a crash. Not
+     * every platform can open a directory, there this does nothing.
+     */
+    private void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+            directorySyncs.incrementAndGet();
+        } catch (IOException e) {
+            // not supported on this platform
+        }
+    }
+
+    private void awaitBatch(PendingWrite write) throws IOException {
+        synchronized (this) {
+            if (closed)
+                throw new IOException("Writer is closed");
+            pending.add(write);
+        }
+        try {
+            write.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(syncInterval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            syncBatch();
+        }
+        syncBatch();
+    }
+
+    private void syncBatch() {
+        List<PendingWrite> batch;
+        synchronized (this) {
+            if (pending.isEmpty())
+                return;
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        batches.incrementAndGet();
+        Set<File> directories = new LinkedHashSet<>();
+        List<PendingWrite> moved = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            try {
+                write.channel.force(false);
+                fileSyncs.incrementAndGet();
+                write.channel.close();
+                move(write.temporary, write.target);
+                directories.add(write.target.getParentFile());
+                moved.add(write);
+            } catch (IOException | RuntimeException e) {
+                // the writer closes and deletes the temporary file
+                write.future.completeExceptionally(e);
+            }
+        }
+        for (File directory : directories) {
+            syncDirectory(directory);
+        }
+        for (PendingWrite write : moved) {
+            write.future.complete(null);
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if (syncThread != null) {
+            syncThread.interrupt();
+            try {
+                syncThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void addMetrics(Map<String, Object> metrics) {
+        metrics.put("durability", durability.name().toLowerCase());
+        metrics.put("writes", latency.getCount());
+        metrics.put("bytesWritten", bytesWritten.get());
+        latency.addMetrics(metrics, "write");
+        metrics.put("fileSyncs", fileSyncs.get());
+        metrics.put("directorySyncs", directorySyncs.get());
+        if (durability == Durability.BATCH) {
+            long batchCount = batches.get();
+            metrics.put("batches", batchCount);
+            metrics.put("averageBatchSize", batchCount == 0L ? 0.0 : (double) fileSyncs.get() / (double) batchCount);
+        }
+    }
+
+    private static final class PendingWrite {
+        private final FileChannel channel;
+        private final Path temporary;
+        private final File target;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingWrite(FileChannel channel, Path temporary, File target) {
+            this.channel = channel;
+            this.temporary = temporary;
+            this.target = target;
+        }
+    }
+}
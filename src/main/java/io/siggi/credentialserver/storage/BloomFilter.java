@@ -0,0 +1,149 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe Bloom filter of UUIDs.
+ */
+public final class BloomFilter {
+    private static final int MAGIC = 0x424c4f4d; // BLOM
+
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+    private final long capacity;
+    private final AtomicLong inserted;
+
+    private BloomFilter(long[] words, int hashCount, long capacity, long inserted) {
+        this.words = new AtomicLongArray(words);
+        this.bitCount = (long) words.length * 64L;
+        this.hashCount = hashCount;
+        this.capacity = capacity;
+        this.inserted = new AtomicLong(inserted);
+    }
+
+    /**
+     * Create a Bloom filter sized to hold the expected number of UUIDs at the
+     * given false positive probability.
+     */
+    public static BloomFilter create(long expectedInsertions, double falsePositiveProbability) {
+        long n = Math.max(1L, expectedInsertions);
+        double ln2 = Math.log(2.0);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveProbability) / (ln2 * ln2));
+        int wordCount = (int) Math.max(1L, (bits + 63L) / 64L);
+        int hashCount = Math.max(1, (int) Math.round((double) wordCount * 64.0 / n * ln2));
+        return new BloomFilter(new long[wordCount], hashCount, n, 0L);
+    }
+
+    public static BloomFilter read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a Bloom filter");
+        int hashCount = in.readInt();
+        long capacity = in.readLong();
+        long inserted = in.readLong();
+        int wordCount = in.readInt();
+        if (hashCount < 1 || wordCount < 1)
+            throw new IOException("Invalid Bloom filter");
+        long[] words = new long[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            words[i] = in.readLong();
+        }
+        return new BloomFilter(words, hashCount, capacity, inserted);
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(hashCount);
+        out.writeLong(capacity);
+        out.writeLong(inserted.get());
+        out.writeInt(words.length());
+        for (int i = 0; i < words.length(); i++) {
+            out.writeLong(words.get(i));
+        }
+    }
+
+    static long mix(long value) {
+        // finalizer from MurmurHash3
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    public void add(UUID uuid) {
+        long hash1 = mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits()));
+        long hash2 = mix(uuid.getLeastSignificantBits() + hash1) | 1L;
+        boolean changed = false;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while (((current = words.get(word)) & mask) == 0L) {
+                if (words.compareAndSet(word, current, current | mask)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (changed) inserted.incrementAndGet();
+    }
+
+    public boolean mightContain(UUID uuid) {
+        long hash1 = mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits()));
+        long hash2 = mix(uuid.getLeastSignificantBits() + hash1) | 1L;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0L)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of UUIDs added, not counting ones that were already
+     * present.
+     */
+    public long getInserted() {
+        return inserted.get();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Estimate the current false positive probability from the fraction of
+     * bits that are set.
+     */
+    public double getEstimatedFalsePositiveProbability() {
+        long set = 0L;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / (double) bitCount, hashCount);
+    }
+}
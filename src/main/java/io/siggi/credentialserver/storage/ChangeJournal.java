@@ -0,0 +1,224 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A journal of saved users shared by every process using a namespace, so
+ * that each process learns which users the others wrote.
+ * <p>
+ * The journal only narrows the window in which a process can serve a user
+ * another process has since written: records are appended after the save
+ * and read on the next poll, so a change reaches the other processes up to
+ * a poll interval later. Readers that must not see stale data rely on the
+ * file check of {@link UserCache} instead.
+ * <p>
+ * The file starts with a generation number followed by records of the user
+ * UUID and the id of the process that wrote it. Every process appends a
+ * record after each save and reads the records added since its last poll.
+ * Access is serialized with file locks. Once the file reaches its maximum
+ * length, the next writer empties it and bumps the generation. Readers that
+ * see a new generation may have missed records and start over from
+ * {@link Listener#reset}.
+ */
+final class ChangeJournal {
+    private static final int HEADER_LENGTH = 8;
+    private static final int RECORD_LENGTH = 24;
+    private static final long MAXIMUM_LENGTH = HEADER_LENGTH + RECORD_LENGTH * 1048576L;
+
+    private final FileChannel channel;
+    private final long processId = new SecureRandom().nextLong();
+    private final Listener listener;
+    private final Object processLock;
+    private final Thread pollThread;
+    private volatile boolean closed = false;
+    private long generation;
+    private long position;
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+
+    /**
+     * @param pollInterval milliseconds between reads of new records
+     * @param processLock  held while the journal is file locked, shared by
+     *                     every journal of the file in this process
+     */
+    ChangeJournal(File file, long pollInterval, Object processLock, Listener listener) throws IOException {
+        this.listener = listener;
+        this.processLock = processLock;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        synchronized (processLock) {
+            try (FileLock lock = channel.lock()) {
+                if (channel.size() < HEADER_LENGTH)
+                    writeHeader(new SecureRandom().nextLong());
+                generation = readHeader();
+                // nothing is cached yet, so earlier records are of no interest
+                position = channel.size();
+            }
+        }
+        pollThread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(pollInterval);
+                    poll();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "ChangeJournal-" + file.getParentFile().getName());
+        pollThread.setDaemon(true);
+        pollThread.start();
+    }
+
+    private long readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                throw new IOException("Journal header is cut short");
+        }
+        return header.getLong(0);
+    }
+
+    private void writeHeader(long newGeneration) throws IOException {
+        channel.truncate(HEADER_LENGTH);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putLong(0, newGeneration);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Record that this process saved a user.
+     */
+    synchronized void append(UUID uuid) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        record.putLong(uuid.getMostSignificantBits());
+        record.putLong(uuid.getLeastSignificantBits());
+        record.putLong(processId);
+        record.flip();
+        synchronized (processLock) {
+            try (FileLock lock = channel.lock()) {
+                long size = channel.size();
+                if (size >= MAXIMUM_LENGTH) {
+                    writeHeader(readHeader() + 1L);
+                    size = HEADER_LENGTH;
+                }
+                while (record.hasRemaining()) {
+                    channel.write(record, size + record.position());
+                }
+            }
+        }
+        appended.incrementAndGet();
+    }
+
+    /**
+     * Read the records added since the last poll and pass the users other
+     * processes saved to the listener.
+     */
+    void poll() throws IOException {
+        List<UUID> changed = new ArrayList<>();
+        boolean reset = false;
+        synchronized (this) {
+            synchronized (processLock) {
+                try (FileLock lock = channel.lock(0L, Long.MAX_VALUE, true)) {
+                    long currentGeneration = readHeader();
+                    long size = channel.size();
+                    if (currentGeneration != generation || size < position) {
+                        generation = currentGeneration;
+                        position = size;
+                        reset = true;
+                    }
+                    while (!reset && size - position >= RECORD_LENGTH) {
+                        int length = (int) Math.min(size - position, RECORD_LENGTH * 4096L) / RECORD_LENGTH * RECORD_LENGTH;
+                        ByteBuffer buffer = ByteBuffer.allocate(length);
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, position + buffer.position()) < 0)
+                                break;
+                        }
+                        buffer.flip();
+                        while (buffer.remaining() >= RECORD_LENGTH) {
+                            UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+                            if (buffer.getLong() != processId)
+                                changed.add(uuid);
+                            position += RECORD_LENGTH;
+                        }
+                    }
+                }
+            }
+        }
+        if (reset) {
+            resets.incrementAndGet();
+            listener.reset();
+        }
+        for (UUID uuid : changed) {
+            listener.changed(uuid);
+        }
+        received.addAndGet(changed.size());
+    }
+
+    void close() {
+        closed = true;
+        pollThread.interrupt();
+        try {
+            pollThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("appended", appended.get());
+        metrics.put("received", received.get());
+        metrics.put("resets", resets.get());
+        return metrics;
+    }
+
+    interface Listener {
+        /**
+         * Another process saved the user.
+         */
+        void changed(UUID uuid);
+
+        /**
+         * Records may have been missed, any user may have changed.
+         */
+        void reset();
+    }
+}
@@ -0,0 +1,119 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Packs the data string of a credential into bytes for storage.
+ * <p>
+ * Credential data is mostly hex, such as WebAuthn keys and password hashes,
+ * separated by short text such as algorithm names, separators and counters.
+ * Long runs of lowercase hex are stored as the bytes they encode, everything
+ * else as UTF-8, so the string comes back exactly as it was while taking
+ * about half the space.
+ * <p>
+ * The packed form is a format byte followed by segments, each a tag byte,
+ * a varint length and the segment bytes.
+ */
+final class CredentialDataCodec {
+    private static final int FORMAT = 1;
+    private static final int TEXT = 0;
+    private static final int HEX = 1;
+    /**
+     * Shorter hex runs are not worth a segment of their own.
+     */
+    private static final int MIN_HEX_RUN = 8;
+
+    private CredentialDataCodec() {
+    }
+
+    static byte[] encode(String data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length() / 2 + 8);
+        out.write(FORMAT);
+        int length = data.length();
+        int textStart = 0;
+        int i = 0;
+        while (i < length) {
+            if (!isLowerHex(data.charAt(i))) {
+                i += 1;
+                continue;
+            }
+            int runEnd = i;
+            while (runEnd < length && isLowerHex(data.charAt(runEnd)))
+                runEnd += 1;
+            int hexEnd = i + ((runEnd - i) & ~1);
+            if (hexEnd - i >= MIN_HEX_RUN) {
+                writeSegment(out, TEXT, data.substring(textStart, i).getBytes(StandardCharsets.UTF_8));
+                writeSegment(out, HEX, Util.unhex(data.substring(i, hexEnd)));
+                textStart = hexEnd;
+            }
+            i = runEnd;
+        }
+        writeSegment(out, TEXT, data.substring(textStart).getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    static String decode(byte[] packed) {
+        if (packed.length == 0 || packed[0] != FORMAT)
+            throw new IllegalArgumentException("Unknown credential data format");
+        StringBuilder data = new StringBuilder(packed.length * 2);
+        int position = 1;
+        while (position < packed.length) {
+            int tag = packed[position++];
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = packed[position++] & 0xff;
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (tag == HEX) {
+                byte[] bytes = new byte[length];
+                System.arraycopy(packed, position, bytes, 0, length);
+                data.append(Util.hex(bytes));
+            } else if (tag == TEXT) {
+                data.append(new String(packed, position, length, StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalArgumentException("Unknown credential data segment " + tag);
+            }
+            position += length;
+        }
+        return data.toString();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int tag, byte[] bytes) {
+        if (bytes.length == 0)
+            return;
+        out.write(tag);
+        int length = bytes.length;
+        while (length >= 0x80) {
+            out.write((length & 0x7f) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static boolean isLowerHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+}
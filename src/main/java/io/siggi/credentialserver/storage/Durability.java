@@ -0,0 +1,42 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.util.Locale;
+
+/**
+ * How long a save waits for its data to reach the disk.
+ */
+public enum Durability {
+    /**
+     * Leave flushing to the operating system.
+     */
+    NONE,
+    /**
+     * Flush before every save returns.
+     */
+    ALWAYS,
+    /**
+     * Flush periodically, saves wait for the next flush so that one flush
+     * covers many saves.
+     */
+    BATCH;
+
+    public static Durability fromString(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,213 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks which users exist in a {@link StorageFile} so that reads of unknown
+ * users can be answered without touching the disk.
+ * <p>
+ * The index is rebuilt by walking the user directories unless a snapshot from
+ * a clean shutdown is available. The snapshot is deleted as soon as it is
+ * loaded, so after a crash the index is always rebuilt rather than trusted.
+ * Until the index is ready, every user is reported as possibly existing.
+ */
+final class ExistenceIndex {
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final long MINIMUM_CAPACITY = 65536L;
+
+    private final List<File> userDirectories;
+    private final File snapshotFile;
+    private volatile BloomFilter filter;
+    private volatile BloomFilter rebuildingFilter;
+    private volatile boolean ready = false;
+    private boolean rebuilding = false;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong definitelyAbsent = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    ExistenceIndex(List<File> userDirectories, File snapshotFile) {
+        this.userDirectories = userDirectories;
+        this.snapshotFile = snapshotFile;
+        BloomFilter snapshot = readSnapshot();
+        if (snapshot != null) {
+            filter = snapshot;
+            ready = true;
+        } else {
+            filter = BloomFilter.create(MINIMUM_CAPACITY, FALSE_POSITIVE_PROBABILITY);
+            rebuild();
+        }
+    }
+
+    private BloomFilter readSnapshot() {
+        if (!snapshotFile.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            return BloomFilter.read(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    /**
+     * Check whether the user might exist. A false result means the user
+     * definitely does not exist.
+     */
+    boolean mightExist(UUID uuid) {
+        if (!ready)
+            return true;
+        queries.incrementAndGet();
+        if (filter.mightContain(uuid))
+            return true;
+        definitelyAbsent.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Record that a user reported as possibly existing was not found.
+     */
+    void recordFalsePositive() {
+        if (ready) falsePositives.incrementAndGet();
+    }
+
+    /**
+     * Add a user, this must be called after the user's file is in place so
+     * that a rebuild running at the same time either sees the file or the
+     * addition.
+     */
+    void add(UUID uuid) {
+        // read in the opposite order to which a rebuild publishes them
+        BloomFilter pending = rebuildingFilter;
+        BloomFilter current = filter;
+        if (pending != null)
+            pending.add(uuid);
+        current.add(uuid);
+        if (ready && current.getInserted() > current.getCapacity())
+            rebuild();
+    }
+
+    /**
+     * Rebuild the index in the background with a capacity fitting the number
+     * of users found.
+     */
+    synchronized void rebuild() {
+        if (rebuilding)
+            return;
+        rebuilding = true;
+        long expected = Math.max(MINIMUM_CAPACITY, filter.getInserted() * 2L);
+        BloomFilter newFilter = BloomFilter.create(expected, FALSE_POSITIVE_PROBABILITY);
+        rebuildingFilter = newFilter;
+        Thread thread = new Thread(() -> {
+            try {
+                for (File userDirectory : userDirectories) {
+                    walk(userDirectory, newFilter);
+                }
+                filter = newFilter;
+                ready = true;
+                rebuilds.incrementAndGet();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                rebuildingFilter = null;
+                synchronized (this) {
+                    rebuilding = false;
+                }
+            }
+        }, "ExistenceIndex-" + snapshotFile.getParentFile().getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void walk(File userDirectory, BloomFilter target) {
+        File[] level1 = userDirectory.listFiles();
+        if (level1 == null)
+            return;
+        for (File directory1 : level1) {
+            File[] level2 = directory1.listFiles();
+            if (level2 == null)
+                continue;
+            for (File directory2 : level2) {
+                String[] files = directory2.list();
+                if (files == null)
+                    continue;
+                for (String file : files) {
+                    if (!file.endsWith(".json"))
+                        continue;
+                    try {
+                        target.add(Util.uuidFromString(file.substring(0, file.length() - 5)));
+                    } catch (IllegalArgumentException e) {
+                        // not a user file
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Save a snapshot so the next start can skip the directory walk.
+     */
+    void close() {
+        if (!ready || rebuildingFilter != null)
+            return;
+        File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            filter.write(out);
+        } catch (IOException e) {
+            temporaryFile.delete();
+            return;
+        }
+        if (!temporaryFile.renameTo(snapshotFile))
+            temporaryFile.delete();
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        BloomFilter current = filter;
+        long absent = definitelyAbsent.get();
+        long falsePositiveCount = falsePositives.get();
+        metrics.put("ready", ready);
+        metrics.put("queries", queries.get());
+        metrics.put("definitelyAbsent", absent);
+        metrics.put("falsePositives", falsePositiveCount);
+        metrics.put("observedFalsePositiveRate", absent + falsePositiveCount == 0L ? 0.0
+                : (double) falsePositiveCount / (double) (absent + falsePositiveCount));
+        metrics.put("estimatedFalsePositiveRate", current.getEstimatedFalsePositiveProbability());
+        metrics.put("inserted", current.getInserted());
+        metrics.put("capacity", current.getCapacity());
+        metrics.put("rebuilds", rebuilds.get());
+        return metrics;
+    }
+}
@@ -0,0 +1,96 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes expired sessions and credentials from a {@link Storage} in the
+ * background, one small batch per step so that it never competes much with
+ * requests.
+ * <p>
+ * When not enabled, passes only run when {@link #trigger()} is called.
+ */
+public final class ExpirySweeper {
+    private final Storage storage;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long passInterval;
+    private final ScheduledExecutorService scheduler;
+    private final SweepStatistics statistics = new SweepStatistics();
+    private volatile long nextPassTime;
+    private volatile boolean running = false;
+
+    /**
+     * @param stepInterval milliseconds between batches
+     * @param batchSize    the most users or rows to handle in one batch
+     * @param passInterval milliseconds from the end of a pass to the start of
+     *                     the next
+     */
+    public ExpirySweeper(String name, Storage storage, boolean enabled, long stepInterval, int batchSize, long passInterval) {
+        this.storage = storage;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.passInterval = passInterval;
+        this.nextPassTime = enabled ? System.currentTimeMillis() : Long.MAX_VALUE;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ExpirySweeper-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::step, stepInterval, stepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void step() {
+        long now = System.currentTimeMillis();
+        if (now < nextPassTime)
+            return;
+        running = true;
+        try {
+            if (storage.sweepExpired(now, batchSize, statistics)) {
+                statistics.passCompleted(now);
+                running = false;
+                nextPassTime = enabled ? now + passInterval : Long.MAX_VALUE;
+            }
+        } catch (Exception e) {
+            statistics.errors.incrementAndGet();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Start a pass now, or let the current one continue if one is running.
+     */
+    public void trigger() {
+        nextPassTime = 0L;
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = statistics.toMap();
+        metrics.put("enabled", enabled);
+        metrics.put("running", running);
+        metrics.put("batchSize", batchSize);
+        return metrics;
+    }
+
+    public void close() {
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,86 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in power of two buckets of nanoseconds, precise enough to
+ * tell apart the cost of different durability settings.
+ */
+final class LatencyHistogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0L)
+            nanos = 0L;
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1L));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, nanos))
+                break;
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the upper bound of the bucket the given fraction of latencies
+     * falls within.
+     */
+    long getPercentile(double fraction) {
+        long target = (long) Math.ceil(count.get() * fraction);
+        if (target == 0L)
+            return 0L;
+        long seen = 0L;
+        for (int i = 0; i < 64; i++) {
+            seen += buckets.get(i);
+            if (seen >= target)
+                return Math.min(max.get(), i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1L);
+        }
+        return max.get();
+    }
+
+    /**
+     * @param prefix the prefix for each metric name, such as read or write
+     */
+    void addMetrics(Map<String, Object> metrics, String prefix) {
+        long countValue = count.get();
+        metrics.put(prefix + "AverageMicros", countValue == 0L ? 0L : TimeUnit.NANOSECONDS.toMicros(total.get() / countValue));
+        metrics.put(prefix + "P50Micros", TimeUnit.NANOSECONDS.toMicros(getPercentile(0.5)));
+        metrics.put(prefix + "P99Micros", TimeUnit.NANOSECONDS.toMicros(getPercentile(0.99)));
+        metrics.put(prefix + "MaxMicros", TimeUnit.NANOSECONDS.toMicros(max.get()));
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("count", count.get());
+        addMetrics(metrics, "latency");
+        return metrics;
+    }
+}
@@ -0,0 +1,104 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the retries of a migration running in the background. Each failure
+ * is logged on one line, and the wait before the next attempt doubles with
+ * every failure in a row up to a limit. After too many failures in a row
+ * the migration gives up until the next start instead of retrying forever
+ * against a database that keeps refusing it.
+ */
+final class MigrationRetry {
+    private static final long INITIAL_DELAY = 1000L;
+    private static final long MAX_DELAY = 600000L;
+    private static final int MAX_FAILURES_IN_A_ROW = 20;
+
+    private final String task;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int maxFailuresInARow;
+    private final AtomicLong failures = new AtomicLong();
+    private int failuresInARow = 0;
+
+    /**
+     * @param task what the migration does, to complete "Unable to ..." in
+     *             the log
+     */
+    MigrationRetry(String task) {
+        this(task, INITIAL_DELAY, MAX_DELAY, MAX_FAILURES_IN_A_ROW);
+    }
+
+    MigrationRetry(String task, long initialDelay, long maxDelay, int maxFailuresInARow) {
+        this.task = task;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxFailuresInARow = maxFailuresInARow;
+    }
+
+    /**
+     * Called by the migration thread after a step went through.
+     */
+    void succeeded() {
+        failuresInARow = 0;
+    }
+
+    /**
+     * Called by the migration thread after a step failed. Logs the failure
+     * and waits before the next attempt.
+     *
+     * @return whether to try again, false when giving up or interrupted
+     */
+    boolean failed(Exception e) {
+        failures.incrementAndGet();
+        failuresInARow += 1;
+        if (failuresInARow >= maxFailuresInARow) {
+            System.err.println("Unable to " + task + ", giving up until the next start after "
+                    + failuresInARow + " failures in a row: " + e);
+            return false;
+        }
+        long delay = getDelay(failuresInARow);
+        System.err.println("Unable to " + task + ", retrying in " + delay + " ms ("
+                + failuresInARow + " failures in a row): " + e);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The wait after the given number of failures in a row.
+     */
+    long getDelay(int failuresInARow) {
+        long delay = initialDelay;
+        for (int i = 1; i < failuresInARow && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxDelay);
+    }
+
+    /**
+     * The number of failures since the start, for metrics.
+     */
+    long getFailures() {
+        return failures.get();
+    }
+}
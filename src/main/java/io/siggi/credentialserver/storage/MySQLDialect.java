@@ -0,0 +1,124 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+
+final class MySQLDialect extends SqlDialect {
+    private final String server;
+    private final String database;
+    private final String username;
+    private final String password;
+
+    MySQLDialect(Properties configuration) {
+        try {
+            Class.forName("com.mysql.cj.jdbc.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("MySQL Driver not available", e);
+        }
+        String server = configuration.getProperty("mysql-server");
+        if (!server.substring(server.indexOf("]") + 1).contains(":")) server += ":3306";
+        this.server = server;
+        database = configuration.getProperty("mysql-database");
+        username = configuration.getProperty("mysql-username");
+        password = configuration.getProperty("mysql-password");
+    }
+
+    @Override
+    public String getName() {
+        return "mysql";
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return DriverManager.getConnection("jdbc:mysql://" + server + "/" + database, username, password);
+    }
+
+    @Override
+    public String upsert(String table, List<String> keyColumns, List<String> columns) {
+        StringBuilder updates = new StringBuilder();
+        for (String column : columns) {
+            if (keyColumns.contains(column)) continue;
+            updates.append(updates.length() == 0 ? "`" : ",`").append(column).append("`=VALUES(`").append(column).append("`)");
+        }
+        return "INSERT INTO `" + table + "` (" + columnList(columns) + ") VALUES (" + placeholders(columns.size()) + ")"
+                + " ON DUPLICATE KEY UPDATE " + updates;
+    }
+
+    @Override
+    public String insertOrIncrement(String table, String keyColumn, String column) {
+        return "INSERT INTO `" + table + "` (`" + keyColumn + "`,`" + column + "`) VALUES (?,1)"
+                + " ON DUPLICATE KEY UPDATE `" + column + "`=`" + column + "`+1";
+    }
+
+    @Override
+    public String insertOrIgnore(String table, List<String> columns) {
+        return "INSERT IGNORE INTO `" + table + "` (" + columnList(columns) + ") VALUES (" + placeholders(columns.size()) + ")";
+    }
+
+    @Override
+    public String deleteLimited(String table, String condition) {
+        return "DELETE FROM `" + table + "` WHERE " + condition + " LIMIT ?";
+    }
+
+    @Override
+    public void createIndex(Connection connection, String table, String index, String column) throws SQLException {
+        try (PreparedStatement findIndex = connection.prepareStatement(
+                "SELECT 1 FROM information_schema.statistics WHERE `table_schema`=DATABASE() AND `table_name`=? AND `index_name`=?"
+        )) {
+            findIndex.setString(1, table);
+            findIndex.setString(2, index);
+            try (ResultSet resultSet = findIndex.executeQuery()) {
+                if (resultSet.next()) return;
+            }
+        }
+        try (PreparedStatement createIndex = connection.prepareStatement(
+                "CREATE INDEX `" + index + "` ON `" + table + "` (`" + column + "`)"
+        )) {
+            createIndex.executeUpdate();
+        }
+    }
+
+    @Override
+    public boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (PreparedStatement findColumn = connection.prepareStatement(
+                "SELECT 1 FROM information_schema.columns WHERE `table_schema`=DATABASE() AND `table_name`=? AND `column_name`=?"
+        )) {
+            findColumn.setString(1, table);
+            findColumn.setString(2, column);
+            try (ResultSet resultSet = findColumn.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    @Override
+    public void addPackedCredentialColumn(Connection connection) throws SQLException {
+        // both are online in current MySQL versions, adding a nullable column is instant
+        try (PreparedStatement addPackedColumn = connection.prepareStatement(
+                "ALTER TABLE `usercredentials` ADD COLUMN `packed` varbinary(4096) NULL, MODIFY `data` varchar(1024) NULL"
+        )) {
+            addPackedColumn.executeUpdate();
+        }
+    }
+}
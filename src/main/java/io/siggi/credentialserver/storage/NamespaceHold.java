@@ -0,0 +1,139 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registers a {@link StorageFile} as a user of its namespace directory.
+ * <p>
+ * A store keeping an {@link ExistenceIndex} answers reads of users it has
+ * not seen with "absent", so it must be the only user of the namespace:
+ * anything created by another process would be invisible to it. Such a
+ * store holds namespace.lock exclusively, every other store holds it
+ * shared. Locks are held by the whole process, so stores opened in the
+ * same process share one hold, and with it the monitors they hold while
+ * taking file locks in the namespace, as the same process taking an
+ * overlapping file lock twice is an error.
+ */
+final class NamespaceHold {
+    private static final Map<File, NamespaceHold> holds = new HashMap<>();
+
+    private final File lockFile;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final boolean exclusive;
+    private final Object[] userLocks = new Object[StorageFile.LOCK_STRIPES];
+    private final Object journalLock = new Object();
+    private int users = 1;
+
+    private NamespaceHold(File lockFile, FileChannel channel, FileLock lock, boolean exclusive) {
+        this.lockFile = lockFile;
+        this.channel = channel;
+        this.lock = lock;
+        this.exclusive = exclusive;
+        for (int i = 0; i < userLocks.length; i++) {
+            userLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Start using a namespace.
+     *
+     * @param wantExclusive whether to try to become the only user of the
+     *                      namespace
+     * @throws IOException if the namespace is held exclusively by someone
+     *                     else, or the lock file can't be opened
+     */
+    static NamespaceHold acquire(File directory, boolean wantExclusive) throws IOException {
+        File lockFile = new File(directory, "namespace.lock").getCanonicalFile();
+        synchronized (holds) {
+            NamespaceHold hold = holds.get(lockFile);
+            if (hold != null) {
+                if (hold.exclusive)
+                    throw new IOException(directory + " is in use by a store with an existence index");
+                hold.users += 1;
+                return hold;
+            }
+            FileChannel channel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = null;
+                boolean exclusive = false;
+                if (wantExclusive) {
+                    lock = channel.tryLock(0L, 1L, false);
+                    exclusive = lock != null;
+                }
+                if (lock == null)
+                    lock = channel.tryLock(0L, 1L, true);
+                if (lock == null)
+                    throw new IOException(directory + " is in use by a process with an existence index");
+                hold = new NamespaceHold(lockFile, channel, lock, exclusive);
+                holds.put(lockFile, hold);
+                return hold;
+            } catch (IOException | OverlappingFileLockException e) {
+                channel.close();
+                if (e instanceof IOException)
+                    throw (IOException) e;
+                throw new IOException("Unable to lock " + lockFile, e);
+            }
+        }
+    }
+
+    /**
+     * Check whether no other store or process is using the namespace.
+     */
+    boolean isExclusive() {
+        return exclusive;
+    }
+
+    /**
+     * Get the monitor to hold while file locking a stripe of users.
+     */
+    Object getUserLock(int stripe) {
+        return userLocks[stripe];
+    }
+
+    /**
+     * Get the monitor to hold while file locking the change journal.
+     */
+    Object getJournalLock() {
+        return journalLock;
+    }
+
+    void release() {
+        synchronized (holds) {
+            users -= 1;
+            if (users > 0)
+                return;
+            holds.remove(lockFile);
+            try {
+                lock.release();
+                channel.close();
+            } catch (IOException e) {
+                // closing the channel drops the lock either way
+            }
+        }
+    }
+}
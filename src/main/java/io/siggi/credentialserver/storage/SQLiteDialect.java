@@ -0,0 +1,122 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * An SQLite database file inside the namespace directory, for a single
+ * server that wants indexed storage without running a database server.
+ * <p>
+ * The database runs in WAL mode so readers never wait for the writer, and
+ * transactions take the write lock when they begin, so saves of the same
+ * user queue up instead of failing halfway through.
+ */
+final class SQLiteDialect extends SqlDialect {
+    private final String url;
+    private final Properties connectionProperties = new Properties();
+
+    SQLiteDialect(File databaseFile, Properties configuration) {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("SQLite Driver not available", e);
+        }
+        url = "jdbc:sqlite:" + databaseFile.getPath();
+        connectionProperties.setProperty("journal_mode", "WAL");
+        connectionProperties.setProperty("synchronous", configuration.getProperty("sqlite-synchronous", "NORMAL"));
+        connectionProperties.setProperty("busy_timeout", configuration.getProperty("sqlite-busy-timeout", "10000"));
+        connectionProperties.setProperty("transaction_mode", "IMMEDIATE");
+    }
+
+    @Override
+    public String getName() {
+        return "sqlite";
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(url, connectionProperties);
+    }
+
+    @Override
+    public String upsert(String table, List<String> keyColumns, List<String> columns) {
+        StringBuilder updates = new StringBuilder();
+        for (String column : columns) {
+            if (keyColumns.contains(column)) continue;
+            updates.append(updates.length() == 0 ? "`" : ",`").append(column).append("`=excluded.`").append(column).append("`");
+        }
+        return "INSERT INTO `" + table + "` (" + columnList(columns) + ") VALUES (" + placeholders(columns.size()) + ")"
+                + " ON CONFLICT (" + columnList(keyColumns) + ") DO UPDATE SET " + updates;
+    }
+
+    @Override
+    public String insertOrIncrement(String table, String keyColumn, String column) {
+        return "INSERT INTO `" + table + "` (`" + keyColumn + "`,`" + column + "`) VALUES (?,1)"
+                + " ON CONFLICT (`" + keyColumn + "`) DO UPDATE SET `" + column + "`=`" + column + "`+1";
+    }
+
+    @Override
+    public String insertOrIgnore(String table, List<String> columns) {
+        return "INSERT OR IGNORE INTO `" + table + "` (" + columnList(columns) + ") VALUES (" + placeholders(columns.size()) + ")";
+    }
+
+    @Override
+    public String deleteLimited(String table, String condition) {
+        return "DELETE FROM `" + table + "` WHERE rowid IN (SELECT rowid FROM `" + table + "` WHERE " + condition + " LIMIT ?)";
+    }
+
+    @Override
+    public void createIndex(Connection connection, String table, String index, String column) throws SQLException {
+        // index names are global in SQLite
+        try (PreparedStatement createIndex = connection.prepareStatement(
+                "CREATE INDEX IF NOT EXISTS `" + table + "_" + index + "` ON `" + table + "` (`" + column + "`)"
+        )) {
+            createIndex.executeUpdate();
+        }
+    }
+
+    @Override
+    public boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (PreparedStatement tableInfo = connection.prepareStatement("PRAGMA table_info(`" + table + "`)");
+             ResultSet resultSet = tableInfo.executeQuery()) {
+            while (resultSet.next()) {
+                if (column.equals(resultSet.getString("name")))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void addPackedCredentialColumn(Connection connection) throws SQLException {
+        // data has allowed null in every credentials table SQLite storage
+        // created, which SQLite could not change without copying the table
+        try (PreparedStatement addPackedColumn = connection.prepareStatement(
+                "ALTER TABLE `usercredentials` ADD COLUMN `packed` varbinary(4096) NULL"
+        )) {
+            addPackedColumn.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.util.Util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One data directory of a {@link StorageFile}, holding users in the
+ * aa/bb/aabb....json layout, along with counters of the I/O done on it.
+ */
+final class Shard {
+    final File userDirectory;
+    final File tmpDirectory;
+    /**
+     * A shard that is no longer configured, users are only read from it
+     * until a rebalance has moved them away.
+     */
+    final boolean draining;
+
+    final AtomicFileWriter writer;
+
+    private final LatencyHistogram reads = new LatencyHistogram();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong moves = new AtomicLong();
+
+    /**
+     * @param syncInterval milliseconds between flushes when the durability
+     *                     is batch
+     */
+    Shard(File userDirectory, File tmpDirectory, boolean draining, Durability durability, long syncInterval) {
+        this.userDirectory = userDirectory;
+        this.tmpDirectory = tmpDirectory;
+        this.draining = draining;
+        this.writer = new AtomicFileWriter(tmpDirectory, draining ? Durability.NONE : durability, syncInterval);
+    }
+
+    String getName() {
+        return userDirectory.getAbsolutePath();
+    }
+
+    File getUserFile(UUID uuid) {
+        String uuidString = Util.uuidToString(uuid);
+        return new File(userDirectory, uuidString.substring(0, 2) + "/" + uuidString.substring(2, 4) + "/" + uuidString + ".json");
+    }
+
+    void recordRead(long bytes, long nanos) {
+        reads.record(nanos);
+        bytesRead.addAndGet(bytes);
+    }
+
+    void recordMove() {
+        moves.incrementAndGet();
+    }
+
+    /**
+     * List the UUIDs of the users in this shard in the order of their hex
+     * strings.
+     */
+    List<UUID> listUsers(UUID startAfter, int limit) {
+        String cursor = startAfter == null ? "" : Util.uuidToString(startAfter);
+        List<UUID> users = new ArrayList<>();
+        for (String directory1 : sortedList(userDirectory)) {
+            if (cursor.length() >= 2 && directory1.compareTo(cursor.substring(0, 2)) < 0)
+                continue;
+            for (String directory2 : sortedList(new File(userDirectory, directory1))) {
+                if (cursor.length() >= 4 && (directory1 + directory2).compareTo(cursor.substring(0, 4)) < 0)
+                    continue;
+                for (String file : sortedList(new File(userDirectory, directory1 + "/" + directory2))) {
+                    if (!file.endsWith(".json"))
+                        continue;
+                    String uuidString = file.substring(0, file.length() - 5);
+                    if (uuidString.compareTo(cursor) <= 0)
+                        continue;
+                    try {
+                        users.add(Util.uuidFromString(uuidString));
+                    } catch (IllegalArgumentException e) {
+                        continue;
+                    }
+                    if (users.size() >= limit)
+                        return users;
+                }
+            }
+        }
+        return users;
+    }
+
+    private static String[] sortedList(File directory) {
+        String[] list = directory.list();
+        if (list == null)
+            return new String[0];
+        Arrays.sort(list);
+        return list;
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("directory", getName());
+        metrics.put("draining", draining);
+        metrics.put("reads", reads.getCount());
+        metrics.put("bytesRead", bytesRead.get());
+        reads.addMetrics(metrics, "read");
+        writer.addMetrics(metrics);
+        metrics.put("moves", moves.get());
+        return metrics;
+    }
+
+    void close() {
+        writer.close();
+    }
+}
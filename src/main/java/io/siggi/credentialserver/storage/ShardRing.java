@@ -0,0 +1,79 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Places users on shards by consistent hashing, so that adding a shard only
+ * moves the users that now belong to it.
+ */
+final class ShardRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final long[] points;
+    private final Shard[] owners;
+
+    ShardRing(List<Shard> shards) {
+        if (shards.isEmpty())
+            throw new IllegalArgumentException("No shards");
+        long[][] nodes = new long[shards.size() * VIRTUAL_NODES][];
+        int count = 0;
+        for (int shard = 0; shard < shards.size(); shard++) {
+            long seed = hash(shards.get(shard).getName());
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                nodes[count++] = new long[]{BloomFilter.mix(seed + i * 0x9e3779b97f4a7c15L), shard};
+            }
+        }
+        Arrays.sort(nodes, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+        points = new long[nodes.length];
+        owners = new Shard[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            points[i] = nodes[i][0];
+            owners[i] = shards.get((int) nodes[i][1]);
+        }
+    }
+
+    private static long hash(String name) {
+        long hash = 0L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash = BloomFilter.mix(hash ^ (b & 0xff));
+        }
+        return hash;
+    }
+
+    /**
+     * Get the shard a user belongs on, the first point on the ring at or
+     * after the user's hash.
+     */
+    Shard get(UUID uuid) {
+        long hash = BloomFilter.mix(uuid.getMostSignificantBits() ^ BloomFilter.mix(uuid.getLeastSignificantBits()));
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[middle], hash) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+}
@@ -0,0 +1,87 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The parts of SQL that differ between the databases {@link StorageJdbc}
+ * runs on. Everything else is written once, with identifiers quoted in
+ * backticks, which every supported database accepts.
+ */
+public abstract class SqlDialect {
+    /**
+     * Get the name of the database, also the prefix of its options in
+     * config.txt.
+     */
+    public abstract String getName();
+
+    public abstract Connection getConnection() throws SQLException;
+
+    /**
+     * Get a statement inserting a row, or replacing the other columns of the
+     * row with the same key. The parameters are the columns in order.
+     */
+    public abstract String upsert(String table, List<String> keyColumns, List<String> columns);
+
+    /**
+     * Get a statement inserting a row with the column set to 1, or adding 1
+     * to the column of the row with the same key. The only parameter is the
+     * key.
+     */
+    public abstract String insertOrIncrement(String table, String keyColumn, String column);
+
+    /**
+     * Get a statement inserting a row unless a row with the same key exists.
+     * The parameters are the columns in order.
+     */
+    public abstract String insertOrIgnore(String table, List<String> columns);
+
+    /**
+     * Get a statement deleting at most the number of rows given as the last
+     * parameter from those matching the condition.
+     */
+    public abstract String deleteLimited(String table, String condition);
+
+    public abstract void createIndex(Connection connection, String table, String index, String column) throws SQLException;
+
+    public abstract boolean hasColumn(Connection connection, String table, String column) throws SQLException;
+
+    /**
+     * Add the {@code packed} column to a credentials table created before it
+     * existed, and let {@code data} be null.
+     */
+    public abstract void addPackedCredentialColumn(Connection connection) throws SQLException;
+
+    static String columnList(List<String> columns) {
+        StringBuilder list = new StringBuilder();
+        for (String column : columns) {
+            list.append(list.length() == 0 ? "`" : ",`").append(column).append("`");
+        }
+        return list.toString();
+    }
+
+    static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        return placeholders.toString();
+    }
+}
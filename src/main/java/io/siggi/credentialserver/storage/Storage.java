@@ -16,12 +16,294 @@
  */
 package io.siggi.credentialserver.storage;
 
+import io.siggi.credentialserver.admission.Deadline;
 import io.siggi.credentialserver.credential.User;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class Storage {
+    /**
+     * Create the storage backend selected in a namespace configuration.
+     *
+     * @param directory the namespace directory
+     */
+    public static Storage create(Properties configuration, File directory) {
+        Storage storage = createBackend(configuration, directory);
+        if (configuration.getProperty("storage-limiter", "false").equals("true"))
+            return new StorageLimiter(storage, configuration);
+        return storage;
+    }
+
+    private static Storage createBackend(Properties configuration, File directory) {
+        String storageBackend = configuration.getProperty("storage");
+        if (storageBackend == null) storageBackend = "file";
+        switch (storageBackend) {
+            case "file":
+                return new StorageFile(directory, configuration);
+            case "mysql":
+                if ("compact".equals(configuration.getProperty("mysql-schema", "tables")))
+                    return new StorageMySQLCompact(configuration);
+                return new StorageMySQL(configuration);
+            case "sqlite":
+                return new StorageJdbc(new SQLiteDialect(new File(directory, "users.db"), configuration), configuration);
+            case "memory":
+                return new StorageMemory(new File(directory, "memory"),
+                        Durability.fromString(configuration.getProperty("memory-durability", "batch")),
+                        Long.parseLong(configuration.getProperty("memory-sync-interval", "10")),
+                        Long.parseLong(configuration.getProperty("memory-snapshot-interval", "300000")));
+            default:
+                throw new RuntimeException("Unknown storage backend " + storageBackend);
+        }
+    }
+
+    /**
+     * Get the backend that stores the users, which is this storage unless it
+     * wraps another.
+     */
+    public Storage getBackend() {
+        return this;
+    }
+
     public abstract User readUser(UUID uuid) throws StorageException;
 
+    /**
+     * Read only the parts of a user described by the projection. Backends
+     * that cannot load a user partially read the whole user.
+     */
+    public User readUser(UUID uuid, UserProjection projection) throws StorageException {
+        return readUser(uuid);
+    }
+
+    /**
+     * Whether a partially loaded user can be saved, writing back only the
+     * parts that were loaded. Backends that replace the whole user refuse
+     * to save one.
+     */
+    public boolean canSavePartialUsers() {
+        return false;
+    }
+
     public abstract void saveUser(UUID uuid, User user) throws StorageException;
+
+    /**
+     * Get the executor the asynchronous methods run the blocking methods on,
+     * or null to run them on the calling thread.
+     */
+    protected Executor getExecutor() {
+        return null;
+    }
+
+    public CompletableFuture<User> readUserAsync(UUID uuid) {
+        return readUserAsync(uuid, UserProjection.ALL);
+    }
+
+    public CompletableFuture<User> readUserAsync(UUID uuid, UserProjection projection) {
+        return call(() -> readUser(uuid, projection));
+    }
+
+    public CompletableFuture<Void> saveUserAsync(UUID uuid, User user) {
+        return call(() -> {
+            saveUser(uuid, user);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Map<UUID, User>> readUsersAsync(Collection<UUID> uuids, UserProjection projection) {
+        List<UUID> uuidList = new ArrayList<>(uuids);
+        List<CompletableFuture<User>> futures = new ArrayList<>(uuidList.size());
+        for (UUID uuid : uuidList) {
+            futures.add(readUserAsync(uuid, projection));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            Map<UUID, User> users = new HashMap<>();
+            for (int i = 0; i < uuidList.size(); i++) {
+                users.put(uuidList.get(i), futures.get(i).join());
+            }
+            return users;
+        });
+    }
+
+    public CompletableFuture<Void> saveUsersAsync(Map<UUID, User> users) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(users.size());
+        for (Map.Entry<UUID, User> entry : users.entrySet()) {
+            futures.add(saveUserAsync(entry.getKey(), entry.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * List the UUIDs of stored users in the order of their hex strings.
+     *
+     * @param startAfter list users after this one, or null to start at the
+     *                   first user
+     * @param limit      the most users to list
+     */
+    public List<UUID> listUsers(UUID startAfter, int limit) throws StorageException {
+        throw new StorageException("Listing users is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Pass every stored user to the scanner in the order of
+     * {@link #listUsers}. Each page of users is read in parallel before it is
+     * handed to the scanner.
+     *
+     * @param startAfter resume after this user, or null to start at the first
+     *                   user
+     */
+    public void scanUsers(UUID startAfter, int pageSize, UserProjection projection, UserScanner scanner) throws StorageException {
+        UUID cursor = startAfter;
+        while (true) {
+            List<UUID> page = listUsers(cursor, pageSize);
+            if (page.isEmpty())
+                return;
+            Map<UUID, User> users = await(readUsersAsync(page, projection));
+            for (UUID uuid : page) {
+                scanner.accept(uuid, users.get(uuid));
+            }
+            cursor = page.get(page.size() - 1);
+            scanner.pageCompleted(cursor);
+            if (page.size() < pageSize)
+                return;
+        }
+    }
+
+    /**
+     * Remove expired sessions and credentials, continuing from where the
+     * previous call stopped and handling at most batchSize users or rows.
+     *
+     * @return true if the pass over the whole storage is complete
+     */
+    public boolean sweepExpired(long now, int batchSize, SweepStatistics statistics) throws StorageException {
+        return true;
+    }
+
+    /**
+     * Remove the expired sessions and credentials of one user, saving the
+     * user only if anything was removed.
+     */
+    protected final void sweepUser(UUID uuid, long now, SweepStatistics statistics) throws StorageException {
+        User user = readUser(uuid);
+        statistics.usersScanned.incrementAndGet();
+        int sessions = user.removeExpiredSessions(now);
+        int credentials = user.removeExpiredCredentials(now);
+        if (sessions == 0 && credentials == 0)
+            return;
+        try {
+            saveUser(uuid, user);
+        } catch (VersionConflictException e) {
+            // changed while we looked at it, the next pass sweeps it
+            return;
+        }
+        statistics.usersUpdated.incrementAndGet();
+        statistics.sessionsRemoved.addAndGet(sessions);
+        statistics.credentialsRemoved.addAndGet(credentials);
+    }
+
+    /**
+     * Get metrics describing this storage, to be serialized as JSON.
+     */
+    public Map<String, Object> getMetrics() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Release any threads or other resources held by this storage.
+     */
+    public void close() {
+    }
+
+    /**
+     * Run a blocking call on the executor, with the deadline of the calling
+     * thread. A call still waiting for a thread when the deadline passes is
+     * not run.
+     */
+    protected final <T> CompletableFuture<T> call(StorageCall<T> call) {
+        Executor executor = getExecutor();
+        if (executor == null) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                Deadline.check("storage");
+                future.complete(call.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+            return future;
+        }
+        Deadline deadline = Deadline.current();
+        return CompletableFuture.supplyAsync(() -> {
+            Deadline previous = Deadline.set(deadline);
+            try {
+                Deadline.check("storage");
+                return call.call();
+            } catch (StorageException e) {
+                throw new CompletionException(e);
+            } finally {
+                Deadline.set(previous);
+            }
+        }, executor);
+    }
+
+    /**
+     * Wait for a future from one of the asynchronous methods, rethrowing the
+     * StorageException it failed with.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws StorageException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+            if (cause instanceof StorageException)
+                throw (StorageException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new StorageException(cause);
+        }
+    }
+
+    /**
+     * Compare UUIDs in the order of their hex strings, the order of
+     * {@link #listUsers}.
+     */
+    protected static int compareUuids(UUID a, UUID b) {
+        int result = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+        if (result != 0)
+            return result;
+        return Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    }
+
+    protected static ExecutorService createExecutor(String name, int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @FunctionalInterface
+    protected interface StorageCall<T> {
+        T call() throws StorageException;
+    }
 }
@@ -16,66 +16,704 @@
  */
 package io.siggi.credentialserver.storage;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import io.siggi.credentialserver.credential.User;
 import io.siggi.credentialserver.serialization.Serialization;
 import io.siggi.credentialserver.util.Util;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Stores each user as a JSON file, spread over one or more data directories.
+ * <p>
+ * Users are placed on data directories by a {@link ShardRing}. The
+ * directories the users were last balanced over are kept in shards.txt in
+ * the namespace directory. When the configured directories differ from it,
+ * reads that miss look through every directory until {@link #rebalance}
+ * has moved each user to where it belongs. Directories that are no longer
+ * configured are drained by the rebalance.
+ */
 public class StorageFile extends Storage {
+    static final int LOCK_STRIPES = 1024;
+    /**
+     * How often a read looks for a user again when its file disappears
+     * between finding and opening it. Users are never deleted, so the file
+     * was moved to another shard by a rebalance, or a stale copy was
+     * removed by a save.
+     */
+    private static final int MOVED_RETRIES = 3;
 
-    private final File userDirectory;
-    private final File tmpDirectory;
+    private final File directory;
+    private final List<Shard> shards;
+    private final ShardRing ring;
+    private final File shardsFile;
+    private final FileChannel lockChannel;
+    /**
+     * Writes the small files about the namespace as a whole, which are
+     * rarely written and always flushed.
+     */
+    private final AtomicFileWriter metadataWriter;
+    private final ExecutorService executor;
+    private final NamespaceHold namespaceHold;
+    private final ExistenceIndex existenceIndex;
+    private final UserCache cache;
+    private final ChangeJournal changeJournal;
+    private volatile boolean rebalancePending;
+    private volatile boolean rebalancing = false;
+    private final AtomicLong rebalanceScanned = new AtomicLong();
+    private final AtomicLong rebalanceMoved = new AtomicLong();
 
     public StorageFile(File userDirectory, File tmpDirectory) {
-        this.userDirectory = userDirectory;
-        this.tmpDirectory = tmpDirectory;
+        this(userDirectory, tmpDirectory, 8, null);
+    }
+
+    /**
+     * @param existenceIndexFile where to keep the snapshot of the index of
+     *                           existing users, or null to not use an index.
+     *                           The index is left unused if another store
+     *                           already has the namespace open.
+     */
+    public StorageFile(File userDirectory, File tmpDirectory, int threads, File existenceIndexFile) {
+        this(userDirectory.getParentFile(), userDirectory, tmpDirectory, existenceIndexFile, threadsOnly(threads));
+    }
+
+    /**
+     * Create the storage of a namespace as set up in its configuration.
+     *
+     * @param directory the namespace directory
+     */
+    public StorageFile(File directory, Properties configuration) {
+        this(directory, new File(directory, "users"), new File(directory, "tmp"),
+                configuration.getProperty("existence-index", "false").equals("true")
+                        ? new File(directory, "existence-index.bin") : null,
+                configuration);
+    }
+
+    /**
+     * @param userDirectory where users are kept when no data-directories are
+     *                      configured
+     * @param tmpDirectory  a directory on the same filesystem as the user
+     *                      directory for files being written
+     */
+    private StorageFile(File directory, File userDirectory, File tmpDirectory, File existenceIndexFile, Properties configuration) {
+        List<File> dataDirectories = getDataDirectories(configuration);
+        int threads = Integer.parseInt(configuration.getProperty("storage-threads", "8"));
+        Durability durability = Durability.fromString(configuration.getProperty("durability", "none"));
+        long syncInterval = Long.parseLong(configuration.getProperty("durability-sync-interval", "5"));
+        int cacheSize = Integer.parseInt(configuration.getProperty("cache-size", "0"));
+        boolean cacheVerify = configuration.getProperty("cache-verify", "true").equals("true");
+        boolean changeJournal = configuration.getProperty("change-journal", "false").equals("true");
+        long changeJournalInterval = Long.parseLong(configuration.getProperty("change-journal-interval", "100"));
+
+        this.directory = directory;
+        this.shardsFile = new File(directory, "shards.txt");
+        try {
+            this.lockChannel = FileChannel.open(new File(directory, "users.lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open lock file", e);
+        }
+        this.metadataWriter = new AtomicFileWriter(new File(directory, "tmp"), Durability.ALWAYS, 0L);
+        List<Shard> configured = new ArrayList<>();
+        if (dataDirectories == null || dataDirectories.isEmpty()) {
+            configured.add(new Shard(userDirectory, tmpDirectory, false, durability, syncInterval));
+        } else {
+            for (File dataDirectory : dataDirectories) {
+                configured.add(new Shard(new File(dataDirectory, "users"), new File(dataDirectory, "tmp"), false,
+                        durability, syncInterval));
+            }
+        }
+        this.ring = new ShardRing(configured);
+        List<Shard> allShards = new ArrayList<>(configured);
+        Set<String> configuredNames = new LinkedHashSet<>();
+        for (Shard shard : configured) {
+            configuredNames.add(shard.getName());
+        }
+        Set<String> balancedNames = readShardsFile(userDirectory);
+        for (String name : balancedNames) {
+            if (!configuredNames.contains(name)) {
+                File drainingDirectory = new File(name);
+                allShards.add(new Shard(drainingDirectory, new File(drainingDirectory.getParentFile(), "tmp"), true,
+                        Durability.NONE, 0L));
+            }
+        }
+        this.shards = Collections.unmodifiableList(allShards);
+        // with no users stored anywhere yet there is nothing to move
+        this.rebalancePending = !balancedNames.isEmpty() && !balancedNames.equals(configuredNames);
+        if (!rebalancePending)
+            writeShardsFile();
+        this.executor = createExecutor("StorageFile", threads);
+        List<File> userDirectories = new ArrayList<>();
+        for (Shard shard : shards) {
+            userDirectories.add(shard.userDirectory);
+        }
+        try {
+            this.namespaceHold = NamespaceHold.acquire(directory, existenceIndexFile != null);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open namespace", e);
+        }
+        if (existenceIndexFile != null && !namespaceHold.isExclusive()) {
+            // users created by the others would be reported as absent
+            System.err.println("Not using the existence index of " + directory + ", it is shared");
+            this.existenceIndex = null;
+        } else {
+            this.existenceIndex = existenceIndexFile == null ? null : new ExistenceIndex(userDirectories, existenceIndexFile);
+        }
+        this.cache = cacheSize > 0 ? new UserCache(cacheSize, cacheVerify) : null;
+        if (changeJournal) {
+            try {
+                this.changeJournal = new ChangeJournal(new File(directory, "changes.journal"), changeJournalInterval,
+                        namespaceHold.getJournalLock(),
+                        new ChangeJournal.Listener() {
+                            @Override
+                            public void changed(UUID uuid) {
+                                if (cache != null)
+                                    cache.invalidate(uuid);
+                            }
+
+                            @Override
+                            public void reset() {
+                                if (cache != null)
+                                    cache.clear();
+                            }
+                        });
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to open change journal", e);
+            }
+        } else {
+            this.changeJournal = null;
+        }
+    }
+
+    private static Properties threadsOnly(int threads) {
+        Properties configuration = new Properties();
+        configuration.setProperty("storage-threads", Integer.toString(threads));
+        return configuration;
+    }
+
+    /**
+     * Get the comma separated data-directories of a namespace configuration,
+     * or null if none are configured.
+     */
+    private static List<File> getDataDirectories(Properties configuration) {
+        String dataDirectories = configuration.getProperty("data-directories");
+        if (dataDirectories == null)
+            return null;
+        List<File> directories = new ArrayList<>();
+        for (String dataDirectory : dataDirectories.split(",")) {
+            if (!dataDirectory.trim().isEmpty())
+                directories.add(new File(dataDirectory.trim()));
+        }
+        return directories;
+    }
+
+    /**
+     * Read the names of the shards the users were last balanced over. If
+     * the file is missing, the users are where they were kept before data
+     * directories could be configured.
+     */
+    private Set<String> readShardsFile(File userDirectory) {
+        Set<String> names = new LinkedHashSet<>();
+        if (!shardsFile.exists()) {
+            if (userDirectory.isDirectory())
+                names.add(userDirectory.getAbsolutePath());
+            return names;
+        }
+        try (FileInputStream in = new FileInputStream(shardsFile)) {
+            for (String line : new String(Util.readFully(in), StandardCharsets.UTF_8).split("\n")) {
+                if (!line.trim().isEmpty())
+                    names.add(line.trim());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read " + shardsFile, e);
+        }
+        return names;
+    }
+
+    private void writeShardsFile() {
+        StringBuilder sb = new StringBuilder();
+        for (Shard shard : shards) {
+            if (!shard.draining)
+                sb.append(shard.getName()).append("\n");
+        }
+        try {
+            metadataWriter.write(shardsFile, sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write " + shardsFile, e);
+        }
+    }
+
+    private static int stripe(UUID uuid) {
+        return (uuid.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+    }
+
+    private Object lock(UUID uuid) {
+        return namespaceHold.getUserLock(stripe(uuid));
+    }
+
+    /**
+     * Lock a user against other processes sharing the namespace, with one
+     * byte of the lock file per stripe. Must be called while holding
+     * {@link #lock}, since file locks are held by the whole process.
+     */
+    private FileLock lockFile(UUID uuid) throws IOException {
+        return lockChannel.lock(stripe(uuid), 1L, false);
+    }
+
+    @Override
+    protected ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (changeJournal != null)
+            changeJournal.close();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        metadataWriter.close();
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            // nothing left to do with it
+        }
+        if (existenceIndex != null)
+            existenceIndex.close();
+        namespaceHold.release();
+    }
+
+    @Override
+    public List<UUID> listUsers(UUID startAfter, int limit) throws StorageException {
+        if (shards.size() == 1)
+            return shards.get(0).listUsers(startAfter, limit);
+        List<UUID> users = new ArrayList<>();
+        for (Shard shard : shards) {
+            users.addAll(shard.listUsers(startAfter, limit));
+        }
+        users.sort(Storage::compareUuids);
+        List<UUID> page = new ArrayList<>(Math.min(limit, users.size()));
+        for (UUID uuid : users) {
+            if (page.size() >= limit)
+                break;
+            // a user being moved by a rebalance may be seen twice
+            if (page.isEmpty() || !page.get(page.size() - 1).equals(uuid))
+                page.add(uuid);
+        }
+        return page;
+    }
+
+    @Override
+    public boolean sweepExpired(long now, int batchSize, SweepStatistics statistics) throws StorageException {
+        File cursorFile = new File(directory, "sweep-cursor.txt");
+        UUID cursor = null;
+        if (cursorFile.exists()) {
+            try (FileInputStream in = new FileInputStream(cursorFile)) {
+                String cursorString = new String(Util.readFully(in), StandardCharsets.UTF_8).trim();
+                if (!cursorString.isEmpty())
+                    cursor = Util.uuidFromString(cursorString);
+            } catch (IllegalArgumentException e) {
+                // start the pass over, sweeping users twice is harmless
+                cursor = null;
+            } catch (IOException e) {
+                throw new StorageException("Unable to read sweep cursor", e);
+            }
+        }
+        List<UUID> users = listUsers(cursor, batchSize);
+        for (UUID uuid : users) {
+            sweepUser(uuid, now, statistics);
+        }
+        String newCursor = users.size() < batchSize ? "" : Util.uuidToString(users.get(users.size() - 1));
+        writeSweepCursor(cursorFile, newCursor);
+        statistics.setCursor(newCursor);
+        return newCursor.isEmpty();
+    }
+
+    private void writeSweepCursor(File cursorFile, String cursor) throws StorageException {
+        try {
+            metadataWriter.write(cursorFile, cursor.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new StorageException("Unable to write sweep cursor", e);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        List<Map<String, Object>> shardMetrics = new ArrayList<>();
+        for (Shard shard : shards) {
+            shardMetrics.add(shard.getMetrics());
+        }
+        metrics.put("shards", shardMetrics);
+        Map<String, Object> rebalance = new LinkedHashMap<>();
+        rebalance.put("pending", rebalancePending);
+        rebalance.put("running", rebalancing);
+        rebalance.put("scanned", rebalanceScanned.get());
+        rebalance.put("moved", rebalanceMoved.get());
+        metrics.put("rebalance", rebalance);
+        if (existenceIndex != null)
+            metrics.put("existenceIndex", existenceIndex.getMetrics());
+        if (cache != null)
+            metrics.put("cache", cache.getMetrics());
+        if (changeJournal != null)
+            metrics.put("changeJournal", changeJournal.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * Get the shard holding an existing user, or null if the user does not
+     * exist.
+     */
+    private Shard findUser(UUID uuid) {
+        if (existenceIndex != null && !existenceIndex.mightExist(uuid))
+            return null;
+        Shard owner = ring.get(uuid);
+        if (owner.getUserFile(uuid).exists())
+            return owner;
+        if (rebalancePending) {
+            for (Shard shard : shards) {
+                if (shard != owner && shard.getUserFile(uuid).exists())
+                    return shard;
+            }
+            // the user may have been moved to its owner while we looked
+            if (owner.getUserFile(uuid).exists())
+                return owner;
+        }
+        if (existenceIndex != null)
+            existenceIndex.recordFalsePositive();
+        return null;
     }
 
-    private final File getUserFile(UUID uuid) {
-        String uuidString = uuid.toString().toLowerCase().replace("-", "");
-        return new File(userDirectory, uuidString.substring(0, 2) + "/" + uuidString.substring(2, 4) + "/" + uuidString + ".json");
+    /**
+     * Get the shard holding a user by looking at every shard. With the
+     * user's locks held, nothing can move it in the meantime.
+     */
+    private Shard findStoredUser(UUID uuid) {
+        Shard owner = ring.get(uuid);
+        if (owner.getUserFile(uuid).exists())
+            return owner;
+        for (Shard shard : shards) {
+            if (shard != owner && shard.getUserFile(uuid).exists())
+                return shard;
+        }
+        return null;
     }
 
     @Override
     public User readUser(UUID uuid) throws StorageException {
         if (uuid == null)
             throw new NullPointerException("uuid cannot be null");
-        File userFile = getUserFile(uuid);
-        if (!userFile.exists()) {
-            return new User();
+        if (cache != null) {
+            JsonElement cached = cache.get(uuid);
+            if (cached != null)
+                return Serialization.deserialize(cached, User.class);
+        }
+        long cacheGeneration = cache == null ? 0L : cache.getGeneration();
+        for (int attempt = 1; ; attempt++) {
+            Shard shard = findUser(uuid);
+            if (shard == null) {
+                return new User();
+            }
+            long start = System.nanoTime();
+            File userFile = shard.getUserFile(uuid);
+            UserCache.FileStamp stamp = cache == null ? null : UserCache.FileStamp.of(userFile);
+            try (FileInputStream in = new FileInputStream(userFile)) {
+                byte[] bytes = Util.readFully(in);
+                shard.recordRead(bytes.length, System.nanoTime() - start);
+                if (cache == null)
+                    return Serialization.deserialize(new String(bytes, StandardCharsets.UTF_8), User.class);
+                JsonElement tree = JsonParser.parseString(new String(bytes, StandardCharsets.UTF_8));
+                cache.put(uuid, tree, userFile, stamp, cacheGeneration);
+                return Serialization.deserialize(tree, User.class);
+            } catch (FileNotFoundException e) {
+                if (attempt >= MOVED_RETRIES)
+                    throw new StorageException("Unable to read user", e);
+            } catch (Exception e) {
+                throw new StorageException("Unable to read user", e);
+            }
+        }
+    }
+
+    @Override
+    public User readUser(UUID uuid, UserProjection projection) throws StorageException {
+        if (projection.isComplete())
+            return readUser(uuid);
+        if (uuid == null)
+            throw new NullPointerException("uuid cannot be null");
+        if (cache != null) {
+            // a whole user is no worse than the part asked for
+            JsonElement cached = cache.get(uuid);
+            if (cached != null)
+                return Serialization.deserialize(cached, User.class);
+        }
+        for (int attempt = 1; ; attempt++) {
+            Shard shard = findUser(uuid);
+            if (shard == null) {
+                return new User();
+            }
+            long start = System.nanoTime();
+            File userFile = shard.getUserFile(uuid);
+            try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(userFile), StandardCharsets.UTF_8))) {
+                JsonObject object = readProjection(reader, projection);
+                shard.recordRead(userFile.length(), System.nanoTime() - start);
+                return Serialization.deserialize(object, User.class);
+            } catch (FileNotFoundException e) {
+                if (attempt >= MOVED_RETRIES)
+                    throw new StorageException("Unable to read user", e);
+            } catch (Exception e) {
+                throw new StorageException("Unable to read user", e);
+            }
         }
-        try (FileInputStream in = new FileInputStream(userFile)) {
-            String data = new String(Util.readFully(in), StandardCharsets.UTF_8);
-            return Serialization.deserialize(data, User.class);
-        } catch (Exception e) {
-            throw new StorageException("Unable to read user", e);
+    }
+
+    /**
+     * Stream through a stored user, keeping only the sections in the
+     * projection. Skipped sections are never turned into objects.
+     */
+    private static JsonObject readProjection(JsonReader reader, UserProjection projection) throws IOException {
+        JsonObject object = new JsonObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "variables":
+                    if (projection.includesVariables())
+                        object.add(name, JsonParser.parseReader(reader));
+                    else
+                        reader.skipValue();
+                    break;
+                case "credentials":
+                    if (projection.includesCredentials())
+                        object.add(name, readCredentials(reader, projection));
+                    else
+                        reader.skipValue();
+                    break;
+                case "credentialSessions":
+                    if (projection.includesSessions())
+                        object.add(name, JsonParser.parseReader(reader));
+                    else
+                        reader.skipValue();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static JsonArray readCredentials(JsonReader reader, UserProjection projection) throws IOException {
+        JsonArray credentials = new JsonArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            JsonElement credential = JsonParser.parseReader(reader);
+            if (projection.getCredentialTypes() != null) {
+                JsonElement type = credential.isJsonObject() ? credential.getAsJsonObject().get("type") : null;
+                if (type == null || !type.isJsonPrimitive() || !projection.includesCredentialType(type.getAsString()))
+                    continue;
+            }
+            credentials.add(credential);
         }
+        reader.endArray();
+        return credentials;
     }
 
     @Override
     public void saveUser(UUID uuid, User user) throws StorageException {
         if (uuid == null || user == null)
             throw new NullPointerException("uuid, user cannot be null");
-        File temporaryFile = new File(tmpDirectory, UUID.randomUUID().toString());
+        if (user.isPartial())
+            throw new StorageException("Unable to write partially loaded user");
+        Shard shard = ring.get(uuid);
+        synchronized (lock(uuid)) {
+            try (FileLock fileLock = lockFile(uuid)) {
+                long expectedVersion = user.getVersion();
+                long storedVersion = readStoredVersion(uuid);
+                if (expectedVersion != User.ANY_VERSION && expectedVersion != storedVersion)
+                    throw new VersionConflictException("User " + Util.uuidToString(uuid) + " is at version "
+                            + storedVersion + ", not " + expectedVersion);
+                user.setVersion(storedVersion + 1L);
+                long cacheGeneration = cache == null ? 0L : cache.getGeneration();
+                JsonElement tree = Serialization.serializeToTree(user);
+                byte[] data = Serialization.serialize(tree, true).getBytes(StandardCharsets.UTF_8);
+                File userFile = shard.getUserFile(uuid);
+                try {
+                    shard.writer.write(userFile, data);
+                    if (changeJournal != null)
+                        changeJournal.append(uuid);
+                } catch (IOException e) {
+                    user.setVersion(expectedVersion);
+                    if (cache != null)
+                        cache.invalidate(uuid);
+                    throw new StorageException("Unable to write user", e);
+                }
+                if (cache != null)
+                    cache.update(uuid, tree, userFile, UserCache.FileStamp.of(userFile), cacheGeneration);
+                if (rebalancePending) {
+                    // a stale copy left elsewhere must not be moved over this one
+                    for (Shard other : shards) {
+                        if (other != shard)
+                            other.getUserFile(uuid).delete();
+                    }
+                }
+                if (existenceIndex != null)
+                    existenceIndex.add(uuid);
+            } catch (IOException e) {
+                throw new StorageException("Unable to lock user", e);
+            }
+        }
+    }
+
+    /**
+     * Read the version of a stored user, or 0 if it does not exist. Must be
+     * called while holding the user's locks, and looks at the disk only:
+     * the existence index and the cache may not know about a user another
+     * process just created.
+     */
+    private long readStoredVersion(UUID uuid) throws StorageException {
+        Shard shard = findStoredUser(uuid);
+        if (shard == null)
+            return 0L;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(shard.getUserFile(uuid)), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("version"))
+                    return reader.nextLong();
+                reader.skipValue();
+            }
+            return 0L;
+        } catch (IOException | RuntimeException e) {
+            throw new StorageException("Unable to read user version", e);
+        }
+    }
+
+    /**
+     * Check whether users have to be moved because the data directories
+     * changed.
+     */
+    public boolean isRebalancePending() {
+        return rebalancePending;
+    }
+
+    /**
+     * Move every user that is not on the shard it belongs on, while the
+     * storage stays in use. Once done, the configured data directories are
+     * recorded as balanced.
+     */
+    public void rebalance() throws StorageException {
+        synchronized (this) {
+            if (rebalancing)
+                throw new StorageException("A rebalance is already running");
+            rebalancing = true;
+        }
         try {
-            File userFile = getUserFile(uuid);
-            File parentFile = userFile.getParentFile();
-            if (!parentFile.exists())
-                parentFile.mkdirs();
-            try (FileOutputStream out = new FileOutputStream(temporaryFile)) {
-                out.write(Serialization.serialize(user, true).getBytes(StandardCharsets.UTF_8));
-            }
-            temporaryFile.renameTo(userFile);
-        } catch (Exception e) {
-            throw new StorageException("Unable to write user", e);
+            rebalanceScanned.set(0L);
+            rebalanceMoved.set(0L);
+            for (Shard shard : shards) {
+                UUID cursor = null;
+                while (true) {
+                    List<UUID> page = shard.listUsers(cursor, 1000);
+                    for (UUID uuid : page) {
+                        rebalanceScanned.incrementAndGet();
+                        Shard owner = ring.get(uuid);
+                        if (owner != shard)
+                            moveUser(uuid, shard, owner);
+                    }
+                    if (page.size() < 1000)
+                        break;
+                    cursor = page.get(page.size() - 1);
+                }
+            }
+            writeShardsFile();
+            rebalancePending = false;
         } finally {
-            if (temporaryFile.exists())
-                temporaryFile.delete();
+            rebalancing = false;
+        }
+    }
+
+    /**
+     * Start {@link #rebalance} in the background.
+     *
+     * @return false if a rebalance is already running
+     */
+    public boolean startRebalance() {
+        if (rebalancing)
+            return false;
+        Thread thread = new Thread(() -> {
+            try {
+                rebalance();
+            } catch (StorageException e) {
+                e.printStackTrace();
+            }
+        }, "StorageFile-rebalance");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Move a user between shards. The copy on the target shard wins if there
+     * already is one, since saves always go to the shard a user belongs on.
+     */
+    private void moveUser(UUID uuid, Shard source, Shard target) throws StorageException {
+        synchronized (lock(uuid)) {
+            try (FileLock fileLock = lockFile(uuid)) {
+                moveLockedUser(uuid, source, target);
+            } catch (IOException e) {
+                throw new StorageException("Unable to lock user", e);
+            }
+        }
+    }
+
+    private void moveLockedUser(UUID uuid, Shard source, Shard target) throws StorageException {
+        File sourceFile = source.getUserFile(uuid);
+        File targetFile = target.getUserFile(uuid);
+        if (!sourceFile.exists())
+            return;
+        if (!targetFile.exists()) {
+            try {
+                target.writer.write(targetFile, Files.readAllBytes(sourceFile.toPath()));
+            } catch (IOException e) {
+                throw new StorageException("Unable to move user " + Util.uuidToString(uuid), e);
+            }
+            target.recordMove();
+            rebalanceMoved.incrementAndGet();
         }
+        // an index rebuild walking the shards could miss the user in transit
+        if (existenceIndex != null)
+            existenceIndex.add(uuid);
+        sourceFile.delete();
     }
 }
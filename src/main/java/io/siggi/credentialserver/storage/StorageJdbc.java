@@ -0,0 +1,610 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.admission.Deadline;
+import io.siggi.credentialserver.admission.DeadlineExceededException;
+import io.siggi.credentialserver.credential.Credential;
+import io.siggi.credentialserver.credential.CredentialSession;
+import io.siggi.credentialserver.credential.CredentialType;
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.util.Util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage in an SQL database, with a table each for credentials, variables,
+ * sessions and versions. What differs between databases is left to a
+ * {@link SqlDialect}.
+ */
+public class StorageJdbc extends Storage {
+    private static final List<String> CREDENTIAL_COLUMNS = Arrays.asList(
+            "credentialid", "userid", "type", "data", "name", "usecount", "lastuse", "expires");
+    private static final List<String> CREDENTIAL_COLUMNS_PACKED = Arrays.asList(
+            "credentialid", "userid", "type", "data", "name", "usecount", "lastuse", "expires", "packed");
+
+    private final SqlDialect dialect;
+    private final ExecutorService executor;
+    /**
+     * Whether credential data is written packed into the {@code packed}
+     * column instead of as text into {@code data}. Either is read.
+     */
+    private final boolean binaryCredentials;
+    private final boolean packedColumn;
+    private final Thread credentialMigrationThread;
+    private volatile boolean credentialMigrationPending = false;
+    private volatile boolean closed = false;
+    private final AtomicLong credentialsPacked = new AtomicLong();
+    private final MigrationRetry credentialMigrationRetry = new MigrationRetry("pack credential data");
+
+    /**
+     * @param configuration the namespace configuration, options specific to
+     *                      the database are prefixed with the dialect name
+     */
+    public StorageJdbc(SqlDialect dialect, Properties configuration) {
+        this.dialect = dialect;
+        String prefix = dialect.getName() + "-";
+        executor = createExecutor("StorageJdbc-" + dialect.getName(), Integer.parseInt(configuration.getProperty("storage-threads", "16")));
+        try (Connection connection = getConnection()) {
+            try (PreparedStatement createCredentialsTable = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS `usercredentials` (" +
+                            "`credentialid` binary(16) NOT NULL," +
+                            "`userid` binary(16) NOT NULL," +
+                            "`type` varchar(16) NOT NULL," +
+                            "`data` varchar(1024) NULL," +
+                            "`name` varchar(64) NULL," +
+                            "`usecount` bigint NOT NULL DEFAULT '0'," +
+                            "`lastuse` bigint NOT NULL DEFAULT '0'," +
+                            "`expires` bigint NOT NULL DEFAULT '0'," +
+                            "`packed` varbinary(4096) NULL," +
+                            "PRIMARY KEY (`credentialid`)" +
+                            ")"
+            )) {
+                createCredentialsTable.executeUpdate();
+            }
+            try (PreparedStatement createUserDataTable = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS `userdata` (" +
+                            "`userid` binary(16) NOT NULL," +
+                            "`variable` varchar(32) NOT NULL," +
+                            "`value` varchar(64) NOT NULL," +
+                            "CONSTRAINT `uservariable` UNIQUE (`userid`,`variable`)" +
+                            ")"
+            )) {
+                createUserDataTable.executeUpdate();
+            }
+            try (PreparedStatement createCredentialRegistrationSessions = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS `usercredentialsessions` (" +
+                            "`userid` binary(16) NOT NULL," +
+                            "`type` varchar(16) NOT NULL," +
+                            "`registration` tinyint(1) NOT NULL," +
+                            "`data` varchar(1024) NOT NULL," +
+                            "`time` bigint NOT NULL," +
+                            "`expiry` bigint NOT NULL," +
+                            "PRIMARY KEY (`userid`,`type`,`registration`)" +
+                            ")"
+            )) {
+                createCredentialRegistrationSessions.executeUpdate();
+            }
+            try (PreparedStatement createUserVersionsTable = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS `userversions` (" +
+                            "`userid` binary(16) NOT NULL," +
+                            "`version` bigint NOT NULL," +
+                            "PRIMARY KEY (`userid`)" +
+                            ")"
+            )) {
+                createUserVersionsTable.executeUpdate();
+            }
+            dialect.createIndex(connection, "usercredentials", "userid", "userid");
+            dialect.createIndex(connection, "usercredentials", "expires", "expires");
+            dialect.createIndex(connection, "usercredentialsessions", "expiry", "expiry");
+            binaryCredentials = "binary".equals(configuration.getProperty(prefix + "credential-format", "text"));
+            // tables created before the packed column get it when it is first needed
+            if (binaryCredentials && !dialect.hasColumn(connection, "usercredentials", "packed"))
+                dialect.addPackedCredentialColumn(connection);
+            packedColumn = dialect.hasColumn(connection, "usercredentials", "packed");
+            if (binaryCredentials) {
+                try (PreparedStatement findText = connection.prepareStatement(
+                        "SELECT 1 FROM `usercredentials` WHERE `data` IS NOT NULL LIMIT 1"
+                ); ResultSet resultSet = findText.executeQuery()) {
+                    credentialMigrationPending = resultSet.next();
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not create tables", e);
+        }
+        if (credentialMigrationPending) {
+            int batchSize = Integer.parseInt(configuration.getProperty(prefix + "migration-batch", "100"));
+            credentialMigrationThread = new Thread(() -> packCredentials(batchSize), "StorageJdbc-credential-migration");
+            credentialMigrationThread.setDaemon(true);
+            credentialMigrationThread.start();
+        } else {
+            credentialMigrationThread = null;
+        }
+    }
+
+    protected final SqlDialect getDialect() {
+        return dialect;
+    }
+
+    /**
+     * Get a connection. While working for a request with a deadline, every
+     * statement made on it times out when the deadline passes, rounded up
+     * to whole seconds since that is all JDBC offers.
+     */
+    protected Connection getConnection() throws SQLException {
+        Connection connection = dialect.getConnection();
+        Deadline deadline = Deadline.current();
+        if (deadline == null)
+            return connection;
+        return (Connection) Proxy.newProxyInstance(StorageJdbc.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (result instanceof Statement) {
+                        Statement statement = (Statement) result;
+                        long remaining = deadline.getRemainingMillis();
+                        if (remaining <= 0L) {
+                            statement.close();
+                            throw new DeadlineExceededException("storage");
+                        }
+                        statement.setQueryTimeout((int) Math.min(Integer.MAX_VALUE, (remaining + 999L) / 1000L));
+                    }
+                    return result;
+                });
+    }
+
+    @Override
+    public User readUser(UUID uuid) throws StorageException {
+        return readUser(uuid, UserProjection.ALL);
+    }
+
+    @Override
+    public User readUser(UUID uuid, UserProjection projection) throws StorageException {
+        try (Connection connection = getConnection()) {
+            return readUser(connection, uuid, projection);
+        } catch (SQLException ex) {
+            throw new StorageException("Database access", ex);
+        }
+    }
+
+    @Override
+    protected ExecutorService getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, User>> readUsersAsync(Collection<UUID> uuids, UserProjection projection) {
+        // One task and one connection for the whole batch
+        return call(() -> {
+            Map<UUID, User> users = new HashMap<>();
+            try (Connection connection = getConnection()) {
+                for (UUID uuid : uuids) {
+                    users.put(uuid, readUser(connection, uuid, projection));
+                }
+            } catch (SQLException ex) {
+                throw new StorageException("Database access", ex);
+            }
+            return users;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveUsersAsync(Map<UUID, User> users) {
+        return call(() -> {
+            try (Connection connection = getConnection()) {
+                connection.setAutoCommit(false);
+                for (Map.Entry<UUID, User> entry : users.entrySet()) {
+                    saveUser(connection, entry.getKey(), entry.getValue());
+                }
+            } catch (SQLException ex) {
+                throw new StorageException("Database access", ex);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public List<UUID> listUsers(UUID startAfter, int limit) throws StorageException {
+        byte[] cursor = startAfter == null ? new byte[16] : Util.uuidToBytes(startAfter);
+        String comparison = startAfter == null ? ">=" : ">";
+        try (Connection connection = getConnection();
+             PreparedStatement listUsers = connection.prepareStatement(
+                     "SELECT `userid` FROM ("
+                             + "SELECT `userid` FROM `usercredentials` WHERE `userid`" + comparison + "? "
+                             + "UNION SELECT `userid` FROM `userdata` WHERE `userid`" + comparison + "? "
+                             + "UNION SELECT `userid` FROM `usercredentialsessions` WHERE `userid`" + comparison + "? "
+                             + "UNION SELECT `userid` FROM `userversions` WHERE `userid`" + comparison + "?"
+                             + ") `users` ORDER BY `userid` LIMIT ?"
+             )) {
+            listUsers.setBytes(1, cursor);
+            listUsers.setBytes(2, cursor);
+            listUsers.setBytes(3, cursor);
+            listUsers.setBytes(4, cursor);
+            listUsers.setInt(5, limit);
+            List<UUID> users = new ArrayList<>();
+            try (ResultSet resultSet = listUsers.executeQuery()) {
+                while (resultSet.next()) {
+                    users.add(Util.uuidFromBytes(resultSet.getBytes("userid")));
+                }
+            }
+            return users;
+        } catch (SQLException ex) {
+            throw new StorageException("Database access", ex);
+        }
+    }
+
+    @Override
+    public boolean sweepExpired(long now, int batchSize, SweepStatistics statistics) throws StorageException {
+        try (Connection connection = getConnection()) {
+            int sessions;
+            int credentials;
+            try (PreparedStatement deleteSessions = connection.prepareStatement(
+                    dialect.deleteLimited("usercredentialsessions", "`expiry`<?")
+            )) {
+                deleteSessions.setLong(1, now);
+                deleteSessions.setInt(2, batchSize);
+                sessions = deleteSessions.executeUpdate();
+            }
+            try (PreparedStatement deleteCredentials = connection.prepareStatement(
+                    dialect.deleteLimited("usercredentials", "`expires`>0 AND `expires`<?")
+            )) {
+                deleteCredentials.setLong(1, now);
+                deleteCredentials.setInt(2, batchSize);
+                credentials = deleteCredentials.executeUpdate();
+            }
+            statistics.sessionsRemoved.addAndGet(sessions);
+            statistics.credentialsRemoved.addAndGet(credentials);
+            return sessions < batchSize && credentials < batchSize;
+        } catch (SQLException ex) {
+            throw new StorageException("Database access", ex);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("credentialFormat", binaryCredentials ? "binary" : "text");
+        metrics.put("credentialMigrationPending", credentialMigrationPending);
+        metrics.put("credentialsPacked", credentialsPacked.get());
+        metrics.put("credentialMigrationFailures", credentialMigrationRetry.getFailures());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (credentialMigrationThread != null)
+            credentialMigrationThread.interrupt();
+        executor.shutdown();
+    }
+
+    /**
+     * Move the credential data still stored as text into the packed column,
+     * walking the table in primary key order. A credential saved in between
+     * no longer has the text that was read and is left alone.
+     */
+    private void packCredentials(int batchSize) {
+        byte[] cursor = null;
+        while (!closed) {
+            // the first page starts at the lowest id, which may be all zeros
+            String comparison = cursor == null ? ">=" : ">";
+            try (Connection connection = getConnection();
+                 PreparedStatement findText = connection.prepareStatement(
+                         "SELECT `credentialid`,`data` FROM `usercredentials` WHERE `credentialid`" + comparison + "? AND `data` IS NOT NULL "
+                                 + "ORDER BY `credentialid` LIMIT ?"
+                 );
+                 PreparedStatement packCredential = connection.prepareStatement(
+                         "UPDATE `usercredentials` SET `packed`=?,`data`=NULL WHERE `credentialid`=? AND `data`=?"
+                 )) {
+                findText.setBytes(1, cursor == null ? new byte[16] : cursor);
+                findText.setInt(2, batchSize);
+                int found = 0;
+                try (ResultSet resultSet = findText.executeQuery()) {
+                    while (resultSet.next()) {
+                        found += 1;
+                        cursor = resultSet.getBytes("credentialid");
+                        String data = resultSet.getString("data");
+                        packCredential.setBytes(1, CredentialDataCodec.encode(data));
+                        packCredential.setBytes(2, cursor);
+                        packCredential.setString(3, data);
+                        packCredential.addBatch();
+                    }
+                }
+                for (int updated : packCredential.executeBatch()) {
+                    if (updated > 0)
+                        credentialsPacked.incrementAndGet();
+                }
+                credentialMigrationRetry.succeeded();
+                if (found < batchSize) {
+                    credentialMigrationPending = false;
+                    return;
+                }
+            } catch (SQLException e) {
+                if (closed || !credentialMigrationRetry.failed(e))
+                    return;
+            }
+        }
+    }
+
+    protected User readUser(Connection connection, UUID uuid, UserProjection projection) throws SQLException {
+        User user = new User();
+        user.setVersion(readVersion(connection, uuid));
+        if (projection.includesCredentials()) {
+            readCredentials(connection, uuid, projection.getCredentialTypes(), user);
+        }
+        if (projection.includesVariables()) {
+            readVariables(connection, uuid, user);
+        }
+        if (projection.includesSessions()) {
+            readCredentialSessions(connection, uuid, user);
+        }
+        // Loading goes through the same setters as changes do
+        user.getChangedVariables().clear();
+        user.markAsNotChanged();
+        return user;
+    }
+
+    private long readVersion(Connection connection, UUID uuid) throws SQLException {
+        try (PreparedStatement versionReader = connection.prepareStatement("SELECT `version` FROM `userversions` WHERE `userid`=?")) {
+            versionReader.setBytes(1, Util.uuidToBytes(uuid));
+            try (ResultSet resultSet = versionReader.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong("version") : 0L;
+            }
+        }
+    }
+
+    private void readCredentials(Connection connection, UUID uuid, Set<String> types, User user) throws SQLException {
+        StringBuilder query = new StringBuilder("SELECT * FROM `usercredentials` WHERE `userid`=?");
+        if (types != null) {
+            query.append(" AND `type` IN (");
+            for (int i = 0; i < types.size(); i++) {
+                query.append(i == 0 ? "?" : ",?");
+            }
+            query.append(")");
+        }
+        try (PreparedStatement credentialReader = connection.prepareStatement(query.toString())) {
+            credentialReader.setBytes(1, Util.uuidToBytes(uuid));
+            if (types != null) {
+                int i = 2;
+                for (String type : types) {
+                    credentialReader.setString(i++, type);
+                }
+            }
+            try (ResultSet resultSet = credentialReader.executeQuery()) {
+                while (resultSet.next()) {
+                    UUID credentialId = Util.uuidFromBytes(resultSet.getBytes("credentialid"));
+                    String type = resultSet.getString("type");
+                    String data = readCredentialData(resultSet);
+                    String name = resultSet.getString("name");
+                    long useCount = resultSet.getLong("usecount");
+                    long lastUse = resultSet.getLong("lastuse");
+                    long expires = resultSet.getLong("expires");
+                    user.addCredential(CredentialType.get(type).deserialize(data, credentialId, name, useCount, lastUse, expires));
+                }
+            }
+        }
+    }
+
+    private String readCredentialData(ResultSet resultSet) throws SQLException {
+        if (packedColumn) {
+            byte[] packed = resultSet.getBytes("packed");
+            if (packed != null)
+                return CredentialDataCodec.decode(packed);
+        }
+        return resultSet.getString("data");
+    }
+
+    private void readVariables(Connection connection, UUID uuid, User user) throws SQLException {
+        try (PreparedStatement dataReader = connection.prepareStatement("SELECT * FROM `userdata` WHERE `userid`=?")) {
+            dataReader.setBytes(1, Util.uuidToBytes(uuid));
+            try (ResultSet resultSet = dataReader.executeQuery()) {
+                while (resultSet.next()) {
+                    String variable = resultSet.getString("variable");
+                    String value = resultSet.getString("value");
+                    user.setVariable(variable, value);
+                }
+            }
+        }
+    }
+
+    private void readCredentialSessions(Connection connection, UUID uuid, User user) throws SQLException {
+        try (PreparedStatement credentialSessionReader = connection.prepareStatement("SELECT * FROM `usercredentialsessions` WHERE `userid`=?")) {
+            credentialSessionReader.setBytes(1, Util.uuidToBytes(uuid));
+            try (ResultSet resultSet = credentialSessionReader.executeQuery()) {
+                while (resultSet.next()) {
+                    String type = resultSet.getString("type");
+                    boolean registration = resultSet.getBoolean("registration");
+                    String data = resultSet.getString("data");
+                    long time = resultSet.getLong("time");
+                    long expiry = resultSet.getLong("expiry");
+                    CredentialSession credentialSession = new CredentialSession(type, registration, data, time, expiry);
+                    user.getCredentialSessionsMap().put(type + "-" + registration, credentialSession);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void saveUser(UUID uuid, User user) throws StorageException {
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            saveUser(connection, uuid, user);
+        } catch (SQLException ex) {
+            throw new StorageException("Database access", ex);
+        }
+    }
+
+    @Override
+    public boolean canSavePartialUsers() {
+        // saves only write the rows of what changed
+        return true;
+    }
+
+    protected void saveUser(Connection connection, UUID uuid, User user) throws SQLException, StorageException {
+        long now = System.currentTimeMillis();
+        long newVersion = updateVersion(connection, uuid, user.getVersion());
+        List<String> credentialColumns = packedColumn ? CREDENTIAL_COLUMNS_PACKED : CREDENTIAL_COLUMNS;
+        try (PreparedStatement insertCredential = connection.prepareStatement(
+                dialect.upsert("usercredentials", Collections.singletonList("credentialid"), credentialColumns)
+        ); PreparedStatement deleteCredential = connection.prepareStatement(
+                "DELETE FROM `usercredentials` WHERE `credentialid`=?"
+        )) {
+            insertCredential.setBytes(2, Util.uuidToBytes(uuid));
+            for (Credential credential : user.getDeletedCredentials()) {
+                deleteCredential.setBytes(1, Util.uuidToBytes(credential.getUUID()));
+                deleteCredential.addBatch();
+            }
+            for (Credential credential : user.getCredentials()) {
+                if (credential.isDeleted() || (credential.getExpires() > 0L && credential.getExpires() < now)) {
+                    deleteCredential.setBytes(1, Util.uuidToBytes(credential.getUUID()));
+                    deleteCredential.addBatch();
+                    continue;
+                }
+                if (!credential.hasChanged()) continue;
+                insertCredential.setBytes(1, Util.uuidToBytes(credential.getUUID()));
+                insertCredential.setString(3, credential.getType());
+                insertCredential.setString(4, binaryCredentials ? null : credential.getData());
+                insertCredential.setString(5, credential.getName());
+                insertCredential.setLong(6, credential.getUseCount());
+                insertCredential.setLong(7, credential.getLastUse());
+                insertCredential.setLong(8, credential.getExpires());
+                if (packedColumn)
+                    insertCredential.setBytes(9, binaryCredentials ? CredentialDataCodec.encode(credential.getData()) : null);
+                insertCredential.addBatch();
+            }
+            insertCredential.executeBatch();
+            deleteCredential.executeBatch();
+        }
+        try (PreparedStatement setVariable = connection.prepareStatement(
+                dialect.upsert("userdata", Arrays.asList("userid", "variable"), Arrays.asList("userid", "variable", "value"))
+        ); PreparedStatement deleteVariable = connection.prepareStatement(
+                "DELETE FROM `userdata` WHERE `userid`=? AND `variable`=?"
+        )) {
+            setVariable.setBytes(1, Util.uuidToBytes(uuid));
+            deleteVariable.setBytes(1, Util.uuidToBytes(uuid));
+            for (String variable : user.getChangedVariables()) {
+                String value = user.getVariable(variable);
+                if (value == null) {
+                    deleteVariable.setString(2, variable);
+                    deleteVariable.addBatch();
+                } else {
+                    setVariable.setString(2, variable);
+                    setVariable.setString(3, value);
+                    setVariable.addBatch();
+                }
+            }
+            setVariable.executeBatch();
+            deleteVariable.executeBatch();
+            user.getChangedVariables().clear();
+        }
+        try (PreparedStatement insertCredentialSession = connection.prepareStatement(
+                dialect.upsert("usercredentialsessions", Arrays.asList("userid", "type", "registration"),
+                        Arrays.asList("userid", "type", "registration", "data", "time", "expiry"))
+        ); PreparedStatement deleteCredentialSession = connection.prepareStatement(
+                "DELETE FROM `usercredentialsessions` WHERE `userid`=? AND `type`=? AND `registration`=?"
+        )) {
+            insertCredentialSession.setBytes(1, Util.uuidToBytes(uuid));
+            deleteCredentialSession.setBytes(1, Util.uuidToBytes(uuid));
+            for (CredentialSession session : user.getCredentialSessions()) {
+                if (session.isDeleted() || session.getExpiry() < now) {
+                    deleteCredentialSession.setString(2, session.getType());
+                    deleteCredentialSession.setBoolean(3, session.isRegistration());
+                    deleteCredentialSession.addBatch();
+                    continue;
+                }
+                if (!session.hasChanged()) continue;
+                insertCredentialSession.setString(2, session.getType());
+                insertCredentialSession.setBoolean(3, session.isRegistration());
+                insertCredentialSession.setString(4, session.getData());
+                insertCredentialSession.setLong(5, session.getTime());
+                insertCredentialSession.setLong(6, session.getExpiry());
+                insertCredentialSession.addBatch();
+            }
+            insertCredentialSession.executeBatch();
+            deleteCredentialSession.executeBatch();
+        }
+        connection.commit();
+        user.setVersion(newVersion);
+    }
+
+    /**
+     * Move the stored version of a user on by one if it is the expected
+     * version. The row stays locked until the save is committed, so
+     * concurrent saves of the user wait here and then fail.
+     *
+     * @return the new version
+     */
+    private long updateVersion(Connection connection, UUID uuid, long expectedVersion) throws SQLException, StorageException {
+        byte[] userId = Util.uuidToBytes(uuid);
+        if (expectedVersion == User.ANY_VERSION) {
+            try (PreparedStatement incrementVersion = connection.prepareStatement(
+                    dialect.insertOrIncrement("userversions", "userid", "version")
+            )) {
+                incrementVersion.setBytes(1, userId);
+                incrementVersion.executeUpdate();
+            }
+            return readVersion(connection, uuid);
+        }
+        int updated;
+        if (expectedVersion == 0L) {
+            try (PreparedStatement insertVersion = connection.prepareStatement(
+                    dialect.insertOrIgnore("userversions", Arrays.asList("userid", "version"))
+            )) {
+                insertVersion.setBytes(1, userId);
+                insertVersion.setLong(2, 1L);
+                updated = insertVersion.executeUpdate();
+            }
+        } else {
+            try (PreparedStatement updateVersion = connection.prepareStatement(
+                    "UPDATE `userversions` SET `version`=`version`+1 WHERE `userid`=? AND `version`=?"
+            )) {
+                updateVersion.setBytes(1, userId);
+                updateVersion.setLong(2, expectedVersion);
+                updated = updateVersion.executeUpdate();
+            }
+        }
+        if (updated == 0) {
+            connection.rollback();
+            throw new VersionConflictException("User " + Util.uuidToString(uuid) + " is no longer at version " + expectedVersion);
+        }
+        return expectedVersion + 1L;
+    }
+}
@@ -0,0 +1,183 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.admission.Deadline;
+import io.siggi.credentialserver.credential.User;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Wraps a storage backend so that reads and saves of single users wait for
+ * room under an {@link AdaptiveLimit} instead of piling up on a storage
+ * that has slowed down. Reads and saves have separate limits, since they
+ * can take very different amounts of time.
+ * <p>
+ * Enabled with storage-limiter=true in the namespace configuration, with
+ * the options:
+ * <ul>
+ * <li>storage-limiter-initial: the limit to start at, default 16</li>
+ * <li>storage-limiter-min: the lowest the limit goes, default 2</li>
+ * <li>storage-limiter-max: the highest the limit goes, default 512</li>
+ * <li>storage-limiter-queue: how many calls may wait, default 1024</li>
+ * <li>storage-limiter-queue-timeout: how many milliseconds a call may wait
+ * before it is shed, default 1000</li>
+ * </ul>
+ * Listing, scanning and sweeping go straight to the backend.
+ */
+final class StorageLimiter extends Storage {
+    private final Storage backend;
+    private final AdaptiveLimit reads;
+    private final AdaptiveLimit writes;
+    private final ScheduledExecutorService scheduler;
+
+    StorageLimiter(Storage backend, Properties configuration) {
+        this.backend = backend;
+        this.reads = createLimit(configuration);
+        this.writes = createLimit(configuration);
+        // calls stuck in the queue are shed even when nothing finishes
+        long interval = Math.max(10L, Long.parseLong(configuration.getProperty("storage-limiter-queue-timeout", "1000")) / 4L);
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "StorageLimiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            reads.shedExpired();
+            writes.shedExpired();
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static AdaptiveLimit createLimit(Properties configuration) {
+        return new AdaptiveLimit(
+                Integer.parseInt(configuration.getProperty("storage-limiter-initial", "16")),
+                Integer.parseInt(configuration.getProperty("storage-limiter-min", "2")),
+                Integer.parseInt(configuration.getProperty("storage-limiter-max", "512")),
+                Integer.parseInt(configuration.getProperty("storage-limiter-queue", "1024")),
+                Long.parseLong(configuration.getProperty("storage-limiter-queue-timeout", "1000")));
+    }
+
+    @Override
+    public Storage getBackend() {
+        return backend;
+    }
+
+    @Override
+    public User readUser(UUID uuid) throws StorageException {
+        return await(readUserAsync(uuid, UserProjection.ALL));
+    }
+
+    @Override
+    public User readUser(UUID uuid, UserProjection projection) throws StorageException {
+        return await(readUserAsync(uuid, projection));
+    }
+
+    @Override
+    public void saveUser(UUID uuid, User user) throws StorageException {
+        await(saveUserAsync(uuid, user));
+    }
+
+    @Override
+    public CompletableFuture<User> readUserAsync(UUID uuid, UserProjection projection) {
+        return limit(reads, () -> backend.readUserAsync(uuid, projection));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveUserAsync(UUID uuid, User user) {
+        return limit(writes, () -> backend.saveUserAsync(uuid, user));
+    }
+
+    private static <T> CompletableFuture<T> limit(AdaptiveLimit limit, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        // a queued call is started by whichever thread makes room for it
+        Deadline deadline = Deadline.current();
+        limit.submit(() -> {
+            long start = System.nanoTime();
+            CompletableFuture<T> result;
+            Deadline previous = Deadline.set(deadline);
+            try {
+                result = call.get();
+            } catch (Throwable t) {
+                limit.release(System.nanoTime() - start);
+                future.completeExceptionally(t);
+                return;
+            } finally {
+                Deadline.set(previous);
+            }
+            result.whenComplete((value, throwable) -> {
+                limit.release(System.nanoTime() - start);
+                if (throwable != null) {
+                    future.completeExceptionally(throwable);
+                } else {
+                    future.complete(value);
+                }
+            });
+        }, () -> future.completeExceptionally(new StorageOverloadedException("Storage is overloaded")));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Map<UUID, User>> readUsersAsync(Collection<UUID> uuids, UserProjection projection) {
+        return backend.readUsersAsync(uuids, projection);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveUsersAsync(Map<UUID, User> users) {
+        return backend.saveUsersAsync(users);
+    }
+
+    @Override
+    public List<UUID> listUsers(UUID startAfter, int limit) throws StorageException {
+        return backend.listUsers(startAfter, limit);
+    }
+
+    @Override
+    public void scanUsers(UUID startAfter, int pageSize, UserProjection projection, UserScanner scanner) throws StorageException {
+        backend.scanUsers(startAfter, pageSize, projection, scanner);
+    }
+
+    @Override
+    public boolean sweepExpired(long now, int batchSize, SweepStatistics statistics) throws StorageException {
+        return backend.sweepExpired(now, batchSize, statistics);
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(backend.getMetrics());
+        Map<String, Object> limiter = new LinkedHashMap<>();
+        limiter.put("reads", reads.getMetrics());
+        limiter.put("writes", writes.getMetrics());
+        metrics.put("limiter", limiter);
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        backend.close();
+    }
+}
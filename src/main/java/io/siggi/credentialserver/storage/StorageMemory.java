@@ -0,0 +1,366 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.serialization.Serialization;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every user in memory so reads never touch the disk.
+ * <p>
+ * Each save is appended to a {@link WriteAheadLog} before it returns, and a
+ * snapshot of all users is written periodically in the background, after
+ * which the log segments it covers are deleted. On startup the latest
+ * snapshot is loaded while the log written after it is read, and then the
+ * log is replayed on top of the snapshot.
+ * <p>
+ * Users are held as parsed JSON trees rather than as {@link User} objects,
+ * since the caller of {@link #readUser} is free to modify the user it gets.
+ */
+public class StorageMemory extends Storage {
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private final File directory;
+    private final ConcurrentSkipListMap<UUID, JsonElement> users = new ConcurrentSkipListMap<>(Storage::compareUuids);
+    private final WriteAheadLog wal;
+    private final ScheduledExecutorService snapshotExecutor;
+    private volatile UUID sweepCursor = null;
+
+    private final long recoveryTime;
+    private final int recoveredUsers;
+    private volatile long snapshots = 0L;
+    private volatile long lastSnapshotTime = 0L;
+    private volatile long lastSnapshotDuration = 0L;
+
+    /**
+     * @param syncInterval     milliseconds between log fsyncs when the
+     *                         durability is batch
+     * @param snapshotInterval milliseconds between snapshots, or 0 to only
+     *                         snapshot when closed
+     */
+    public StorageMemory(File directory, Durability durability, long syncInterval, long snapshotInterval) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new RuntimeException("Unable to create " + directory);
+        long start = System.nanoTime();
+        try {
+            this.wal = new WriteAheadLog(directory, recover(), durability, syncInterval);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to recover users from " + directory, e);
+        }
+        this.recoveryTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        this.recoveredUsers = users.size();
+        if (snapshotInterval > 0L) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "StorageMemory-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+            this.snapshotExecutor = executor;
+        } else {
+            this.snapshotExecutor = null;
+        }
+    }
+
+    private static JsonElement parse(byte[] data) {
+        return JsonParser.parseString(new String(data, StandardCharsets.UTF_8));
+    }
+
+    private static File snapshotFile(File directory, long segment) {
+        return new File(directory, SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX);
+    }
+
+    private static List<Long> listSnapshots(File directory) {
+        List<Long> snapshots = new ArrayList<>();
+        String[] files = directory.list();
+        if (files == null)
+            return snapshots;
+        for (String file : files) {
+            if (!file.startsWith(SNAPSHOT_PREFIX) || !file.endsWith(SNAPSHOT_SUFFIX))
+                continue;
+            try {
+                snapshots.add(Long.parseLong(file.substring(SNAPSHOT_PREFIX.length(), file.length() - SNAPSHOT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // not a snapshot
+            }
+        }
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    /**
+     * Load the latest snapshot and replay the log segments after it.
+     *
+     * @return the number of the segment to continue the log in
+     */
+    private long recover() throws IOException {
+        List<Long> snapshotList = listSnapshots(directory);
+        long snapshot = snapshotList.isEmpty() ? -1L : snapshotList.get(snapshotList.size() - 1);
+        List<Long> segments = WriteAheadLog.listSegments(directory);
+        List<Long> tailSegments = new ArrayList<>();
+        for (long segment : segments) {
+            if (segment > snapshot)
+                tailSegments.add(segment);
+        }
+
+        // the log tail is read while the snapshot is loaded, only the latest
+        // record of each user is kept since every record is the whole user
+        long lastSegment = segments.isEmpty() ? -1L : segments.get(segments.size() - 1);
+        CompletableFuture<Map<UUID, byte[]>> tail = CompletableFuture.supplyAsync(() -> {
+            Map<UUID, byte[]> latest = new LinkedHashMap<>();
+            try {
+                for (long segment : tailSegments) {
+                    File segmentFile = WriteAheadLog.segmentFile(directory, segment);
+                    // only a crash while appending to the last segment can
+                    // have cut a record short
+                    long length = WriteAheadLog.read(segmentFile, segment == lastSegment, latest::put);
+                    if (segment == lastSegment)
+                        WriteAheadLog.truncate(segmentFile, length);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return latest;
+        });
+
+        if (snapshot >= 0L) {
+            List<Map.Entry<UUID, byte[]>> records = new ArrayList<>();
+            WriteAheadLog.read(snapshotFile(directory, snapshot), false,
+                    (uuid, data) -> records.add(new AbstractMap.SimpleImmutableEntry<>(uuid, data)));
+            records.parallelStream().forEach(record -> users.put(record.getKey(), parse(record.getValue())));
+        }
+
+        Map<UUID, byte[]> latest;
+        try {
+            latest = tail.join();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw e;
+        }
+        latest.entrySet().parallelStream().forEach(record -> users.put(record.getKey(), parse(record.getValue())));
+
+        for (long oldSnapshot : snapshotList) {
+            if (oldSnapshot < snapshot)
+                snapshotFile(directory, oldSnapshot).delete();
+        }
+        for (long segment : segments) {
+            if (segment <= snapshot)
+                WriteAheadLog.segmentFile(directory, segment).delete();
+        }
+        long next = snapshot + 1L;
+        if (!segments.isEmpty())
+            next = Math.max(next, segments.get(segments.size() - 1) + 1L);
+        return next;
+    }
+
+    /**
+     * Write a snapshot of every user and delete the log segments it covers.
+     * <p>
+     * The log is rotated first, so every save in the covered segments is
+     * already in the map when it is written out. Saves made while the
+     * snapshot is written may or may not be in it, they are in the new
+     * segment either way and are replayed over it.
+     */
+    public synchronized void snapshot() throws IOException {
+        long start = System.nanoTime();
+        long covered;
+        synchronized (wal) {
+            covered = wal.rotate();
+        }
+        File snapshotFile = snapshotFile(directory, covered);
+        File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(temporaryFile);
+             BufferedOutputStream out = new BufferedOutputStream(fileOut, 65536)) {
+            for (Map.Entry<UUID, JsonElement> entry : users.entrySet()) {
+                ByteBuffer record = WriteAheadLog.encode(entry.getKey(), entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                out.write(record.array(), 0, record.limit());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            temporaryFile.delete();
+            throw e;
+        }
+        if (!temporaryFile.renameTo(snapshotFile)) {
+            temporaryFile.delete();
+            throw new IOException("Unable to move snapshot into place");
+        }
+        // the segments it replaces are only deleted once its name is on disk
+        WriteAheadLog.syncDirectory(directory);
+        for (long snapshot : listSnapshots(directory)) {
+            if (snapshot < covered)
+                snapshotFile(directory, snapshot).delete();
+        }
+        for (long segment : WriteAheadLog.listSegments(directory)) {
+            if (segment <= covered)
+                WriteAheadLog.segmentFile(directory, segment).delete();
+        }
+        snapshots += 1L;
+        lastSnapshotTime = System.currentTimeMillis();
+        lastSnapshotDuration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Override
+    public User readUser(UUID uuid) throws StorageException {
+        if (uuid == null)
+            throw new NullPointerException("uuid cannot be null");
+        JsonElement tree = users.get(uuid);
+        if (tree == null)
+            return new User();
+        try {
+            return Serialization.deserialize(tree, User.class);
+        } catch (Exception e) {
+            throw new StorageException("Unable to read user", e);
+        }
+    }
+
+    @Override
+    public void saveUser(UUID uuid, User user) throws StorageException {
+        if (uuid == null || user == null)
+            throw new NullPointerException("uuid, user cannot be null");
+        if (user.isPartial())
+            throw new StorageException("Unable to write partially loaded user");
+        long expectedVersion = user.getVersion();
+        boolean anyVersion = expectedVersion == User.ANY_VERSION;
+        // serialized for the version the save will most likely get
+        user.setVersion(anyVersion ? 0L : expectedVersion + 1L);
+        JsonElement tree = Serialization.serializeToTree(user);
+        byte[] data = anyVersion ? null : tree.toString().getBytes(StandardCharsets.UTF_8);
+        long sequence;
+        try {
+            // the map and the log must see saves of a user in the same order
+            synchronized (wal) {
+                long storedVersion = getVersion(users.get(uuid));
+                if (!anyVersion && expectedVersion != storedVersion) {
+                    user.setVersion(expectedVersion);
+                    throw new VersionConflictException("User " + uuid + " is at version " + storedVersion
+                            + ", not " + expectedVersion);
+                }
+                if (anyVersion) {
+                    tree.getAsJsonObject().addProperty("version", storedVersion + 1L);
+                    user.setVersion(storedVersion + 1L);
+                    data = tree.toString().getBytes(StandardCharsets.UTF_8);
+                }
+                sequence = wal.append(uuid, data);
+                users.put(uuid, tree);
+            }
+            wal.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new StorageException("Unable to write user", e);
+        }
+    }
+
+    private static long getVersion(JsonElement tree) {
+        if (tree == null)
+            return 0L;
+        JsonElement version = tree.getAsJsonObject().get("version");
+        return version == null ? 0L : version.getAsLong();
+    }
+
+    @Override
+    public List<UUID> listUsers(UUID startAfter, int limit) {
+        Map<UUID, JsonElement> tail = startAfter == null ? users : users.tailMap(startAfter, false);
+        List<UUID> list = new ArrayList<>(Math.min(limit, 1024));
+        for (UUID uuid : tail.keySet()) {
+            if (list.size() >= limit)
+                break;
+            list.add(uuid);
+        }
+        return list;
+    }
+
+    @Override
+    public boolean sweepExpired(long now, int batchSize, SweepStatistics statistics) throws StorageException {
+        List<UUID> list = listUsers(sweepCursor, batchSize);
+        for (UUID uuid : list) {
+            sweepUser(uuid, now, statistics);
+        }
+        sweepCursor = list.size() < batchSize ? null : list.get(list.size() - 1);
+        return sweepCursor == null;
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("users", users.size());
+        metrics.put("recoveredUsers", recoveredUsers);
+        metrics.put("recoveryMillis", recoveryTime);
+        metrics.put("walSegment", wal.getSegment());
+        metrics.put("walBytesWritten", wal.getBytesWritten());
+        metrics.put("walSyncs", wal.getSyncCount());
+        metrics.put("snapshots", snapshots);
+        metrics.put("lastSnapshotTime", lastSnapshotTime);
+        metrics.put("lastSnapshotMillis", lastSnapshotDuration);
+        return metrics;
+    }
+
+    /**
+     * Write a final snapshot so the next start has no log to replay.
+     */
+    @Override
+    public void close() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdown();
+            try {
+                snapshotExecutor.awaitTermination(1L, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            wal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
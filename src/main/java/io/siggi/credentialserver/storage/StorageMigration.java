@@ -0,0 +1,194 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.util.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Copies every user of a namespace from one storage backend to another.
+ * <p>
+ * Pages of users are written to the destination while the next pages are
+ * read, with up to a configurable number of pages in flight. After each page
+ * is fully written, its last user is recorded in a checkpoint file so an
+ * interrupted migration resumes where it stopped.
+ * <p>
+ * Usage: {@code java -cp CredentialServer.jar io.siggi.credentialserver.storage.StorageMigration
+ * <source namespace directory> <destination namespace directory> [parallelism] [page size]}
+ * <p>
+ * Each namespace directory must contain a config.txt selecting its storage,
+ * the checkpoint is kept in the destination directory.
+ */
+public final class StorageMigration {
+    private static final long REPORT_INTERVAL = 5000L;
+
+    private final Storage source;
+    private final Storage destination;
+    private final int pageSize;
+    private final File checkpointFile;
+    private final Semaphore inFlight;
+    private final Deque<PendingPage> pending = new ArrayDeque<>();
+    private Map<UUID, User> currentPage = new LinkedHashMap<>();
+    private long copied = 0L;
+    private long startTime;
+    private long lastReport;
+
+    public StorageMigration(Storage source, Storage destination, int parallelism, int pageSize, File checkpointFile) {
+        this.source = source;
+        this.destination = destination;
+        this.pageSize = pageSize;
+        this.checkpointFile = checkpointFile;
+        this.inFlight = new Semaphore(parallelism);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: StorageMigration <source namespace directory> <destination namespace directory> [parallelism] [page size]");
+            System.exit(1);
+            return;
+        }
+        File sourceDirectory = new File(args[0]);
+        File destinationDirectory = new File(args[1]);
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int pageSize = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        Storage source = openStorage(sourceDirectory);
+        Storage destination = openStorage(destinationDirectory);
+        try {
+            new StorageMigration(source, destination, parallelism, pageSize,
+                    new File(destinationDirectory, "migration-checkpoint.txt")).run();
+        } finally {
+            source.close();
+            destination.close();
+        }
+    }
+
+    private static Storage openStorage(File directory) throws IOException {
+        Properties configuration = new Properties();
+        try (FileInputStream in = new FileInputStream(new File(directory, "config.txt"))) {
+            configuration.load(in);
+        }
+        return Storage.create(configuration, directory);
+    }
+
+    public void run() throws StorageException {
+        UUID checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+            System.out.println("Resuming after " + Util.uuidToString(checkpoint));
+        }
+        startTime = lastReport = System.currentTimeMillis();
+        source.scanUsers(checkpoint, pageSize, UserProjection.ALL, new UserScanner() {
+            @Override
+            public void accept(UUID uuid, User user) {
+                user.markAllAsChanged();
+                // whatever the destination holds is overwritten
+                user.setVersion(User.ANY_VERSION);
+                currentPage.put(uuid, user);
+            }
+
+            @Override
+            public void pageCompleted(UUID lastUuid) throws StorageException {
+                submitPage(lastUuid);
+            }
+        });
+        while (!pending.isEmpty()) {
+            completePage(pending.removeFirst());
+        }
+        report(true);
+        if (checkpointFile.exists())
+            checkpointFile.delete();
+    }
+
+    private void submitPage(UUID lastUuid) throws StorageException {
+        Map<UUID, User> page = currentPage;
+        currentPage = new LinkedHashMap<>();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted", e);
+        }
+        CompletableFuture<Void> future = destination.saveUsersAsync(page);
+        future.whenComplete((result, throwable) -> inFlight.release());
+        pending.addLast(new PendingPage(lastUuid, page.size(), future));
+        while (!pending.isEmpty() && pending.peekFirst().future.isDone()) {
+            completePage(pending.removeFirst());
+        }
+        report(false);
+    }
+
+    private void completePage(PendingPage page) throws StorageException {
+        Storage.await(page.future);
+        copied += page.size;
+        writeCheckpoint(page.lastUuid);
+    }
+
+    private void report(boolean finished) {
+        long now = System.currentTimeMillis();
+        if (!finished && now - lastReport < REPORT_INTERVAL)
+            return;
+        lastReport = now;
+        double seconds = Math.max(1L, now - startTime) / 1000.0;
+        System.out.println((finished ? "Finished: " : "") + copied + " users copied, "
+                + String.format("%.1f", copied / seconds) + " users/s, "
+                + pending.size() + " pages in flight");
+    }
+
+    private UUID readCheckpoint() throws StorageException {
+        if (!checkpointFile.exists())
+            return null;
+        try (FileInputStream in = new FileInputStream(checkpointFile)) {
+            String checkpoint = new String(Util.readFully(in), StandardCharsets.UTF_8).trim();
+            return checkpoint.isEmpty() ? null : Util.uuidFromString(checkpoint);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new StorageException("Unable to read checkpoint", e);
+        }
+    }
+
+    private void writeCheckpoint(UUID lastUuid) throws StorageException {
+        try (FileOutputStream out = new FileOutputStream(checkpointFile)) {
+            out.write(Util.uuidToString(lastUuid).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new StorageException("Unable to write checkpoint", e);
+        }
+    }
+
+    private static final class PendingPage {
+        private final UUID lastUuid;
+        private final int size;
+        private final CompletableFuture<Void> future;
+
+        private PendingPage(UUID lastUuid, int size, CompletableFuture<Void> future) {
+            this.lastUuid = lastUuid;
+            this.size = size;
+            this.future = future;
+        }
+    }
+}
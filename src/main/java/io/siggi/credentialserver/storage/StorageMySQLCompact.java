@@ -0,0 +1,342 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.credential.Credential;
+import io.siggi.credentialserver.credential.CredentialSession;
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.serialization.Serialization;
+import io.siggi.credentialserver.util.Util;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MySQL storage keeping each user in a single row of the {@code users} table,
+ * selected with {@code mysql-schema=compact}. The row holds the user as JSON
+ * along with its version and the earliest expiry of its sessions and
+ * credentials, so reading a user is one primary key lookup and saving one is
+ * a single conditional statement.
+ * <p>
+ * Users still in the tables of {@link StorageMySQL} are read from there until
+ * they are saved, and a background thread moves them over one user per
+ * transaction while the server runs. Every server sharing the database must
+ * be switched to the compact schema at the same time, a server still writing
+ * the old tables would not be seen once a user has been moved.
+ */
+public class StorageMySQLCompact extends StorageMySQL {
+    private final int migrationBatchSize;
+    private final Thread migrationThread;
+    private volatile boolean legacyPending;
+    private volatile boolean closed = false;
+    private final AtomicLong usersMigrated = new AtomicLong();
+    private final AtomicLong legacyReads = new AtomicLong();
+    private final MigrationRetry migrationRetry = new MigrationRetry("move users to the compact schema");
+
+    public StorageMySQLCompact(Properties configuration) {
+        super(configuration);
+        migrationBatchSize = Integer.parseInt(configuration.getProperty("mysql-migration-batch", "100"));
+        try (Connection connection = getConnection()) {
+            try (PreparedStatement createUsersTable = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS `users` (" +
+                            "`userid` binary(16) NOT NULL," +
+                            "`version` bigint NOT NULL," +
+                            "`nextexpiry` bigint NOT NULL DEFAULT '0'," +
+                            "`data` mediumblob NOT NULL," +
+                            "PRIMARY KEY (`userid`)" +
+                            ")"
+            )) {
+                createUsersTable.executeUpdate();
+            }
+            getDialect().createIndex(connection, "users", "nextexpiry", "nextexpiry");
+            legacyPending = !super.listUsers(null, 1).isEmpty();
+        } catch (SQLException | StorageException e) {
+            throw new RuntimeException("Could not create tables", e);
+        }
+        if (legacyPending) {
+            migrationThread = new Thread(this::migrate, "StorageMySQLCompact-migration");
+            migrationThread.setDaemon(true);
+            migrationThread.start();
+        } else {
+            migrationThread = null;
+        }
+    }
+
+    @Override
+    protected User readUser(Connection connection, UUID uuid, UserProjection projection) throws SQLException {
+        // the row is read whole, a projection saves nothing here
+        boolean autoCommit = connection.getAutoCommit();
+        // one snapshot for both schemas, so a user moved in between is seen in exactly one
+        connection.setAutoCommit(false);
+        try {
+            try (PreparedStatement userReader = connection.prepareStatement(
+                    "SELECT `version`,`data` FROM `users` WHERE `userid`=?"
+            )) {
+                userReader.setBytes(1, Util.uuidToBytes(uuid));
+                try (ResultSet resultSet = userReader.executeQuery()) {
+                    if (resultSet.next()) {
+                        User user = Serialization.deserialize(new String(resultSet.getBytes("data"), StandardCharsets.UTF_8), User.class);
+                        user.setVersion(resultSet.getLong("version"));
+                        return user;
+                    }
+                }
+            }
+            if (!legacyPending)
+                return new User();
+            legacyReads.incrementAndGet();
+            return super.readUser(connection, uuid, UserProjection.ALL);
+        } finally {
+            connection.commit();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    @Override
+    public boolean canSavePartialUsers() {
+        return false;
+    }
+
+    @Override
+    protected void saveUser(Connection connection, UUID uuid, User user) throws SQLException, StorageException {
+        if (user.isPartial())
+            throw new StorageException("Unable to write partially loaded user");
+        byte[] userId = Util.uuidToBytes(uuid);
+        byte[] data = Serialization.serialize(user, false).getBytes(StandardCharsets.UTF_8);
+        long nextExpiry = getNextExpiry(user);
+        long expectedVersion = user.getVersion();
+        long newVersion;
+        if (expectedVersion == User.ANY_VERSION) {
+            try (PreparedStatement upsertUser = connection.prepareStatement(
+                    "INSERT INTO `users` (`userid`,`version`,`nextexpiry`,`data`) VALUES (?,1,?,?) "
+                            + "ON DUPLICATE KEY UPDATE `version`=`version`+1,`nextexpiry`=?,`data`=?"
+            )) {
+                upsertUser.setBytes(1, userId);
+                upsertUser.setLong(2, nextExpiry);
+                upsertUser.setBytes(3, data);
+                upsertUser.setLong(4, nextExpiry);
+                upsertUser.setBytes(5, data);
+                upsertUser.executeUpdate();
+            }
+            newVersion = readVersion(connection, userId);
+        } else {
+            int updated = 0;
+            if (expectedVersion > 0L) {
+                try (PreparedStatement updateUser = connection.prepareStatement(
+                        "UPDATE `users` SET `version`=`version`+1,`nextexpiry`=?,`data`=? WHERE `userid`=? AND `version`=?"
+                )) {
+                    updateUser.setLong(1, nextExpiry);
+                    updateUser.setBytes(2, data);
+                    updateUser.setBytes(3, userId);
+                    updateUser.setLong(4, expectedVersion);
+                    updated = updateUser.executeUpdate();
+                }
+            }
+            if (updated == 0) {
+                // no row yet: a new user, or one read from the old tables
+                // which nothing writes to any more, so its version still holds
+                updated = insertUser(connection, userId, expectedVersion + 1L, nextExpiry, data);
+            }
+            if (updated == 0) {
+                connection.rollback();
+                throw new VersionConflictException("User " + Util.uuidToString(uuid) + " is no longer at version " + expectedVersion);
+            }
+            newVersion = expectedVersion + 1L;
+        }
+        connection.commit();
+        user.setVersion(newVersion);
+    }
+
+    private static int insertUser(Connection connection, byte[] userId, long version, long nextExpiry, byte[] data) throws SQLException {
+        try (PreparedStatement insertUser = connection.prepareStatement(
+                "INSERT IGNORE INTO `users` (`userid`,`version`,`nextexpiry`,`data`) VALUES (?,?,?,?)"
+        )) {
+            insertUser.setBytes(1, userId);
+            insertUser.setLong(2, version);
+            insertUser.setLong(3, nextExpiry);
+            insertUser.setBytes(4, data);
+            return insertUser.executeUpdate();
+        }
+    }
+
+    private static long readVersion(Connection connection, byte[] userId) throws SQLException {
+        try (PreparedStatement versionReader = connection.prepareStatement("SELECT `version` FROM `users` WHERE `userid`=?")) {
+            versionReader.setBytes(1, userId);
+            try (ResultSet resultSet = versionReader.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong("version") : 0L;
+            }
+        }
+    }
+
+    /**
+     * Get the earliest time a session or credential of the user expires, or
+     * 0 if nothing does.
+     */
+    private static long getNextExpiry(User user) {
+        long nextExpiry = 0L;
+        for (Credential credential : user.getCredentials()) {
+            long expires = credential.getExpires();
+            if (expires > 0L && (nextExpiry == 0L || expires < nextExpiry))
+                nextExpiry = expires;
+        }
+        for (CredentialSession session : user.getCredentialSessions()) {
+            long expiry = Math.max(1L, session.getExpiry());
+            if (nextExpiry == 0L || expiry < nextExpiry)
+                nextExpiry = expiry;
+        }
+        return nextExpiry;
+    }
+
+    @Override
+    public List<UUID> listUsers(UUID startAfter, int limit) throws StorageException {
+        byte[] cursor = startAfter == null ? new byte[16] : Util.uuidToBytes(startAfter);
+        String comparison = startAfter == null ? ">=" : ">";
+        TreeSet<UUID> users = new TreeSet<>(Storage::compareUuids);
+        try (Connection connection = getConnection();
+             PreparedStatement listUsers = connection.prepareStatement(
+                     "SELECT `userid` FROM `users` WHERE `userid`" + comparison + "? ORDER BY `userid` LIMIT ?"
+             )) {
+            listUsers.setBytes(1, cursor);
+            listUsers.setInt(2, limit);
+            try (ResultSet resultSet = listUsers.executeQuery()) {
+                while (resultSet.next()) {
+                    users.add(Util.uuidFromBytes(resultSet.getBytes("userid")));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new StorageException("Database access", ex);
+        }
+        if (legacyPending) {
+            users.addAll(super.listUsers(startAfter, limit));
+        }
+        List<UUID> page = new ArrayList<>(Math.min(limit, users.size()));
+        for (UUID uuid : users) {
+            if (page.size() == limit)
+                break;
+            page.add(uuid);
+        }
+        return page;
+    }
+
+    @Override
+    public boolean sweepExpired(long now, int batchSize, SweepStatistics statistics) throws StorageException {
+        boolean legacyComplete = !legacyPending || super.sweepExpired(now, batchSize, statistics);
+        List<UUID> expired = new ArrayList<>();
+        try (Connection connection = getConnection();
+             PreparedStatement findExpired = connection.prepareStatement(
+                     "SELECT `userid` FROM `users` WHERE `nextexpiry`>0 AND `nextexpiry`<? LIMIT ?"
+             )) {
+            findExpired.setLong(1, now);
+            findExpired.setInt(2, batchSize);
+            try (ResultSet resultSet = findExpired.executeQuery()) {
+                while (resultSet.next()) {
+                    expired.add(Util.uuidFromBytes(resultSet.getBytes("userid")));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new StorageException("Database access", ex);
+        }
+        for (UUID uuid : expired) {
+            sweepUser(uuid, now, statistics);
+        }
+        return legacyComplete && expired.size() < batchSize;
+    }
+
+    private void migrate() {
+        UUID cursor = null;
+        while (!closed) {
+            try {
+                List<UUID> page = super.listUsers(cursor, migrationBatchSize);
+                for (UUID uuid : page) {
+                    if (closed)
+                        return;
+                    migrateUser(uuid);
+                    usersMigrated.incrementAndGet();
+                }
+                migrationRetry.succeeded();
+                if (page.size() == migrationBatchSize) {
+                    cursor = page.get(page.size() - 1);
+                    continue;
+                }
+                if (cursor == null) {
+                    legacyPending = false;
+                    return;
+                }
+                // start over for whatever failed or was missed
+                cursor = null;
+            } catch (SQLException | StorageException e) {
+                if (closed || !migrationRetry.failed(e))
+                    return;
+                cursor = null;
+            }
+        }
+    }
+
+    /**
+     * Move one user from the old tables into its row, unless the user was
+     * saved since and already has one.
+     */
+    private void migrateUser(UUID uuid) throws SQLException {
+        byte[] userId = Util.uuidToBytes(uuid);
+        try (Connection connection = getConnection()) {
+            connection.setAutoCommit(false);
+            User user = super.readUser(connection, uuid, UserProjection.ALL);
+            // users from before versioning are at 0, which saveUser takes
+            // to mean there is no row yet
+            insertUser(connection, userId, Math.max(1L, user.getVersion()),
+                    getNextExpiry(user), Serialization.serialize(user, false).getBytes(StandardCharsets.UTF_8));
+            for (String table : new String[]{"usercredentials", "userdata", "usercredentialsessions", "userversions"}) {
+                try (PreparedStatement deleteRows = connection.prepareStatement(
+                        "DELETE FROM `" + table + "` WHERE `userid`=?"
+                )) {
+                    deleteRows.setBytes(1, userId);
+                    deleteRows.executeUpdate();
+                }
+            }
+            connection.commit();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(super.getMetrics());
+        metrics.put("schema", "compact");
+        metrics.put("migrationPending", legacyPending);
+        metrics.put("usersMigrated", usersMigrated.get());
+        metrics.put("migrationFailures", migrationRetry.getFailures());
+        metrics.put("legacyReads", legacyReads.get());
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (migrationThread != null)
+            migrationThread.interrupt();
+        super.close();
+    }
+}
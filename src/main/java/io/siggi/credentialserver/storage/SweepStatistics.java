@@ -0,0 +1,61 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the removal of expired sessions and credentials.
+ */
+public final class SweepStatistics {
+    public final AtomicLong usersScanned = new AtomicLong();
+    public final AtomicLong usersUpdated = new AtomicLong();
+    public final AtomicLong sessionsRemoved = new AtomicLong();
+    public final AtomicLong credentialsRemoved = new AtomicLong();
+    public final AtomicLong passesCompleted = new AtomicLong();
+    public final AtomicLong errors = new AtomicLong();
+    private volatile String cursor = "";
+    private volatile long lastPassCompleted = 0L;
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public void passCompleted(long time) {
+        passesCompleted.incrementAndGet();
+        lastPassCompleted = time;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("usersScanned", usersScanned.get());
+        map.put("usersUpdated", usersUpdated.get());
+        map.put("sessionsRemoved", sessionsRemoved.get());
+        map.put("credentialsRemoved", credentialsRemoved.get());
+        map.put("passesCompleted", passesCompleted.get());
+        map.put("lastPassCompleted", lastPassCompleted);
+        map.put("errors", errors.get());
+        map.put("cursor", cursor);
+        return map;
+    }
+}
@@ -0,0 +1,202 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import com.google.gson.JsonElement;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of the stored JSON of users in a
+ * {@link StorageFile}.
+ * <p>
+ * Entries are dropped when the {@link ChangeJournal} reports that another
+ * process wrote the user, which happens some time after the write. When
+ * verification is on, each hit is also checked against the file's identity,
+ * modification time and size, which catches writes the journal has not
+ * delivered yet. Without verification, a user written by another process
+ * can be served from the cache until the journal is next polled.
+ */
+final class UserCache {
+    private final int capacity;
+    private final boolean verify;
+    private final LinkedHashMap<UUID, Entry> entries;
+    private long generation = 0L;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    UserCache(int capacity, boolean verify) {
+        this.capacity = capacity;
+        this.verify = verify;
+        this.entries = new LinkedHashMap<UUID, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+                return size() > UserCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the cached JSON of a user, or null if it is not cached or the file
+     * changed since it was cached.
+     */
+    JsonElement get(UUID uuid) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(uuid);
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (verify && !entry.stamp.equals(FileStamp.of(entry.file))) {
+            stale.incrementAndGet();
+            synchronized (this) {
+                entries.remove(uuid, entry);
+            }
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.tree;
+    }
+
+    /**
+     * Get a number that changes whenever an entry is invalidated, to be
+     * passed to {@link #put} by a reader that started before the put.
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache the JSON of a user read from a file, unless something was
+     * invalidated since the reader took the generation, since the JSON may
+     * be older than the invalidation.
+     *
+     * @param stamp the stamp of the file taken before it was read
+     */
+    synchronized void put(UUID uuid, JsonElement tree, File file, FileStamp stamp, long readGeneration) {
+        if (stamp == null || readGeneration != generation)
+            return;
+        entries.put(uuid, new Entry(tree, file, stamp));
+    }
+
+    /**
+     * Replace the cached JSON of a user after writing it. The old entry is
+     * invalidated so readers that read the old file do not cache it, and
+     * the new one is cached unless something else was invalidated since
+     * the writer took the generation.
+     */
+    synchronized void update(UUID uuid, JsonElement tree, File file, FileStamp stamp, long writeGeneration) {
+        boolean unchanged = writeGeneration == generation;
+        invalidate(uuid);
+        if (unchanged && stamp != null)
+            entries.put(uuid, new Entry(tree, file, stamp));
+    }
+
+    synchronized void invalidate(UUID uuid) {
+        generation += 1L;
+        if (entries.remove(uuid) != null)
+            invalidations.incrementAndGet();
+    }
+
+    synchronized void clear() {
+        generation += 1L;
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        synchronized (this) {
+            metrics.put("size", entries.size());
+        }
+        metrics.put("capacity", capacity);
+        metrics.put("verify", verify);
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        metrics.put("stale", stale.get());
+        metrics.put("invalidations", invalidations.get());
+        return metrics;
+    }
+
+    private static final class Entry {
+        private final JsonElement tree;
+        private final File file;
+        private final FileStamp stamp;
+
+        private Entry(JsonElement tree, File file, FileStamp stamp) {
+            this.tree = tree;
+            this.file = file;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * Identifies one version of a file. Since users are replaced by moving a
+     * new file over the old one, the file key alone tells versions apart
+     * where the platform has one.
+     */
+    static final class FileStamp {
+        private final Object fileKey;
+        private final long modified;
+        private final long size;
+
+        private FileStamp(Object fileKey, long modified, long size) {
+            this.fileKey = fileKey;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        /**
+         * @return the stamp of the file, or null if it does not exist
+         */
+        static FileStamp of(File file) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                return new FileStamp(attributes.fileKey(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof FileStamp))
+                return false;
+            FileStamp stamp = (FileStamp) other;
+            return Objects.equals(fileKey, stamp.fileKey) && modified == stamp.modified && size == stamp.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, modified, size);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes which parts of a user should be loaded from storage.
+ * <p>
+ * A user loaded with anything less than {@link #ALL} is partial and must
+ * not be written back by storage backends that replace the whole user.
+ */
+public final class UserProjection {
+    public static final UserProjection ALL = new UserProjection(true, null, true);
+    public static final UserProjection VARIABLES = new UserProjection(true, Collections.emptySet(), false);
+    public static final UserProjection CREDENTIALS = new UserProjection(false, null, false);
+    public static final UserProjection SESSIONS = new UserProjection(false, Collections.emptySet(), true);
+
+    private final boolean variables;
+    private final Set<String> credentialTypes;
+    private final boolean sessions;
+
+    private UserProjection(boolean variables, Set<String> credentialTypes, boolean sessions) {
+        this.variables = variables;
+        this.credentialTypes = credentialTypes;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Create a projection with only the credentials of the given types.
+     */
+    public static UserProjection credentials(String... types) {
+        return new UserProjection(false, Collections.unmodifiableSet(new HashSet<>(Arrays.asList(types))), false);
+    }
+
+    /**
+     * Create a projection with everything in this or the other projection.
+     */
+    public UserProjection and(UserProjection other) {
+        Set<String> types;
+        if (credentialTypes == null || other.credentialTypes == null) {
+            types = null;
+        } else {
+            Set<String> union = new HashSet<>(credentialTypes);
+            union.addAll(other.credentialTypes);
+            types = Collections.unmodifiableSet(union);
+        }
+        return new UserProjection(variables || other.variables, types, sessions || other.sessions);
+    }
+
+    public boolean includesVariables() {
+        return variables;
+    }
+
+    public boolean includesCredentials() {
+        return credentialTypes == null || !credentialTypes.isEmpty();
+    }
+
+    public boolean includesCredentialType(String type) {
+        return credentialTypes == null || credentialTypes.contains(type);
+    }
+
+    /**
+     * Get the credential types to load, or null if all types are loaded.
+     */
+    public Set<String> getCredentialTypes() {
+        return credentialTypes;
+    }
+
+    public boolean includesSessions() {
+        return sessions;
+    }
+
+    public boolean isComplete() {
+        return variables && credentialTypes == null && sessions;
+    }
+}
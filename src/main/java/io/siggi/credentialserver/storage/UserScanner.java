@@ -0,0 +1,35 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.credential.User;
+
+import java.util.UUID;
+
+/**
+ * Receives the users found by {@link Storage#scanUsers}.
+ */
+public interface UserScanner {
+    void accept(UUID uuid, User user) throws StorageException;
+
+    /**
+     * Called after every user up to and including lastUuid has been passed
+     * to {@link #accept}, a scan started after lastUuid resumes from here.
+     */
+    default void pageCompleted(UUID lastUuid) throws StorageException {
+    }
+}
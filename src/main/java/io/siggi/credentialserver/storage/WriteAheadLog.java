@@ -0,0 +1,379 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of user records split into numbered segment files.
+ * <p>
+ * Each record is the payload length, a CRC32 of the payload, and the payload
+ * itself: the user UUID followed by the user's JSON. A crash in the middle
+ * of an append leaves a damaged record at the end of the last segment, which
+ * ends the segment when it is read back. A damaged record anywhere else
+ * means the log itself is corrupt and fails the read.
+ * <p>
+ * A failed fsync fails the saves it was meant to cover. Records appended
+ * after it are covered by the next fsync that succeeds.
+ */
+final class WriteAheadLog {
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File directory;
+    private final Durability durability;
+    private final Object syncLock = new Object();
+    private final Thread syncThread;
+    private FileChannel channel;
+    private long segment;
+    private long appended = 0L;
+    private long written = 0L;
+    private long synced = 0L;
+    private long syncCount = 0L;
+    private long failedThrough = 0L;
+    private IOException syncFailure;
+    private volatile boolean closed = false;
+
+    /**
+     * @param segment      the number of the segment to start writing
+     * @param syncInterval milliseconds between fsyncs in {@link Durability#BATCH}
+     */
+    WriteAheadLog(File directory, long segment, Durability durability, long syncInterval) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.segment = segment;
+        this.channel = open(segment);
+        if (durability == Durability.BATCH) {
+            syncThread = new Thread(() -> {
+                while (!closed) {
+                    try {
+                        Thread.sleep(syncInterval);
+                        sync();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        // the waiters are told, the next round tries again
+                        e.printStackTrace();
+                    }
+                }
+            }, "WriteAheadLog-" + directory.getName());
+            syncThread.setDaemon(true);
+            syncThread.start();
+        } else {
+            syncThread = null;
+        }
+    }
+
+    private FileChannel open(long segment) throws IOException {
+        FileChannel opened = FileChannel.open(segmentFile(directory, segment).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (durability != Durability.NONE)
+            syncDirectory(directory);
+        return opened;
+    }
+
+    /**
+     * Flush a directory so that files created in or moved into it survive a
+     * crash. Not every platform can open a directory, there this does
+     * nothing.
+     */
+    static void syncDirectory(File directory) {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on this platform
+        }
+    }
+
+    static File segmentFile(File directory, long segment) {
+        return new File(directory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * List the numbers of the segments in a directory in ascending order.
+     */
+    static List<Long> listSegments(File directory) {
+        List<Long> segments = new ArrayList<>();
+        String[] files = directory.list();
+        if (files == null)
+            return segments;
+        for (String file : files) {
+            if (!file.startsWith(SEGMENT_PREFIX) || !file.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                segments.add(Long.parseLong(file.substring(SEGMENT_PREFIX.length(), file.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    static ByteBuffer encode(UUID uuid, byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 16 + data.length);
+        buffer.position(8);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        buffer.put(data);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 8, 16 + data.length);
+        buffer.putInt(0, 16 + data.length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Read every record from a segment or snapshot file.
+     *
+     * @param tornTail whether the file may end in a record cut short by a
+     *                 crash, which is only the case for the last segment
+     * @return the length of the file up to the end of the last good record
+     * @throws IOException if a record is damaged, other than a torn tail
+     */
+    static long read(File file, boolean tornTail, RecordConsumer consumer) throws IOException {
+        long fileLength = file.length();
+        long offset = 0L;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            while (offset < fileLength) {
+                byte[] payload = readRecord(in, fileLength - offset);
+                if (payload == null) {
+                    if (tornTail && isTorn(file, offset))
+                        return offset;
+                    throw new IOException("Damaged record in " + file + " at offset " + offset);
+                }
+                offset += 8L + payload.length;
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+                byte[] data = new byte[payload.length - 16];
+                buffer.get(data);
+                consumer.accept(uuid, data);
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * Read the payload of a record, or return null if it is damaged.
+     */
+    private static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+        if (remaining < 8L)
+            return null;
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 16 || length > remaining - 8L)
+            return null;
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum)
+            return null;
+        return payload;
+    }
+
+    /**
+     * Check whether a damaged record is what an interrupted append leaves
+     * behind: either it runs up to the end of the file, or everything from
+     * it on is zeros from a file extended before its data was written.
+     */
+    private static boolean isTorn(File file, long offset) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long fileLength = in.length();
+            in.seek(offset);
+            if (fileLength - offset >= 8L) {
+                long length = in.readInt() & 0xffffffffL;
+                if (length != 0L)
+                    return length >= 16L && offset + 8L + length >= fileLength;
+            }
+            in.seek(offset);
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != 0)
+                        return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Cut a segment back to the end of its last good record, so the torn
+     * tail left by a crash is gone before later segments are appended.
+     */
+    static void truncate(File file, long length) throws IOException {
+        if (file.length() <= length)
+            return;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Append a record.
+     *
+     * @return the sequence number to pass to {@link #awaitDurable}
+     */
+    synchronized long append(UUID uuid, byte[] data) throws IOException {
+        ByteBuffer buffer = encode(uuid, data);
+        written += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return ++appended;
+    }
+
+    /**
+     * Wait until the record with the sequence number is on disk, as far as
+     * the durability promises.
+     */
+    void awaitDurable(long sequence) throws IOException {
+        switch (durability) {
+            case NONE:
+                return;
+            case ALWAYS:
+                sync();
+                synchronized (syncLock) {
+                    if (sequence <= failedThrough)
+                        throw syncFailure;
+                }
+                return;
+            case BATCH:
+                synchronized (syncLock) {
+                    while (true) {
+                        // a later fsync succeeding says nothing about data
+                        // an earlier one failed to write
+                        if (sequence <= failedThrough)
+                            throw syncFailure;
+                        if (synced >= sequence)
+                            return;
+                        try {
+                            syncLock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted", e);
+                        }
+                    }
+                }
+        }
+    }
+
+    /**
+     * Flush everything appended so far to disk. Appends may continue while
+     * this runs, and callers that find their record already synced return
+     * immediately.
+     */
+    void sync() throws IOException {
+        FileChannel target;
+        long sequence;
+        synchronized (this) {
+            target = channel;
+            sequence = appended;
+        }
+        synchronized (syncLock) {
+            if (synced >= sequence)
+                return;
+        }
+        try {
+            target.force(false);
+        } catch (ClosedChannelException e) {
+            // the segment was rotated, which synced it
+        } catch (IOException e) {
+            synchronized (syncLock) {
+                if (sequence > failedThrough) {
+                    failedThrough = sequence;
+                    syncFailure = e;
+                }
+                syncLock.notifyAll();
+            }
+            throw e;
+        }
+        synchronized (syncLock) {
+            if (sequence > synced)
+                synced = sequence;
+            syncCount += 1;
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Close the current segment and continue in a new one.
+     *
+     * @return the number of the closed segment
+     */
+    synchronized long rotate() throws IOException {
+        channel.force(false);
+        channel.close();
+        synchronized (syncLock) {
+            synced = appended;
+            syncLock.notifyAll();
+        }
+        long closedSegment = segment;
+        segment += 1;
+        channel = open(segment);
+        return closedSegment;
+    }
+
+    synchronized long getSegment() {
+        return segment;
+    }
+
+    synchronized long getBytesWritten() {
+        return written;
+    }
+
+    long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        closed = true;
+        if (syncThread != null)
+            syncThread.interrupt();
+        channel.force(false);
+        channel.close();
+        synchronized (syncLock) {
+            synced = appended;
+            syncLock.notifyAll();
+        }
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(UUID uuid, byte[] data) throws IOException;
+    }
+}
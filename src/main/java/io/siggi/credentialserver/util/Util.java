@@ -65,6 +65,32 @@ public final class Util {
         return uuid.toString().replace("-", "");
     }
 
+    /**
+     * Get the 16 bytes of a UUID, in the same order as its hex string.
+     */
+    public static byte[] uuidToBytes(UUID uuid) {
+        byte[] bytes = new byte[16];
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (msb >>> (56 - i * 8));
+            bytes[i + 8] = (byte) (lsb >>> (56 - i * 8));
+        }
+        return bytes;
+    }
+
+    public static UUID uuidFromBytes(byte[] bytes) {
+        if (bytes.length != 16)
+            throw new IllegalArgumentException("Invalid UUID length");
+        long msb = 0L;
+        long lsb = 0L;
+        for (int i = 0; i < 8; i++) {
+            msb = (msb << 8) | (bytes[i] & 0xffL);
+            lsb = (lsb << 8) | (bytes[i + 8] & 0xffL);
+        }
+        return new UUID(msb, lsb);
+    }
+
     public static byte[] readFully(InputStream in) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         copy(in, out);
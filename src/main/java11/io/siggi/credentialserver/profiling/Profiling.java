@@ -0,0 +1,115 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.profiling;
+
+/**
+ * Marks where requests spend their time, as JDK Flight Recorder events.
+ * <p>
+ * This is the Java 11 version of this class, which emits the events in
+ * this package. While no recording has them enabled, a span costs an
+ * object the JIT can usually remove.
+ * <p>
+ * Spans are used with try-with-resources:
+ * <pre>
+ * try (Span span = Profiling.phase("parse")) {
+ *     ...
+ * }
+ * </pre>
+ * Spans opened on a thread inside a request span are tagged with its
+ * namespace, action and credential type.
+ */
+public final class Profiling {
+    private static final ThreadLocal<RequestContext> context = new ThreadLocal<>();
+
+    private Profiling() {
+    }
+
+    /**
+     * Whether spans are recorded at all in this runtime.
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * Start handling a request to /users on this thread.
+     */
+    public static Span request(String namespace, String action) {
+        RequestContext requestContext = new RequestContext(namespace, action, context.get());
+        context.set(requestContext);
+        return new RequestEvent(requestContext);
+    }
+
+    static void endRequest(RequestContext requestContext) {
+        context.set(requestContext.previous);
+    }
+
+    static RequestContext getContext() {
+        return context.get();
+    }
+
+    /**
+     * Set the credential type of the request on this thread, once the
+     * request has been parsed far enough to know it.
+     */
+    public static void setCredentialType(String credentialType) {
+        RequestContext requestContext = context.get();
+        if (requestContext != null)
+            requestContext.credentialType = credentialType;
+    }
+
+    /**
+     * Start a phase of the request on this thread, such as parsing the
+     * request, performing the action or serializing the response.
+     */
+    public static Span phase(String phase) {
+        return new PhaseEvent(phase);
+    }
+
+    /**
+     * Start waiting for storage.
+     *
+     * @param operation read or write
+     * @param backend   the storage class
+     */
+    public static Span storage(String operation, String backend) {
+        return new StorageEvent(operation, backend);
+    }
+
+    /**
+     * Start checking a password against its hash.
+     */
+    public static Span passwordVerify(String algorithm) {
+        return new PasswordVerifyEvent(algorithm);
+    }
+
+    /**
+     * Start checking a TOTP code.
+     */
+    public static Span totpValidate() {
+        return new TotpValidateEvent();
+    }
+
+    /**
+     * Start a call to the WebAuthn relying party.
+     *
+     * @param operation the RelyingParty method
+     */
+    public static Span webAuthn(String operation) {
+        return new WebAuthnEvent(operation);
+    }
+}
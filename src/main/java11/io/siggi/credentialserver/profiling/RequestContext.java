@@ -0,0 +1,33 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.profiling;
+
+/**
+ * The request a thread is handling, for tagging the events inside it.
+ */
+final class RequestContext {
+    final String namespace;
+    final String action;
+    volatile String credentialType;
+    final RequestContext previous;
+
+    RequestContext(String namespace, String action, RequestContext previous) {
+        this.namespace = namespace;
+        this.action = action;
+        this.previous = previous;
+    }
+}
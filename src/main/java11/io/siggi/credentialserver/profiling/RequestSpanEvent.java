@@ -0,0 +1,59 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.profiling;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * An event tagged with the request it happened in, committed when its span
+ * is closed.
+ */
+@Category("CredentialServer")
+@StackTrace(false)
+abstract class RequestSpanEvent extends Event implements Span {
+    @Label("Namespace")
+    String namespace;
+    @Label("Action")
+    String action;
+    @Label("Credential Type")
+    String credentialType;
+
+    RequestSpanEvent() {
+        begin();
+    }
+
+    RequestContext getRequestContext() {
+        return Profiling.getContext();
+    }
+
+    @Override
+    public void close() {
+        end();
+        if (shouldCommit()) {
+            RequestContext requestContext = getRequestContext();
+            if (requestContext != null) {
+                namespace = requestContext.namespace;
+                action = requestContext.action;
+                credentialType = requestContext.credentialType;
+            }
+            commit();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*!
+ * This file is part of CredentialServer.
+ *
+ * CredentialServer is free software: you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * CredentialServer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with CredentialServer. If not, see <https://www.gnu.org/licenses/>.
+ */
+package io.siggi.credentialserver.profiling;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("io.siggi.credentialserver.Storage")
+@Label("Storage")
+@Description("Waiting for a user to be read from or written to storage")
+final class StorageEvent extends RequestSpanEvent {
+    @Label("Operation")
+    String operation;
+    @Label("Backend")
+    String backend;
+
+    StorageEvent(String operation, String backend) {
+        this.operation = operation;
+        this.backend = backend;
+    }
+}
@@ -0,0 +1,120 @@
+package io.siggi.credentialserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.siggi.credentialserver.apiresponses.LoginResult;
+import io.siggi.credentialserver.storage.UserProjection;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Properties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CredentialServerTest {
+    private static final String NAMESPACE = "test";
+
+    @TempDir
+    File root;
+
+    private CredentialServer server;
+
+    @BeforeEach
+    public void start() throws Exception {
+        File namespaceDirectory = new File(root, "namespaces/" + NAMESPACE);
+        namespaceDirectory.mkdirs();
+        Properties configuration = new Properties();
+        configuration.setProperty("storage", "memory");
+        configuration.setProperty("memory-durability", "none");
+        try (FileOutputStream out = new FileOutputStream(new File(namespaceDirectory, "config.txt"))) {
+            configuration.store(out, null);
+        }
+        server = new CredentialServer("127.0.0.1", 0, root);
+        // only started so that stop() closes the namespace
+        server.start();
+    }
+
+    @AfterEach
+    public void stop() {
+        server.stop();
+    }
+
+    private Object perform(String userId, String action, JsonObject postData) throws Exception {
+        return server.performUserAction(NAMESPACE, userId, action, postData);
+    }
+
+    private static JsonObject password(String password) {
+        JsonObject postData = new JsonObject();
+        postData.addProperty("type", "password");
+        postData.addProperty("data", password);
+        return postData;
+    }
+
+    @Test
+    public void performsActionsOnUsersNamedByAnyString() throws Exception {
+        JsonObject variables = new JsonObject();
+        variables.addProperty("username", "alice");
+        variables.addProperty("email", "alice@example.com");
+        perform("alice", "metaset", variables);
+        JsonObject keys = new JsonObject();
+        JsonArray keyArray = new JsonArray();
+        keyArray.add("username");
+        keys.add("keys", keyArray);
+        JsonObject expected = new JsonObject();
+        expected.addProperty("username", "alice");
+        assertEquals(expected, perform("alice", "metaget", keys));
+
+        assertTrue(((LoginResult) perform("alice", "finishregistration", password("secret"))).success);
+        assertEquals(Collections.singleton("password"), perform("alice", "types", null));
+        assertFalse(((LoginResult) perform("alice", "finishlogin", password("wrong"))).success);
+        assertTrue(((LoginResult) perform("alice", "finishlogin", password("secret"))).success);
+        // another name is another user
+        assertEquals(Collections.emptySet(), perform("bob", "types", null));
+    }
+
+    @Test
+    public void reportsThePortItListensOn() throws Exception {
+        int port = server.getPort();
+        assertNotEquals(0, port);
+        new Socket("127.0.0.1", port).close();
+    }
+
+    @Test
+    public void loadsOnlyWhatEachStepNeeds() {
+        assertSame(UserProjection.VARIABLES, CredentialServer.getProjection("metaget", null, true));
+        assertSame(UserProjection.CREDENTIALS, CredentialServer.getProjection("types", null, true));
+
+        UserProjection password = CredentialServer.getProjection("finishlogin", password("secret"), true);
+        assertTrue(password.includesCredentialType("password"));
+        assertFalse(password.includesCredentialType("totp"));
+        assertFalse(password.includesVariables());
+
+        JsonObject totp = new JsonObject();
+        totp.addProperty("type", "totp");
+        UserProjection totpRegistration = CredentialServer.getProjection("startregistration", totp, true);
+        assertTrue(totpRegistration.includesSessions());
+        assertFalse(totpRegistration.includesCredentials());
+        assertFalse(totpRegistration.includesVariables());
+
+        JsonObject webAuthn = new JsonObject();
+        webAuthn.addProperty("type", "webauthn");
+        UserProjection webAuthnLogin = CredentialServer.getProjection("startlogin", webAuthn, true);
+        assertTrue(webAuthnLogin.includesCredentialType("webauthn"));
+        assertFalse(webAuthnLogin.includesCredentialType("password"));
+        assertTrue(webAuthnLogin.includesSessions());
+        assertTrue(webAuthnLogin.includesVariables());
+
+        // storage that rewrites whole users needs all of a user it saves
+        assertSame(UserProjection.ALL, CredentialServer.getProjection("finishlogin", password("secret"), false));
+        assertSame(UserProjection.ALL, CredentialServer.getProjection("finishlogin", null, true));
+        assertSame(UserProjection.ALL, CredentialServer.getProjection("delete", null, true));
+    }
+}
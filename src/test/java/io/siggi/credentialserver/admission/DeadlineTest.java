@@ -0,0 +1,53 @@
+package io.siggi.credentialserver.admission;
+
+import io.siggi.credentialserver.credential.password.PasswordHashing;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DeadlineTest {
+    @Test
+    public void checksOnlyAnExpiredDeadline() throws InterruptedException {
+        Deadline.check("nothing set");
+        Deadline previous = Deadline.set(Deadline.after(10L));
+        try {
+            assertNull(previous);
+            Deadline.check("in time");
+            Thread.sleep(20L);
+            assertTrue(Deadline.current().isExpired());
+            DeadlineExceededException e = assertThrows(DeadlineExceededException.class, () -> Deadline.check("hash"));
+            assertEquals("hash", e.getPhase());
+        } finally {
+            Deadline.set(previous);
+        }
+        assertNull(Deadline.current());
+    }
+
+    @Test
+    public void checksBeforeHashing() {
+        String hash = PasswordHashing.hash("password".toCharArray());
+        Deadline previous = Deadline.set(Deadline.after(0L));
+        try {
+            assertEquals("hash", assertThrows(DeadlineExceededException.class,
+                    () -> PasswordHashing.hash("password".toCharArray())).getPhase());
+            assertEquals("hash", assertThrows(DeadlineExceededException.class,
+                    () -> PasswordHashing.verify("password".toCharArray(), hash)).getPhase());
+        } finally {
+            Deadline.set(previous);
+        }
+    }
+
+    @Test
+    public void takesTheShorterOfTheClientAndNamespaceTimeouts() {
+        Properties configuration = new Properties();
+        configuration.setProperty("request-timeout", "5000");
+        AdmissionControl admissionControl = new AdmissionControl(configuration);
+        assertTrue(admissionControl.getDeadline(0L).getRemainingMillis() > 4000L);
+        assertTrue(admissionControl.getDeadline(2000L).getRemainingMillis() <= 2000L);
+        assertTrue(admissionControl.getDeadline(60000L).getRemainingMillis() <= 5000L);
+        assertNull(new AdmissionControl(new Properties()).getDeadline(0L));
+    }
+}
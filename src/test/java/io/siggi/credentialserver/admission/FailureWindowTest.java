@@ -0,0 +1,87 @@
+package io.siggi.credentialserver.admission;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FailureWindowTest {
+    @Test
+    public void limitsFailuresOverTheWindow() {
+        FailureWindow window = new FailureWindow(3, 60000L, 1024);
+        UUID user = UUID.randomUUID();
+        UUID other = UUID.randomUUID();
+        long now = 600000L;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, window.acquire(user, now));
+        }
+        assertEquals(60000L, window.acquire(user, now));
+        assertEquals(0L, window.acquire(other, now));
+
+        // half of the previous window still counts
+        assertTrue(window.acquire(user, now + 60000L) > 0L);
+        assertEquals(0L, window.acquire(user, now + 90000L));
+        // and none of the one before that
+        assertEquals(0L, window.acquire(user, now + 120000L));
+    }
+
+    @Test
+    public void givesBackAttemptsThatDidNotFail() {
+        FailureWindow window = new FailureWindow(3, 60000L, 1024);
+        UUID user = UUID.randomUUID();
+        long now = 600000L;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0L, window.acquire(user, now));
+            window.release(user, now);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, window.acquire(user, now));
+        }
+        // an attempt still going when the window ends comes off the previous count
+        assertEquals(0L, window.acquire(user, now + 90000L));
+        for (int i = 0; i < 3; i++) {
+            window.release(user, now);
+        }
+        assertEquals(0L, window.acquire(user, now + 60000L));
+    }
+
+    @Test
+    public void limitsAttemptsMadeAtTheSameTime() throws Exception {
+        FailureWindow window = new FailureWindow(3, 60000L, 1024);
+        UUID user = UUID.randomUUID();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger admitted = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (window.acquire(user, 600000L) == 0L)
+                    admitted.incrementAndGet();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(admitted.get() <= 3);
+    }
+
+    @Test
+    public void allowsEverythingWhenDisabled() {
+        FailureWindow window = new FailureWindow(0, 60000L, 1024);
+        UUID user = UUID.randomUUID();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0L, window.acquire(user, 0L));
+        }
+    }
+}
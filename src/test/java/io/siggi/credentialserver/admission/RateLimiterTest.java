@@ -0,0 +1,34 @@
+package io.siggi.credentialserver.admission;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateLimiterTest {
+    @Test
+    public void allowsABurstThenTheRate() {
+        RateLimiter limiter = new RateLimiter(10.0, 3);
+        long now = 5000000000L;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, limiter.tryAcquire(now));
+        }
+        long wait = limiter.tryAcquire(now);
+        assertEquals(100000000L, wait);
+        assertEquals(0L, limiter.tryAcquire(now + wait));
+        assertTrue(limiter.tryAcquire(now + wait) > 0L);
+        // a quiet second refills the bucket, but no further than the burst
+        now += 2000000000L;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, limiter.tryAcquire(now));
+        }
+        assertTrue(limiter.tryAcquire(now) > 0L);
+    }
+
+    @Test
+    public void allowsEverythingWhenDisabled() {
+        RateLimiter limiter = new RateLimiter(0.0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0L, limiter.tryAcquire(0L));
+        }
+    }
+}
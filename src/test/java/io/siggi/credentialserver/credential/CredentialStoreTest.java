@@ -0,0 +1,55 @@
+package io.siggi.credentialserver.credential;
+
+import io.siggi.credentialserver.credential.password.CredentialPassword;
+import io.siggi.credentialserver.credential.totp.CredentialTOTP;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class CredentialStoreTest {
+    private static CredentialPassword password() {
+        return new CredentialPassword(UUID.randomUUID(), null, 0L, 0L, 0L, "plain;password");
+    }
+
+    @Test
+    public void findsCredentialsByUuidTypeAndClass() {
+        User user = new User();
+        CredentialPassword first = password();
+        CredentialPassword second = password();
+        CredentialTOTP totp = new CredentialTOTP(UUID.randomUUID(), null, 0L, 0L, 0L, "JBSWY3DPEHPK3PXP");
+        user.addCredential(first);
+        user.addCredential(totp);
+        user.addCredential(second);
+
+        assertSame(totp, user.getCredential(totp.getUUID()));
+        assertNull(user.getCredential(UUID.randomUUID()));
+        assertEquals(Arrays.asList(first, second), user.getCredentials("password"));
+        assertEquals(Collections.singletonList(totp), user.getCredentials(CredentialTOTP.class));
+        assertEquals(3, user.getCredentials(Credential.class).size());
+        assertEquals(Collections.emptyList(), user.getCredentials("webauthn"));
+    }
+
+    @Test
+    public void deletesWhileIterating() {
+        User user = new User();
+        CredentialPassword first = password();
+        CredentialPassword second = password();
+        user.addCredential(first);
+        user.addCredential(second);
+
+        List<CredentialPassword> passwords = user.getCredentials(CredentialPassword.class);
+        for (CredentialPassword password : passwords) {
+            password.delete();
+        }
+        assertEquals(2, passwords.size());
+        assertEquals(Collections.emptyList(), user.getCredentials("password"));
+        assertEquals(Collections.emptyList(), user.getCredentials());
+        assertNull(user.getCredential(first.getUUID()));
+        assertEquals(Arrays.asList(first, second), user.getDeletedCredentials());
+    }
+}
@@ -0,0 +1,26 @@
+package io.siggi.credentialserver.credential;
+
+import io.siggi.credentialserver.storage.UserProjection;
+import java.util.UUID;
+
+/**
+ * Users for tests that don't need a namespace.
+ */
+public final class TestUsers {
+    private TestUsers() {
+    }
+
+    public static User create(UUID uuid) {
+        User user = new User();
+        user.uuid = uuid;
+        return user;
+    }
+
+    /**
+     * Set up a user read straight from storage the way its namespace would.
+     */
+    public static User load(User user, UUID uuid, UserProjection projection) {
+        user.initialize(null, uuid, !projection.isComplete());
+        return user;
+    }
+}
@@ -0,0 +1,146 @@
+package io.siggi.credentialserver.credential;
+
+import io.siggi.credentialserver.storage.Storage;
+import io.siggi.credentialserver.storage.UserProjection;
+import io.siggi.credentialserver.storage.VersionConflictException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UserNamespaceTest {
+    @TempDir
+    File directory;
+
+    private UserNamespace open(int updateRetries) throws IOException {
+        Properties configuration = new Properties();
+        configuration.setProperty("storage", "memory");
+        configuration.setProperty("memory-durability", "none");
+        configuration.setProperty("update-retries", Integer.toString(updateRetries));
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "config.txt"))) {
+            configuration.store(out, null);
+        }
+        return new UserNamespace(null, "test", directory);
+    }
+
+    @Test
+    public void savesChangedUsers() throws Exception {
+        UserNamespace namespace = open(0);
+        try {
+            UUID uuid = UUID.randomUUID();
+            User user = namespace.readUser(uuid);
+            user.setVariable("name", "blocking");
+            namespace.saveUser(user);
+            assertFalse(user.hasChanged());
+            user = namespace.readUser(uuid);
+            assertEquals("blocking", user.getVariable("name"));
+
+            user.setVariable("name", "async");
+            Storage.await(namespace.saveUserAsync(user));
+            assertFalse(user.hasChanged());
+            assertEquals("async", namespace.readUser(uuid).getVariable("name"));
+        } finally {
+            namespace.close();
+        }
+    }
+
+    @Test
+    public void checkingForChangesKeepsTheFlag() throws Exception {
+        UserNamespace namespace = open(0);
+        try {
+            User user = namespace.readUser(UUID.randomUUID());
+            user.setVariable("name", "changed");
+            assertTrue(user.hasChanged());
+            assertTrue(user.hasChanged());
+        } finally {
+            namespace.close();
+        }
+    }
+
+    @Test
+    public void skipsSavingUnchangedUsers() throws Exception {
+        UserNamespace namespace = open(0);
+        try {
+            UUID uuid = UUID.randomUUID();
+            User user = namespace.readUser(uuid);
+            user.setVariable("name", "first");
+            namespace.saveUser(user);
+            User unchanged = namespace.readUser(uuid);
+            User changed = namespace.readUser(uuid);
+            namespace.saveUser(unchanged);
+            // would be a conflict had the unchanged copy been written
+            changed.setVariable("name", "second");
+            namespace.saveUser(changed);
+            assertEquals("second", namespace.readUser(uuid).getVariable("name"));
+        } finally {
+            namespace.close();
+        }
+    }
+
+    /**
+     * Save the user behind the back of an update that is in progress.
+     */
+    private static void concurrentUpdate(UserNamespace namespace, UUID uuid, String value) throws Exception {
+        User user = namespace.readUser(uuid);
+        user.setVariable("concurrent", value);
+        namespace.saveUser(user);
+    }
+
+    @Test
+    public void reappliesUpdatesThatConflict() throws Exception {
+        UserNamespace namespace = open(5);
+        try {
+            UUID uuid = UUID.randomUUID();
+            AtomicInteger attempts = new AtomicInteger();
+            String result = namespace.updateUser(uuid, UserProjection.ALL, user -> {
+                if (attempts.incrementAndGet() == 1) {
+                    try {
+                        concurrentUpdate(namespace, uuid, "yes");
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                user.setVariable("updated", "yes");
+                return "done";
+            });
+            assertEquals("done", result);
+            assertEquals(2, attempts.get());
+            User user = namespace.readUser(uuid);
+            assertEquals("yes", user.getVariable("concurrent"));
+            assertEquals("yes", user.getVariable("updated"));
+            assertEquals(1L, namespace.getMetrics().get("versionConflicts"));
+        } finally {
+            namespace.close();
+        }
+    }
+
+    @Test
+    public void givesUpAfterTheConfiguredRetries() throws Exception {
+        UserNamespace namespace = open(2);
+        try {
+            UUID uuid = UUID.randomUUID();
+            AtomicInteger attempts = new AtomicInteger();
+            assertThrows(VersionConflictException.class, () -> namespace.updateUser(uuid, UserProjection.ALL, user -> {
+                try {
+                    concurrentUpdate(namespace, uuid, Integer.toString(attempts.incrementAndGet()));
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+                user.setVariable("updated", "yes");
+                return null;
+            }));
+            assertEquals(3, attempts.get());
+            assertEquals(1L, namespace.getMetrics().get("failedUpdates"));
+        } finally {
+            namespace.close();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package io.siggi.credentialserver.credential.webauthn;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.siggi.credentialserver.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A WebAuthn authenticator in software, answering the JSON the server sends
+ * to the browser with the JSON the browser would send back.
+ * <p>
+ * It creates ES256 credentials with "none" attestation and signs assertions
+ * with them, with user presence and verification flagged and a signature
+ * counter that stays at 0.
+ */
+public final class SoftwareAuthenticator {
+    private static final int FLAG_USER_PRESENT = 0x01;
+    private static final int FLAG_USER_VERIFIED = 0x04;
+    private static final int FLAG_ATTESTED_CREDENTIAL = 0x40;
+
+    private final String origin;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, StoredCredential> credentials = new ConcurrentHashMap<>();
+
+    /**
+     * @param origin the origin the browser would report, one the relying
+     *               party accepts
+     */
+    public SoftwareAuthenticator(String origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Create a credential for the options given to
+     * {@code navigator.credentials.create}.
+     *
+     * @return the registration response
+     */
+    public String register(String creationOptionsJson) throws GeneralSecurityException {
+        JsonObject options = getPublicKey(creationOptionsJson);
+        String rpId = options.getAsJsonObject("rp").get("id").getAsString();
+        String userHandle = options.getAsJsonObject("user").get("id").getAsString();
+        String challenge = options.get("challenge").getAsString();
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"), random);
+        KeyPair keyPair = generator.generateKeyPair();
+        byte[] credentialId = new byte[32];
+        random.nextBytes(credentialId);
+
+        ByteArrayOutputStream authenticatorData = new ByteArrayOutputStream();
+        writeAuthenticatorData(authenticatorData, rpId, FLAG_USER_PRESENT | FLAG_USER_VERIFIED | FLAG_ATTESTED_CREDENTIAL);
+        // no attestation, so no authenticator model either
+        authenticatorData.write(new byte[16], 0, 16);
+        authenticatorData.write(credentialId.length >> 8);
+        authenticatorData.write(credentialId.length & 0xff);
+        authenticatorData.write(credentialId, 0, credentialId.length);
+        writeCoseKey(authenticatorData, (ECPublicKey) keyPair.getPublic());
+
+        ByteArrayOutputStream attestationObject = new ByteArrayOutputStream();
+        writeHeader(attestationObject, 5, 3);
+        writeText(attestationObject, "fmt");
+        writeText(attestationObject, "none");
+        writeText(attestationObject, "attStmt");
+        writeHeader(attestationObject, 5, 0);
+        writeText(attestationObject, "authData");
+        writeBytes(attestationObject, authenticatorData.toByteArray());
+
+        credentials.put(Util.hex(credentialId), new StoredCredential(keyPair.getPrivate(), userHandle));
+
+        JsonObject response = new JsonObject();
+        response.addProperty("attestationObject", encode(attestationObject.toByteArray()));
+        response.addProperty("clientDataJSON", encode(getClientData("webauthn.create", challenge)));
+        return getCredential(credentialId, response);
+    }
+
+    /**
+     * Sign in with one of the credentials allowed by the options given to
+     * {@code navigator.credentials.get}.
+     *
+     * @return the assertion response
+     */
+    public String login(String requestOptionsJson) throws GeneralSecurityException {
+        JsonObject options = getPublicKey(requestOptionsJson);
+        String rpId = options.get("rpId").getAsString();
+        String challenge = options.get("challenge").getAsString();
+        byte[] credentialId = null;
+        StoredCredential credential = null;
+        for (JsonElement allowed : options.getAsJsonArray("allowCredentials")) {
+            credentialId = Base64.getUrlDecoder().decode(allowed.getAsJsonObject().get("id").getAsString());
+            credential = credentials.get(Util.hex(credentialId));
+            if (credential != null)
+                break;
+        }
+        if (credential == null)
+            throw new GeneralSecurityException("No allowed credential is known to this authenticator");
+
+        ByteArrayOutputStream authenticatorData = new ByteArrayOutputStream();
+        writeAuthenticatorData(authenticatorData, rpId, FLAG_USER_PRESENT | FLAG_USER_VERIFIED);
+        byte[] authenticatorDataBytes = authenticatorData.toByteArray();
+        byte[] clientData = getClientData("webauthn.get", challenge);
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(credential.privateKey, random);
+        signature.update(authenticatorDataBytes);
+        signature.update(sha256(clientData));
+
+        JsonObject response = new JsonObject();
+        response.addProperty("authenticatorData", encode(authenticatorDataBytes));
+        response.addProperty("clientDataJSON", encode(clientData));
+        response.addProperty("signature", encode(signature.sign()));
+        response.addProperty("userHandle", credential.userHandle);
+        return getCredential(credentialId, response);
+    }
+
+    private static JsonObject getPublicKey(String optionsJson) {
+        return JsonParser.parseString(optionsJson).getAsJsonObject().getAsJsonObject("publicKey");
+    }
+
+    private byte[] getClientData(String type, String challenge) {
+        JsonObject clientData = new JsonObject();
+        clientData.addProperty("type", type);
+        clientData.addProperty("challenge", challenge);
+        clientData.addProperty("origin", origin);
+        clientData.addProperty("crossOrigin", false);
+        return clientData.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String getCredential(byte[] credentialId, JsonObject response) {
+        JsonObject credential = new JsonObject();
+        credential.addProperty("id", encode(credentialId));
+        credential.addProperty("rawId", encode(credentialId));
+        credential.addProperty("type", "public-key");
+        credential.add("response", response);
+        credential.add("clientExtensionResults", new JsonObject());
+        return credential.toString();
+    }
+
+    private static void writeAuthenticatorData(ByteArrayOutputStream out, String rpId, int flags) throws GeneralSecurityException {
+        byte[] rpIdHash = sha256(rpId.getBytes(StandardCharsets.UTF_8));
+        out.write(rpIdHash, 0, rpIdHash.length);
+        out.write(flags);
+        // signature counter
+        out.write(new byte[4], 0, 4);
+    }
+
+    private static void writeCoseKey(ByteArrayOutputStream out, ECPublicKey publicKey) {
+        writeHeader(out, 5, 5);
+        // kty: EC2
+        writeInteger(out, 1);
+        writeInteger(out, 2);
+        // alg: ES256
+        writeInteger(out, 3);
+        writeInteger(out, -7);
+        // crv: P-256
+        writeInteger(out, -1);
+        writeInteger(out, 1);
+        writeInteger(out, -2);
+        writeBytes(out, toCoordinate(publicKey.getW().getAffineX()));
+        writeInteger(out, -3);
+        writeBytes(out, toCoordinate(publicKey.getW().getAffineY()));
+    }
+
+    private static byte[] toCoordinate(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] coordinate = new byte[32];
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, coordinate, 32 - length, length);
+        return coordinate;
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int majorType, int length) {
+        int type = majorType << 5;
+        if (length < 24) {
+            out.write(type | length);
+        } else if (length < 0x100) {
+            out.write(type | 24);
+            out.write(length);
+        } else {
+            out.write(type | 25);
+            out.write(length >> 8);
+            out.write(length & 0xff);
+        }
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int value) {
+        if (value >= 0) {
+            writeHeader(out, 0, value);
+        } else {
+            writeHeader(out, 1, -1 - value);
+        }
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeHeader(out, 2, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeHeader(out, 3, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] sha256(byte[] data) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    private static String encode(byte[] data) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+    }
+
+    private static final class StoredCredential {
+        private final PrivateKey privateKey;
+        private final String userHandle;
+
+        private StoredCredential(PrivateKey privateKey, String userHandle) {
+            this.privateKey = privateKey;
+            this.userHandle = userHandle;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package io.siggi.credentialserver.credential.webauthn;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.FinishAssertionOptions;
+import com.yubico.webauthn.FinishRegistrationOptions;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.UserIdentity;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WebAuthnJsonTest {
+    private static final String USERNAME = "user";
+    private static final ByteArray USER_HANDLE = new ByteArray(USERNAME.getBytes(StandardCharsets.UTF_8));
+
+    private final Credentials credentials = new Credentials();
+    private final RelyingParty rp = RelyingParty.builder()
+            .identity(RelyingPartyIdentity.builder().id("localhost").name("test").build())
+            .credentialRepository(credentials)
+            .origins(Collections.singleton("https://localhost"))
+            .build();
+    private final SoftwareAuthenticator authenticator = new SoftwareAuthenticator("https://localhost");
+
+    private void register() throws Exception {
+        PublicKeyCredentialCreationOptions options = rp.startRegistration(StartRegistrationOptions.builder()
+                .user(UserIdentity.builder().name(USERNAME).displayName(USERNAME).id(USER_HANDLE).build())
+                .build());
+        JsonObject response = JsonParser.parseString(authenticator.register(options.toCredentialsCreateJson())).getAsJsonObject();
+        // some browsers leave it out
+        response.remove("clientExtensionResults");
+        RegistrationResult result = rp.finishRegistration(FinishRegistrationOptions.builder()
+                .request(options)
+                .response(WebAuthnJson.readRegistrationResponse(response.toString()))
+                .build());
+        credentials.add(RegisteredCredential.builder()
+                .credentialId(result.getKeyId().getId())
+                .userHandle(USER_HANDLE)
+                .publicKeyCose(result.getPublicKeyCose())
+                .signatureCount(0L)
+                .build());
+    }
+
+    @Test
+    public void rewritesResponsesTheRelyingPartyAccepts() throws Exception {
+        register();
+        AssertionRequest request = rp.startAssertion(StartAssertionOptions.builder().username(USERNAME).build());
+        JsonObject response = JsonParser.parseString(authenticator.login(WebAuthnJson.writeAssertionRequest(request))).getAsJsonObject();
+        // like the Ledger FIDO U2F app
+        response.getAsJsonObject("response").add("userHandle", null);
+        response.remove("clientExtensionResults");
+        AssertionResult result = rp.finishAssertion(FinishAssertionOptions.builder()
+                .request(request)
+                .response(WebAuthnJson.readAssertionResponse(response.toString(), USER_HANDLE.getBase64Url()))
+                .build());
+        assertTrue(result.isSuccess());
+    }
+
+    private static final class Credentials implements CredentialRepository {
+        private final Map<ByteArray, RegisteredCredential> credentials = new ConcurrentHashMap<>();
+
+        private void add(RegisteredCredential credential) {
+            credentials.put(credential.getCredentialId(), credential);
+        }
+
+        @Override
+        public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+            Set<PublicKeyCredentialDescriptor> ids = new HashSet<>();
+            for (ByteArray id : credentials.keySet()) {
+                ids.add(PublicKeyCredentialDescriptor.builder().id(id).build());
+            }
+            return ids;
+        }
+
+        @Override
+        public Optional<ByteArray> getUserHandleForUsername(String username) {
+            return USERNAME.equals(username) ? Optional.of(USER_HANDLE) : Optional.empty();
+        }
+
+        @Override
+        public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+            return USER_HANDLE.equals(userHandle) ? Optional.of(USERNAME) : Optional.empty();
+        }
+
+        @Override
+        public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+            return Optional.ofNullable(credentials.get(credentialId));
+        }
+
+        @Override
+        public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+            RegisteredCredential credential = credentials.get(credentialId);
+            return credential == null ? Collections.emptySet() : Collections.singleton(credential);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.siggi.credentialserver.credential.webauthn;
+
+import io.siggi.credentialserver.credential.TestUsers;
+import io.siggi.credentialserver.credential.User;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class WebAuthnTest {
+    private final WebAuthn webAuthn = new WebAuthn("localhost", "test", Collections.singleton("https://localhost"));
+    private final SoftwareAuthenticator authenticator = new SoftwareAuthenticator("https://localhost");
+
+    private CredentialWebAuthn register(User user) throws Exception {
+        CredentialWebAuthn credential = webAuthn.finishRegistration(user, authenticator.register(webAuthn.startRegistration(user)));
+        assertNotNull(credential);
+        return credential;
+    }
+
+    @Test
+    public void finishesALoginOnAnotherThread() throws Exception {
+        User user = TestUsers.create(UUID.randomUUID());
+        CredentialWebAuthn credential = register(user);
+        String assertion = authenticator.login(webAuthn.startLogin(user));
+        CredentialWebAuthn used = CompletableFuture.supplyAsync(() -> webAuthn.finishLogin(user, assertion)).get();
+        assertSame(credential, used);
+    }
+
+    @Test
+    public void answersEachCallFromItsOwnCopyOfTheUser() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        User user = TestUsers.create(uuid);
+        CredentialWebAuthn credential = register(user);
+        // read before the registration was saved, so it has no credentials
+        User stale = TestUsers.create(uuid);
+        AtomicBoolean done = new AtomicBoolean();
+        CompletableFuture<Void> staleLogins = CompletableFuture.runAsync(() -> {
+            while (!done.get()) {
+                webAuthn.startLogin(stale);
+            }
+        });
+        try {
+            for (int i = 0; i < 200; i++) {
+                String assertion = authenticator.login(webAuthn.startLogin(user));
+                assertSame(credential, webAuthn.finishLogin(user, assertion));
+            }
+        } finally {
+            done.set(true);
+        }
+        staleLogins.get();
+    }
+}
@@ -0,0 +1,83 @@
+package io.siggi.credentialserver.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AccessLogTest {
+    @TempDir
+    File directory;
+
+    @Test
+    public void writesEveryEntryOrCountsItAsDropped() throws Exception {
+        File file = new File(directory, "access.log");
+        AccessLog log = new AccessLog(file, 64, 0L, 0L, 1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    log.log(1000L + i, "ns", "user" + thread, "finishlogin", "password", "ok", 1500000L, 40L, 50L);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.close();
+        assertEquals(20000L, log.getWritten() + log.getDropped());
+
+        long entries = 0L;
+        long droppedReported = 0L;
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#dropped ")) {
+                droppedReported += Long.parseLong(line.split(" ")[1]);
+            } else if (!line.startsWith("#")) {
+                entries++;
+                String[] fields = line.split("\t");
+                assertEquals(9, fields.length, line);
+                assertEquals("1500", fields[6]);
+            }
+        }
+        assertEquals(log.getWritten(), entries);
+        assertEquals(log.getDropped(), droppedReported);
+    }
+
+    @Test
+    public void keepsFieldsOnOneLine() throws IOException {
+        File file = new File(directory, "access.log");
+        AccessLog log = new AccessLog(file, 16, 0L, 0L, 1);
+        log.log(1L, "ns", "a\tb\nc", "metaget", null, "ok", 0L, 0L, 0L);
+        log.close();
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals("1\tns\ta b c\tmetaget\t-\tok\t0\t0\t0", lines.get(1));
+    }
+
+    @Test
+    public void rotatesBySize() throws IOException {
+        File file = new File(directory, "access.log");
+        AccessLog log = new AccessLog(file, 16, 200L, 0L, 2);
+        for (int i = 0; i < 50; i++) {
+            log.log(i, "ns", "user", "metaset", null, "ok", 0L, 0L, 0L);
+            // give the writer time so nothing is dropped
+            while (log.getWritten() + log.getDropped() < i + 1) {
+                Thread.yield();
+            }
+        }
+        log.close();
+        File[] rotated = directory.listFiles((dir, name) -> name.startsWith("access.log."));
+        assertTrue(rotated.length >= 1 && rotated.length <= 2, "rotated logs: " + rotated.length);
+        assertTrue(file.length() <= 300L);
+    }
+}
@@ -0,0 +1,98 @@
+package io.siggi.credentialserver.log;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TrafficCaptureTest {
+    @TempDir
+    File directory;
+
+    @Test
+    public void readsBackWhatWasRecorded() throws Exception {
+        File file = new File(directory, "traffic.bin");
+        long start = System.nanoTime();
+        try (TrafficCapture capture = new TrafficCapture(file)) {
+            capture.record(start + 2000000L, "ns", "alice", "finishlogin", "password", "ok", 60L, 70L, 1500000L);
+            capture.record(start + 1000000L, "ns", "bob", "finishlogin", "password", "fail", 300L, 40L, 900000L);
+            capture.record(start + 3000000L, "ns", "alice", "metaget", null, "ok", 0L, 20L, 100000L);
+        }
+
+        List<TrafficCapture.Entry> entries;
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file)) {
+            entries = reader.readAll();
+        }
+        assertEquals(3, entries.size());
+        TrafficCapture.Entry bob = entries.get(0);
+        assertEquals("fail", bob.result);
+        assertEquals(300L, bob.bytesIn);
+        assertEquals(900L, bob.latencyMicros);
+        TrafficCapture.Entry alice = entries.get(1);
+        assertEquals("ns", alice.namespace);
+        assertEquals("finishlogin", alice.action);
+        assertEquals("password", alice.type);
+        assertEquals(70L, alice.bytesOut);
+        assertEquals(alice.user, entries.get(2).user);
+        assertNotEquals(alice.user, bob.user);
+        assertNull(entries.get(2).type);
+        assertEquals(1000L, entries.get(2).offsetMicros - alice.offsetMicros);
+    }
+
+    @Test
+    public void doesNotRecordUserIds() throws Exception {
+        File file = new File(directory, "traffic.bin");
+        try (TrafficCapture capture = new TrafficCapture(file)) {
+            capture.record(System.nanoTime(), "ns", "alice@example.com", "finishlogin", "password", "ok", 60L, 70L, 1000L);
+        }
+        String contents = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        assertFalse(contents.contains("alice"));
+    }
+
+    @Test
+    public void capsTheStringTable() throws Exception {
+        File file = new File(directory, "traffic.bin");
+        try (TrafficCapture capture = new TrafficCapture(file)) {
+            for (int i = 0; i < 5000; i++) {
+                capture.record(System.nanoTime(), "ns", "user", "action" + i, null, "ok", 0L, 0L, 1000L);
+            }
+        }
+        Set<String> actions = new HashSet<>();
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file)) {
+            for (TrafficCapture.Entry entry : reader.readAll()) {
+                actions.add(entry.action);
+            }
+        }
+        assertTrue(actions.size() < 1024);
+        assertTrue(actions.contains(TrafficCapture.OTHER));
+        assertTrue(actions.contains("action0"));
+    }
+
+    @Test
+    public void keepsThePreviousCapture() throws Exception {
+        File file = new File(directory, "traffic.bin");
+        try (TrafficCapture capture = new TrafficCapture(file)) {
+            capture.record(System.nanoTime(), "ns", "alice", "finishlogin", "password", "ok", 60L, 70L, 1000L);
+        }
+        try (TrafficCapture capture = new TrafficCapture(file)) {
+            capture.record(System.nanoTime(), "ns", "bob", "metaget", null, "ok", 0L, 20L, 1000L);
+        }
+        File[] previous = directory.listFiles((dir, name) -> name.startsWith("traffic.bin."));
+        assertEquals(1, previous.length);
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(previous[0])) {
+            assertEquals("finishlogin", reader.readAll().get(0).action);
+        }
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file)) {
+            assertEquals("metaget", reader.readAll().get(0).action);
+        }
+    }
+}
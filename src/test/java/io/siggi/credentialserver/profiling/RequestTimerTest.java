@@ -0,0 +1,41 @@
+package io.siggi.credentialserver.profiling;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RequestTimerTest {
+    @Test
+    public void formatsMillis() {
+        assertEquals("0.000", millis(0L));
+        assertEquals("0.007", millis(7000L));
+        assertEquals("0.042", millis(42999L));
+        assertEquals("1.500", millis(1500000L));
+        assertEquals("1234.056", millis(1234056000L));
+    }
+
+    @Test
+    public void addsUpPhases() {
+        RequestTimer timer = RequestTimer.start();
+        long start = RequestTimer.begin();
+        RequestTimer.end(RequestTimer.Phase.LOAD, start);
+        long loaded = timer.getPhaseNanos(RequestTimer.Phase.LOAD);
+        RequestTimer.end(RequestTimer.Phase.LOAD, RequestTimer.begin());
+        assertTrue(timer.getPhaseNanos(RequestTimer.Phase.LOAD) >= loaded);
+        timer.stop();
+
+        String header = timer.toServerTiming();
+        assertTrue(header.startsWith("parse;dur=0.000, load;dur="), header);
+        assertTrue(header.contains(", total;dur="), header);
+
+        // phases outside a timed request are not counted
+        RequestTimer.end(RequestTimer.Phase.PARSE, RequestTimer.begin());
+        assertEquals(0L, timer.getPhaseNanos(RequestTimer.Phase.PARSE));
+    }
+
+    private static String millis(long nanos) {
+        StringBuilder builder = new StringBuilder();
+        RequestTimer.appendMillis(builder, nanos);
+        return builder.toString();
+    }
+}
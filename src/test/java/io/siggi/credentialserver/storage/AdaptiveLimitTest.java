@@ -0,0 +1,65 @@
+package io.siggi.credentialserver.storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdaptiveLimitTest {
+    @Test
+    public void queuesThenShedsCallsOverTheLimit() {
+        AdaptiveLimit limit = new AdaptiveLimit(2, 1, 2, 1, 60000L);
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger shed = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            limit.submit(started::incrementAndGet, shed::incrementAndGet);
+        }
+        assertEquals(2, started.get());
+        assertEquals(1, shed.get());
+        limit.release(1000000L);
+        assertEquals(3, started.get());
+        assertEquals(1, shed.get());
+    }
+
+    @Test
+    public void shedsQueuedCallsWhenNothingFinishes() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimit limit = new AdaptiveLimit(1, 1, 1, 10, 1000L, clock::get);
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger shed = new AtomicInteger();
+        limit.submit(started::incrementAndGet, shed::incrementAndGet);
+        limit.submit(started::incrementAndGet, shed::incrementAndGet);
+        limit.shedExpired();
+        assertEquals(0, shed.get());
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1001L));
+        limit.shedExpired();
+        assertEquals(1, started.get());
+        assertEquals(1, shed.get());
+        assertEquals(0, limit.getMetrics().get("queued"));
+    }
+
+    @Test
+    public void growsWhileFastAndShrinksWhenSlow() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimit limit = new AdaptiveLimit(10, 1, 100, 100, 60000L, clock::get);
+        runWindow(limit, clock, 10, 1000000L);
+        int grown = limit.getLimit();
+        assertTrue(grown > 10, "limit " + grown);
+        runWindow(limit, clock, 10, 20000000L);
+        assertTrue(limit.getLimit() < grown, "limit " + limit.getLimit());
+    }
+
+    private static void runWindow(AdaptiveLimit limit, AtomicLong clock, int calls, long nanos) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(110L));
+        for (int i = 0; i < calls; i++) {
+            limit.submit(() -> {
+            }, () -> {
+            });
+        }
+        for (int i = 0; i < calls; i++) {
+            limit.release(nanos);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.siggi.credentialserver.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class AtomicFileWriterTest {
+    @TempDir
+    File directory;
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private void replacesFiles(Durability durability) throws IOException {
+        File tmp = new File(directory, "tmp");
+        AtomicFileWriter writer = new AtomicFileWriter(tmp, durability, 5L);
+        try {
+            File target = new File(directory, "users/ab/cd/user.json");
+            writer.write(target, "first".getBytes(StandardCharsets.UTF_8));
+            writer.write(target, "second".getBytes(StandardCharsets.UTF_8));
+            assertEquals("second", read(target));
+            assertEquals(0, tmp.list().length);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void replacesFilesWithoutFlushing() throws IOException {
+        replacesFiles(Durability.NONE);
+    }
+
+    @Test
+    public void replacesFilesFlushingEach() throws IOException {
+        replacesFiles(Durability.ALWAYS);
+    }
+
+    @Test
+    public void replacesFilesFlushingInBatches() throws IOException {
+        replacesFiles(Durability.BATCH);
+    }
+
+    @Test
+    public void completesConcurrentBatchedWrites() throws IOException {
+        AtomicFileWriter writer = new AtomicFileWriter(new File(directory, "tmp"), Durability.BATCH, 50L);
+        try {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                File target = new File(directory, "users/" + i + ".json");
+                byte[] data = Integer.toString(i).getBytes(StandardCharsets.UTF_8);
+                writes.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        writer.write(target, data);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+            for (int i = 0; i < 8; i++) {
+                assertEquals(Integer.toString(i), read(new File(directory, "users/" + i + ".json")));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void deletesTemporaryFilesLeftByACrash() throws IOException {
+        File tmp = new File(directory, "tmp");
+        tmp.mkdirs();
+        File leftover = new File(tmp, "crashed.tmp");
+        Files.write(leftover.toPath(), new byte[]{1, 2, 3});
+        new AtomicFileWriter(tmp, Durability.NONE, 0L).close();
+        assertFalse(leftover.exists());
+    }
+}
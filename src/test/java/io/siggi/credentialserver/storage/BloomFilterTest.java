@@ -0,0 +1,50 @@
+package io.siggi.credentialserver.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BloomFilterTest {
+    @Test
+    public void neverReportsAddedUuidsAsAbsent() throws IOException {
+        BloomFilter filter = BloomFilter.create(10000, 0.01);
+        Random random = new Random(1234L);
+        List<UUID> added = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            filter.add(uuid);
+            added.add(uuid);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(out));
+        BloomFilter copy = BloomFilter.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+        for (UUID uuid : added) {
+            assertTrue(filter.mightContain(uuid));
+            assertTrue(copy.mightContain(uuid));
+        }
+    }
+
+    @Test
+    public void falsePositiveRateIsNearTarget() {
+        BloomFilter filter = BloomFilter.create(10000, 0.01);
+        Random random = new Random(5678L);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(new UUID(random.nextLong(), random.nextLong()));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain(new UUID(random.nextLong(), random.nextLong())))
+                falsePositives += 1;
+        }
+        assertTrue(falsePositives < 2000, "false positive rate too high: " + falsePositives);
+        assertTrue(filter.getEstimatedFalsePositiveProbability() < 0.02);
+    }
+}
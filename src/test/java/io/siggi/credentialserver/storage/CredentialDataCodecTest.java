@@ -0,0 +1,39 @@
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.util.Util;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CredentialDataCodecTest {
+    @Test
+    public void roundTripsExactly() {
+        String[] samples = {
+                "",
+                "PBKDF;" + randomHex(32) + ";" + randomHex(16) + ";100;256",
+                randomHex(64) + "/" + randomHex(77) + "/" + randomHex(16) + "/42",
+                "JBSWY3DPEHPK3PXP",
+                "abc",
+                "0123456789abcdef0",
+                "DEADBEEFDEADBEEF",
+                "deadbeefDEADBEEFdeadbeef",
+                "plain;h\u00e9llo;\u2603;" + randomHex(40),
+        };
+        for (String sample : samples) {
+            assertEquals(sample, CredentialDataCodec.decode(CredentialDataCodec.encode(sample)));
+        }
+    }
+
+    @Test
+    public void packsHexToAboutHalf() {
+        String key = randomHex(64) + "/" + randomHex(77) + "/" + randomHex(16) + "/42";
+        assertTrue(CredentialDataCodec.encode(key).length < key.length() * 6 / 10);
+    }
+
+    private static String randomHex(int bytes) {
+        byte[] data = new byte[bytes];
+        new Random(bytes).nextBytes(data);
+        return Util.hex(data);
+    }
+}
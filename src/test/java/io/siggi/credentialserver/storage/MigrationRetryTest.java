@@ -0,0 +1,32 @@
+package io.siggi.credentialserver.storage;
+
+import java.sql.SQLException;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MigrationRetryTest {
+    @Test
+    public void doublesTheWaitUpToTheLimit() {
+        MigrationRetry retry = new MigrationRetry("migrate", 1000L, 5000L, 20);
+        assertEquals(1000L, retry.getDelay(1));
+        assertEquals(2000L, retry.getDelay(2));
+        assertEquals(4000L, retry.getDelay(3));
+        assertEquals(5000L, retry.getDelay(4));
+        assertEquals(5000L, retry.getDelay(1000));
+    }
+
+    @Test
+    public void givesUpAfterTooManyFailuresInARow() {
+        MigrationRetry retry = new MigrationRetry("migrate", 0L, 0L, 3);
+        SQLException failure = new SQLException("refused");
+        assertTrue(retry.failed(failure));
+        assertTrue(retry.failed(failure));
+        retry.succeeded();
+        assertTrue(retry.failed(failure));
+        assertTrue(retry.failed(failure));
+        assertFalse(retry.failed(failure));
+        assertEquals(5L, retry.getFailures());
+    }
+}
@@ -0,0 +1,409 @@
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.admission.Deadline;
+import io.siggi.credentialserver.admission.DeadlineExceededException;
+import io.siggi.credentialserver.credential.TestUsers;
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.credential.password.CredentialPassword;
+import io.siggi.credentialserver.credential.totp.CredentialTOTP;
+import io.siggi.credentialserver.util.Util;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StorageFileTest {
+    @TempDir
+    File directory;
+
+    private StorageFile open() {
+        return open(false);
+    }
+
+    private StorageFile open(boolean existenceIndex) {
+        Properties configuration = new Properties();
+        configuration.setProperty("existence-index", Boolean.toString(existenceIndex));
+        return new StorageFile(directory, configuration);
+    }
+
+    private StorageFile openCached(boolean verify, boolean changeJournal) {
+        Properties configuration = new Properties();
+        configuration.setProperty("cache-size", "16");
+        configuration.setProperty("cache-verify", Boolean.toString(verify));
+        configuration.setProperty("change-journal", Boolean.toString(changeJournal));
+        configuration.setProperty("change-journal-interval", "10");
+        return new StorageFile(directory, configuration);
+    }
+
+    private static void rename(StorageFile storage, UUID uuid, String name) throws Exception {
+        User user = storage.readUser(uuid);
+        user.setVariable("name", name);
+        storage.saveUser(uuid, user);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static long journalReceived(StorageFile storage) {
+        return (Long) ((Map<String, Object>) storage.getMetrics().get("changeJournal")).get("received");
+    }
+
+    private static UUID saveFullUser(StorageFile storage) throws StorageException {
+        UUID uuid = UUID.randomUUID();
+        User user = new User();
+        user.setVariable("name", "full");
+        user.addCredential(new CredentialPassword(UUID.randomUUID(), null, 0L, 0L, 0L, "plain;password"));
+        user.addCredential(new CredentialTOTP(UUID.randomUUID(), null, 0L, 0L, 0L, "JBSWY3DPEHPK3PXP"));
+        user.getCredentialSession("totp", false, 60000L, 0L).setData("session");
+        storage.saveUser(uuid, user);
+        return uuid;
+    }
+
+    @Test
+    public void loadsOnlyTheProjectedParts() throws StorageException {
+        StorageFile storage = open();
+        UUID uuid = saveFullUser(storage);
+
+        User variables = storage.readUser(uuid, UserProjection.VARIABLES);
+        assertEquals("full", variables.getVariable("name"));
+        assertTrue(variables.getCredentials().isEmpty());
+        assertTrue(variables.getCredentialSessions().isEmpty());
+
+        User totp = storage.readUser(uuid, UserProjection.credentials("totp"));
+        assertNull(totp.getVariable("name"));
+        assertEquals(1, totp.getCredentials().size());
+        assertEquals(1, totp.getCredentials(CredentialTOTP.class).size());
+
+        User sessions = storage.readUser(uuid, UserProjection.SESSIONS);
+        assertTrue(sessions.getCredentials().isEmpty());
+        assertNotNull(sessions.getCredentialSessionsMap().get("totp-false"));
+    }
+
+    @Test
+    public void refusesToSaveAPartiallyLoadedUser() throws StorageException {
+        StorageFile storage = open();
+        UUID uuid = saveFullUser(storage);
+        User user = TestUsers.load(storage.readUser(uuid, UserProjection.VARIABLES), uuid, UserProjection.VARIABLES);
+        user.setVariable("name", "partial");
+        assertThrows(StorageException.class, () -> storage.saveUser(uuid, user));
+
+        User full = storage.readUser(uuid);
+        assertEquals("full", full.getVariable("name"));
+        assertEquals(2, full.getCredentials().size());
+    }
+
+    @Test
+    public void readsAndSavesAsynchronously() throws StorageException {
+        StorageFile storage = open();
+        try {
+            Map<UUID, User> users = new HashMap<>();
+            for (int i = 0; i < 4; i++) {
+                User user = new User();
+                user.setVariable("name", "user" + i);
+                users.put(UUID.randomUUID(), user);
+            }
+            Storage.await(storage.saveUsersAsync(users));
+
+            Map<UUID, User> read = Storage.await(storage.readUsersAsync(users.keySet(), UserProjection.VARIABLES));
+            assertEquals(users.size(), read.size());
+            for (Map.Entry<UUID, User> entry : users.entrySet()) {
+                assertEquals(entry.getValue().getVariable("name"), read.get(entry.getKey()).getVariable("name"));
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void awaitRethrowsTheStorageException() throws StorageException {
+        StorageFile storage = open();
+        try {
+            UUID uuid = saveFullUser(storage);
+            User user = TestUsers.load(storage.readUser(uuid, UserProjection.VARIABLES), uuid, UserProjection.VARIABLES);
+            assertThrows(StorageException.class, () -> Storage.await(storage.saveUserAsync(uuid, user)));
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void doesNotTrustTheExistenceIndexOfASharedNamespace() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        StorageFile other = open(false);
+        StorageFile indexed = open(true);
+        try {
+            assertNull(indexed.readUser(uuid).getVariable("name"));
+            User user = new User();
+            user.setVariable("name", "created elsewhere");
+            other.saveUser(uuid, user);
+            assertEquals("created elsewhere", indexed.readUser(uuid).getVariable("name"));
+        } finally {
+            indexed.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void refusesToShareANamespaceWithAnExistenceIndex() {
+        StorageFile indexed = open(true);
+        try {
+            assertThrows(RuntimeException.class, () -> open(false));
+        } finally {
+            indexed.close();
+        }
+        open(false).close();
+    }
+
+    @Test
+    public void sweepsExpiredSessionsAndCredentialsInBatches() throws StorageException {
+        long now = System.currentTimeMillis();
+        UUID expiring = UUID.randomUUID();
+        User user = new User();
+        user.addCredential(new CredentialPassword(UUID.randomUUID(), null, 0L, 0L, now - 1000L, "plain;expired"));
+        user.addCredential(new CredentialPassword(UUID.randomUUID(), null, 0L, 0L, 0L, "plain;password"));
+        user.getCredentialSession("totp", false, 1000L, 0L);
+        user.getCredentialSession("totp", true, 3600000L, 0L);
+        StorageFile storage = open();
+        storage.saveUser(expiring, user);
+        for (int i = 0; i < 2; i++) {
+            User other = new User();
+            other.setVariable("name", "other" + i);
+            other.getCredentialSession("totp", false, 3600000L, 0L);
+            storage.saveUser(UUID.randomUUID(), other);
+        }
+
+        SweepStatistics statistics = new SweepStatistics();
+        assertFalse(storage.sweepExpired(now + 60000L, 2, statistics));
+        assertFalse(statistics.getCursor().isEmpty());
+        storage.close();
+
+        // a restarted store carries on after the cursor
+        storage = open();
+        assertTrue(storage.sweepExpired(now + 60000L, 2, statistics));
+        assertEquals("", statistics.getCursor());
+        assertEquals(3L, statistics.usersScanned.get());
+        assertEquals(1L, statistics.usersUpdated.get());
+        assertEquals(1L, statistics.sessionsRemoved.get());
+        assertEquals(1L, statistics.credentialsRemoved.get());
+
+        User swept = storage.readUser(expiring);
+        assertEquals(1, swept.getCredentials().size());
+        assertEquals(1, swept.getCredentialSessions().size());
+        assertNotNull(swept.getCredentialSessionsMap().get("totp-true"));
+        storage.close();
+    }
+
+    @Test
+    public void startsTheSweepOverWhenTheCursorIsDamaged() throws Exception {
+        StorageFile storage = open();
+        try {
+            for (int i = 0; i < 3; i++) {
+                User user = new User();
+                user.setVariable("name", "user" + i);
+                storage.saveUser(UUID.randomUUID(), user);
+            }
+            Files.write(new File(directory, "sweep-cursor.txt").toPath(), "0123abc".getBytes(StandardCharsets.UTF_8));
+            SweepStatistics statistics = new SweepStatistics();
+            assertTrue(storage.sweepExpired(System.currentTimeMillis(), 10, statistics));
+            assertEquals(3L, statistics.usersScanned.get());
+            assertEquals("", new String(Files.readAllBytes(new File(directory, "sweep-cursor.txt").toPath()),
+                    StandardCharsets.UTF_8));
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void listsUsersInPagesOfHexOrder() throws StorageException {
+        StorageFile storage = open();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            UUID uuid = UUID.randomUUID();
+            User user = new User();
+            user.setVariable("name", "user" + i);
+            storage.saveUser(uuid, user);
+            expected.add(Util.uuidToString(uuid));
+        }
+        expected.sort(null);
+
+        List<String> listed = new ArrayList<>();
+        UUID cursor = null;
+        while (true) {
+            List<UUID> page = storage.listUsers(cursor, 2);
+            for (UUID uuid : page) {
+                listed.add(Util.uuidToString(uuid));
+            }
+            if (page.size() < 2)
+                break;
+            cursor = page.get(page.size() - 1);
+        }
+        assertEquals(expected, listed);
+        storage.close();
+    }
+
+    private static int countUserFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return 0;
+        int count = 0;
+        for (File file : files) {
+            if (file.isDirectory())
+                count += countUserFiles(file);
+            else if (file.getName().endsWith(".json"))
+                count += 1;
+        }
+        return count;
+    }
+
+    @Test
+    public void movesUsersWhenTheDataDirectoriesChange() throws Exception {
+        File first = new File(directory, "first");
+        File second = new File(directory, "second");
+        File namespace = new File(directory, "namespace");
+        namespace.mkdirs();
+        Properties configuration = new Properties();
+        configuration.setProperty("data-directories", first.getPath());
+        List<UUID> uuids = new ArrayList<>();
+        StorageFile storage = new StorageFile(namespace, configuration);
+        for (int i = 0; i < 20; i++) {
+            UUID uuid = UUID.randomUUID();
+            User user = new User();
+            user.setVariable("name", uuid.toString());
+            storage.saveUser(uuid, user);
+            uuids.add(uuid);
+        }
+        storage.close();
+
+        configuration.setProperty("data-directories", first.getPath() + "," + second.getPath());
+        storage = new StorageFile(namespace, configuration);
+        assertTrue(storage.isRebalancePending());
+        for (UUID uuid : uuids) {
+            assertEquals(uuid.toString(), storage.readUser(uuid).getVariable("name"));
+        }
+        storage.rebalance();
+        assertFalse(storage.isRebalancePending());
+        assertEquals(20, countUserFiles(first) + countUserFiles(second));
+        assertTrue(countUserFiles(second) > 0);
+        assertEquals(20, storage.listUsers(null, 100).size());
+        storage.close();
+
+        // drop the first directory, its users move to the second
+        configuration.setProperty("data-directories", second.getPath());
+        storage = new StorageFile(namespace, configuration);
+        assertTrue(storage.isRebalancePending());
+        storage.rebalance();
+        assertEquals(0, countUserFiles(first));
+        assertEquals(20, countUserFiles(second));
+        assertEquals(new File(second, "users").getAbsolutePath() + "\n",
+                new String(Files.readAllBytes(new File(namespace, "shards.txt").toPath()), StandardCharsets.UTF_8));
+        String[] leftovers = new File(namespace, "tmp").list();
+        assertEquals(0, leftovers == null ? 0 : leftovers.length);
+        for (UUID uuid : uuids) {
+            assertEquals(uuid.toString(), storage.readUser(uuid).getVariable("name"));
+        }
+        storage.close();
+    }
+
+    @Test
+    public void seesWritesOfOtherProcessesThroughTheJournal() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        StorageFile reader = openCached(false, true);
+        StorageFile writer = openCached(false, true);
+        try {
+            rename(writer, uuid, "first");
+            assertEquals("first", reader.readUser(uuid).getVariable("name"));
+            long received = journalReceived(reader);
+            rename(writer, uuid, "second");
+            long deadline = System.currentTimeMillis() + 10000L;
+            while (journalReceived(reader) == received && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5L);
+            }
+            assertEquals("second", reader.readUser(uuid).getVariable("name"));
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    @Test
+    public void dropsCachedUsersWhoseFileChanged() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        StorageFile reader = openCached(true, false);
+        StorageFile writer = openCached(true, false);
+        try {
+            rename(writer, uuid, "first");
+            assertEquals("first", reader.readUser(uuid).getVariable("name"));
+            assertEquals("first", reader.readUser(uuid).getVariable("name"));
+            rename(writer, uuid, "second");
+            assertEquals("second", reader.readUser(uuid).getVariable("name"));
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    @Test
+    public void rejectsStaleSaves() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        StorageFile storage = open(false);
+        try {
+            rename(storage, uuid, "first");
+            User first = storage.readUser(uuid);
+            User second = storage.readUser(uuid);
+            first.setVariable("name", "second");
+            storage.saveUser(uuid, first);
+            second.setVariable("name", "third");
+            assertThrows(VersionConflictException.class, () -> storage.saveUser(uuid, second));
+            assertEquals("second", storage.readUser(uuid).getVariable("name"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void rejectsCreatingAUserAnotherStoreCreated() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        StorageFile storage = open(false);
+        StorageFile other = open(false);
+        try {
+            User user = storage.readUser(uuid);
+            rename(other, uuid, "other");
+            user.setVariable("name", "mine");
+            assertThrows(VersionConflictException.class, () -> storage.saveUser(uuid, user));
+            assertEquals("other", storage.readUser(uuid).getVariable("name"));
+        } finally {
+            storage.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void skipsCallsPastTheDeadline() throws StorageException {
+        StorageFile storage = open(false);
+        try {
+            UUID uuid = UUID.randomUUID();
+            Deadline previous = Deadline.set(Deadline.after(0L));
+            try {
+                DeadlineExceededException e = assertThrows(DeadlineExceededException.class,
+                        () -> Storage.await(storage.readUserAsync(uuid)));
+                assertEquals("storage", e.getPhase());
+            } finally {
+                Deadline.set(previous);
+            }
+            storage.readUser(uuid);
+        } finally {
+            storage.close();
+        }
+    }
+}
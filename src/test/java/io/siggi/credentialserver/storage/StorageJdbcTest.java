@@ -0,0 +1,258 @@
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.admission.Deadline;
+import io.siggi.credentialserver.admission.DeadlineExceededException;
+import io.siggi.credentialserver.credential.TestUsers;
+import io.siggi.credentialserver.credential.User;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StorageJdbcTest {
+    private static Properties credentialFormat(String format) {
+        Properties configuration = new Properties();
+        configuration.setProperty("fake-credential-format", format);
+        return configuration;
+    }
+
+    @Test
+    public void addsThePackedColumnOnlyForBinaryCredentials() {
+        FakeDialect dialect = new FakeDialect();
+        new StorageJdbc(dialect, credentialFormat("text")).close();
+        assertFalse(dialect.packedColumnAdded);
+        new StorageJdbc(dialect, credentialFormat("binary")).close();
+        assertTrue(dialect.packedColumnAdded);
+    }
+
+    @Test
+    public void countsFailuresToPackCredentials() throws InterruptedException {
+        FakeDialect dialect = new FakeDialect();
+        dialect.packingFails = true;
+        StorageJdbc storage = new StorageJdbc(dialect, credentialFormat("binary"));
+        try {
+            long deadline = System.currentTimeMillis() + 10000L;
+            while ((Long) storage.getMetrics().get("credentialMigrationFailures") == 0L
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5L);
+            }
+            assertEquals(1L, storage.getMetrics().get("credentialMigrationFailures"));
+            assertEquals(true, storage.getMetrics().get("credentialMigrationPending"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void savesWithTheStatementsOfTheDialect() throws StorageException {
+        FakeDialect dialect = new FakeDialect();
+        StorageJdbc storage = new StorageJdbc(dialect, new Properties());
+        try {
+            dialect.prepared.clear();
+            User user = new User();
+            user.setVariable("name", "fake");
+            storage.saveUser(UUID.randomUUID(), user);
+            assertTrue(dialect.prepared.contains("INSERT OR IGNORE userversions"));
+            assertTrue(dialect.prepared.contains("UPSERT userdata"));
+            assertEquals(1, dialect.commits);
+            assertEquals(1L, user.getVersion());
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void readsAndSavesOnlyTheProjectedParts() throws StorageException {
+        FakeDialect dialect = new FakeDialect();
+        StorageJdbc storage = new StorageJdbc(dialect, new Properties());
+        try {
+            assertTrue(storage.canSavePartialUsers());
+            dialect.prepared.clear();
+            UUID uuid = UUID.randomUUID();
+            User user = TestUsers.load(storage.readUser(uuid, UserProjection.credentials("totp")), uuid,
+                    UserProjection.credentials("totp"));
+            assertTrue(dialect.prepared.contains("SELECT * FROM `usercredentials` WHERE `userid`=? AND `type` IN (?)"));
+            assertFalse(dialect.prepared.contains("SELECT * FROM `userdata` WHERE `userid`=?"));
+            user.setVariable("name", "partial");
+            storage.saveUser(uuid, user);
+            assertEquals(1, dialect.commits);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void rollsBackWhenTheVersionMovedOn() {
+        FakeDialect dialect = new FakeDialect();
+        StorageJdbc storage = new StorageJdbc(dialect, new Properties());
+        try {
+            dialect.updateCount = 0;
+            User user = new User();
+            user.setVariable("name", "fake");
+            assertThrows(VersionConflictException.class, () -> storage.saveUser(UUID.randomUUID(), user));
+            assertEquals(0, dialect.commits);
+            assertEquals(1, dialect.rollbacks);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void timesOutStatementsAtTheDeadline() throws SQLException {
+        FakeDialect dialect = new FakeDialect();
+        StorageJdbc storage = new StorageJdbc(dialect, new Properties());
+        try {
+            dialect.queryTimeouts.clear();
+            try (Connection connection = storage.getConnection()) {
+                connection.prepareStatement("SELECT 1").close();
+            }
+            assertTrue(dialect.queryTimeouts.isEmpty());
+
+            Deadline previous = Deadline.set(Deadline.after(2500L));
+            try (Connection connection = storage.getConnection()) {
+                connection.prepareStatement("SELECT 1").close();
+            } finally {
+                Deadline.set(previous);
+            }
+            assertEquals(1, dialect.queryTimeouts.size());
+            // rounded up to whole seconds
+            int timeout = dialect.queryTimeouts.get(0);
+            assertTrue(timeout == 2 || timeout == 3, "timeout " + timeout);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void closesStatementsMadePastTheDeadline() throws SQLException {
+        FakeDialect dialect = new FakeDialect();
+        StorageJdbc storage = new StorageJdbc(dialect, new Properties());
+        try {
+            dialect.closed = 0;
+            Deadline previous = Deadline.set(Deadline.after(0L));
+            try (Connection connection = storage.getConnection()) {
+                DeadlineExceededException e = assertThrows(DeadlineExceededException.class,
+                        () -> connection.prepareStatement("SELECT 1"));
+                assertEquals("storage", e.getPhase());
+            } finally {
+                Deadline.set(previous);
+            }
+            assertEquals(1, dialect.closed);
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * A database with no tables, whose statements do nothing but report
+     * updateCount rows changed, and that remembers what was asked of it,
+     * including the query timeouts of its statements. With packingFails it
+     * has credentials stored as text that cannot be read to pack them.
+     */
+    private static final class FakeDialect extends SqlDialect {
+        private final List<String> prepared = new ArrayList<>();
+        private final List<Integer> queryTimeouts = new ArrayList<>();
+        private int closed;
+        private int updateCount = 1;
+        private int commits;
+        private int rollbacks;
+        private boolean packedColumnAdded;
+        private boolean packingFails;
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public Connection getConnection() {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "prepareStatement":
+                                prepared.add((String) args[0]);
+                                return statement((String) args[0]);
+                            case "commit":
+                                commits++;
+                                return null;
+                            case "rollback":
+                                rollbacks++;
+                                return null;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+
+        private PreparedStatement statement(String sql) {
+            return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                    (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "setQueryTimeout":
+                                queryTimeouts.add((Integer) args[0]);
+                                return null;
+                            case "close":
+                                closed++;
+                                return null;
+                            case "executeUpdate":
+                                return updateCount;
+                            case "executeBatch":
+                                return new int[0];
+                            case "executeQuery":
+                                if (packingFails && sql.startsWith("SELECT `credentialid`,`data`"))
+                                    throw new SQLException("refused");
+                                boolean textLeft = packingFails && sql.startsWith("SELECT 1 FROM `usercredentials`");
+                                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class},
+                                        (resultSet, resultSetMethod, resultSetArgs) ->
+                                                resultSetMethod.getName().equals("next") ? textLeft : null);
+                            default:
+                                return null;
+                        }
+                    });
+        }
+
+        @Override
+        public String upsert(String table, List<String> keyColumns, List<String> columns) {
+            return "UPSERT " + table;
+        }
+
+        @Override
+        public String insertOrIncrement(String table, String keyColumn, String column) {
+            return "INSERT OR INCREMENT " + table;
+        }
+
+        @Override
+        public String insertOrIgnore(String table, List<String> columns) {
+            return "INSERT OR IGNORE " + table;
+        }
+
+        @Override
+        public String deleteLimited(String table, String condition) {
+            return "DELETE LIMITED " + table;
+        }
+
+        @Override
+        public void createIndex(Connection connection, String table, String index, String column) {
+        }
+
+        @Override
+        public boolean hasColumn(Connection connection, String table, String column) {
+            return packedColumnAdded;
+        }
+
+        @Override
+        public void addPackedCredentialColumn(Connection connection) {
+            packedColumnAdded = true;
+        }
+    }
+}
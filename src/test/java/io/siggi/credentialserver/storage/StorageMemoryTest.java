@@ -0,0 +1,56 @@
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.credential.User;
+import java.io.File;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StorageMemoryTest {
+    @TempDir
+    File directory;
+
+    @Test
+    public void rejectsStaleSaves() throws StorageException {
+        StorageMemory storage = new StorageMemory(directory, Durability.NONE, 0L, 0L);
+        try {
+            UUID uuid = UUID.randomUUID();
+            User first = storage.readUser(uuid);
+            User second = storage.readUser(uuid);
+            first.setVariable("count", "1");
+            storage.saveUser(uuid, first);
+            second.setVariable("count", "2");
+            assertThrows(VersionConflictException.class, () -> storage.saveUser(uuid, second));
+
+            User third = storage.readUser(uuid);
+            User fourth = storage.readUser(uuid);
+            third.setVariable("count", "3");
+            storage.saveUser(uuid, third);
+            fourth.setVariable("count", "4");
+            assertThrows(VersionConflictException.class, () -> storage.saveUser(uuid, fourth));
+            assertEquals("3", storage.readUser(uuid).getVariable("count"));
+            assertEquals(2L, storage.readUser(uuid).getVersion());
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void keepsSavedUsersAcrossRestarts() throws StorageException {
+        UUID uuid = UUID.randomUUID();
+        StorageMemory storage = new StorageMemory(directory, Durability.ALWAYS, 0L, 0L);
+        User user = new User();
+        user.setVariable("count", "1");
+        storage.saveUser(uuid, user);
+        storage.close();
+        StorageMemory reopened = new StorageMemory(directory, Durability.ALWAYS, 0L, 0L);
+        try {
+            assertEquals("1", reopened.readUser(uuid).getVariable("count"));
+            assertEquals(1L, reopened.readUser(uuid).getVersion());
+        } finally {
+            reopened.close();
+        }
+    }
+}
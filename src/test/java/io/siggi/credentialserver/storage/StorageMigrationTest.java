@@ -0,0 +1,63 @@
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.util.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class StorageMigrationTest {
+    @TempDir
+    File directory;
+
+    private StorageFile open(String name) {
+        File namespaceDirectory = new File(directory, name);
+        File tmp = new File(namespaceDirectory, "tmp");
+        tmp.mkdirs();
+        return new StorageFile(new File(namespaceDirectory, "users"), tmp);
+    }
+
+    @Test
+    public void copiesTheUsersAfterTheCheckpoint() throws Exception {
+        StorageFile source = open("source");
+        StorageFile destination = open("destination");
+        try {
+            List<UUID> uuids = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                UUID uuid = UUID.randomUUID();
+                User user = new User();
+                user.setVariable("name", Util.uuidToString(uuid));
+                source.saveUser(uuid, user);
+                uuids.add(uuid);
+            }
+            uuids.sort((a, b) -> Util.uuidToString(a).compareTo(Util.uuidToString(b)));
+            File checkpoint = new File(directory, "migration-checkpoint.txt");
+            try (FileOutputStream out = new FileOutputStream(checkpoint)) {
+                out.write(Util.uuidToString(uuids.get(1)).getBytes(StandardCharsets.UTF_8));
+            }
+
+            new StorageMigration(source, destination, 2, 2, checkpoint).run();
+
+            for (int i = 0; i < uuids.size(); i++) {
+                UUID uuid = uuids.get(i);
+                String name = destination.readUser(uuid).getVariable("name");
+                if (i <= 1)
+                    assertNull(name);
+                else
+                    assertEquals(Util.uuidToString(uuid), name);
+            }
+            assertFalse(checkpoint.exists());
+        } finally {
+            source.close();
+            destination.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.util.Util;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Properties;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Needs a MySQL database to throw away, given with -Dmysql-server,
+ * -Dmysql-database, -Dmysql-username and -Dmysql-password.
+ */
+@EnabledIfSystemProperty(named = "mysql-server", matches = ".+")
+public class StorageMySQLCompactTest {
+    private static Properties configuration(String schema) {
+        Properties configuration = new Properties();
+        for (String key : new String[]{"mysql-server", "mysql-database", "mysql-username", "mysql-password"}) {
+            configuration.setProperty(key, System.getProperty(key, ""));
+        }
+        configuration.setProperty("mysql-schema", schema);
+        return configuration;
+    }
+
+    @Test
+    public void savesUsersMigratedFromBeforeVersioning() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        StorageMySQL legacy = new StorageMySQL(configuration("tables"));
+        try {
+            User user = new User();
+            user.setVariable("name", "legacy");
+            legacy.saveUser(uuid, user);
+            // users saved before versioning have no version row
+            try (Connection connection = legacy.getConnection();
+                 PreparedStatement deleteVersion = connection.prepareStatement("DELETE FROM `userversions` WHERE `userid`=?")) {
+                deleteVersion.setBytes(1, Util.unhex(Util.uuidToString(uuid)));
+                deleteVersion.executeUpdate();
+            }
+            assertEquals(0L, legacy.readUser(uuid).getVersion());
+        } finally {
+            legacy.close();
+        }
+
+        StorageMySQLCompact compact = new StorageMySQLCompact(configuration("compact"));
+        try {
+            long deadline = System.currentTimeMillis() + 30000L;
+            while (Boolean.TRUE.equals(compact.getMetrics().get("migrationPending")) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(false, compact.getMetrics().get("migrationPending"));
+            User migrated = compact.readUser(uuid);
+            assertEquals("legacy", migrated.getVariable("name"));
+            migrated.setVariable("name", "saved");
+            compact.saveUser(uuid, migrated);
+            assertEquals("saved", compact.readUser(uuid).getVariable("name"));
+        } finally {
+            compact.close();
+        }
+    }
+}
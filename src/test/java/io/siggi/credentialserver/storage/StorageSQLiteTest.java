@@ -0,0 +1,177 @@
+package io.siggi.credentialserver.storage;
+
+import io.siggi.credentialserver.credential.Credential;
+import io.siggi.credentialserver.credential.User;
+import io.siggi.credentialserver.credential.password.CredentialPassword;
+import io.siggi.credentialserver.credential.password.PasswordHashing;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StorageSQLiteTest {
+    @TempDir
+    File directory;
+    private Storage storage;
+
+    @BeforeEach
+    public void open() {
+        storage = open("binary");
+    }
+
+    private Storage open(String credentialFormat) {
+        Properties configuration = new Properties();
+        configuration.setProperty("storage", "sqlite");
+        configuration.setProperty("storage-threads", "2");
+        configuration.setProperty("sqlite-credential-format", credentialFormat);
+        return Storage.create(configuration, directory);
+    }
+
+    @AfterEach
+    public void close() {
+        storage.close();
+    }
+
+    @Test
+    public void savesAndReadsUsers() throws StorageException {
+        UUID uuid = UUID.randomUUID();
+        User user = new User();
+        user.setVariable("username", "alice");
+        String hash = PasswordHashing.hash("hunter2".toCharArray());
+        user.addCredential(new CredentialPassword(UUID.randomUUID(), "main", 0L, 0L, 0L, hash));
+        storage.saveUser(uuid, user);
+        assertEquals(1L, user.getVersion());
+
+        User read = storage.readUser(uuid);
+        assertEquals(1L, read.getVersion());
+        assertEquals("alice", read.getVariable("username"));
+        assertEquals(1, read.getCredentials().size());
+        Credential credential = read.getCredentials().get(0);
+        assertEquals(hash, credential.getData());
+        assertTrue(PasswordHashing.verify("hunter2".toCharArray(), credential.getData()));
+
+        read.setVariable("username", null);
+        storage.saveUser(uuid, read);
+        assertNull(storage.readUser(uuid).getVariable("username"));
+        assertEquals(2L, storage.readUser(uuid).getVersion());
+    }
+
+    @Test
+    public void rejectsStaleSaves() throws StorageException {
+        UUID uuid = UUID.randomUUID();
+        User user = new User();
+        user.setVariable("count", "1");
+        storage.saveUser(uuid, user);
+        User first = storage.readUser(uuid);
+        User second = storage.readUser(uuid);
+        first.setVariable("count", "2");
+        storage.saveUser(uuid, first);
+        second.setVariable("count", "3");
+        assertThrows(VersionConflictException.class, () -> storage.saveUser(uuid, second));
+        assertEquals("2", storage.readUser(uuid).getVariable("count"));
+    }
+
+    @Test
+    public void rejectsCreatingAUserTwice() throws StorageException {
+        UUID uuid = UUID.randomUUID();
+        User first = storage.readUser(uuid);
+        User second = storage.readUser(uuid);
+        first.setVariable("count", "1");
+        storage.saveUser(uuid, first);
+        second.setVariable("count", "2");
+        assertThrows(VersionConflictException.class, () -> storage.saveUser(uuid, second));
+        assertEquals("1", storage.readUser(uuid).getVariable("count"));
+    }
+
+    @Test
+    public void packsEveryTextCredential() throws Exception {
+        storage.close();
+        Storage text = open("text");
+        UUID uuid = UUID.randomUUID();
+        User user = new User();
+        String hash = PasswordHashing.hash("hunter2".toCharArray());
+        user.addCredential(new CredentialPassword(new UUID(0L, 0L), "zero", 0L, 0L, 0L, hash));
+        user.addCredential(new CredentialPassword(UUID.randomUUID(), "random", 0L, 0L, 0L, hash));
+        text.saveUser(uuid, user);
+        text.close();
+
+        storage = open("binary");
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (Boolean.TRUE.equals(storage.getMetrics().get("credentialMigrationPending")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(2L, storage.getMetrics().get("credentialsPacked"));
+        for (Credential credential : storage.readUser(uuid).getCredentials()) {
+            assertEquals(hash, credential.getData());
+        }
+    }
+
+    @Test
+    public void addsThePackedColumnToAnOlderTable() throws Exception {
+        storage.close();
+        new File(directory, "users.db").delete();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + new File(directory, "users.db").getPath());
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE `usercredentials` (`credentialid` binary(16) NOT NULL,"
+                    + "`userid` binary(16) NOT NULL,`type` varchar(16) NOT NULL,`data` varchar(1024) NULL,"
+                    + "`name` varchar(64) NULL,`usecount` bigint NOT NULL DEFAULT '0',`lastuse` bigint NOT NULL DEFAULT '0',"
+                    + "`expires` bigint NOT NULL DEFAULT '0',PRIMARY KEY (`credentialid`))");
+        }
+
+        storage = open("binary");
+        UUID uuid = UUID.randomUUID();
+        User user = new User();
+        String hash = PasswordHashing.hash("hunter2".toCharArray());
+        user.addCredential(new CredentialPassword(UUID.randomUUID(), "main", 0L, 0L, 0L, hash));
+        storage.saveUser(uuid, user);
+        assertEquals(hash, storage.readUser(uuid).getCredentials().get(0).getData());
+    }
+
+    @Test
+    public void listsUsersInOrder() throws StorageException {
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            UUID uuid = UUID.randomUUID();
+            User user = new User();
+            user.setVariable("index", Integer.toString(i));
+            storage.saveUser(uuid, user);
+            uuids.add(uuid);
+        }
+        uuids.sort(Storage::compareUuids);
+        List<UUID> listed = new ArrayList<>();
+        UUID cursor = null;
+        while (true) {
+            List<UUID> page = storage.listUsers(cursor, 10);
+            listed.addAll(page);
+            if (page.size() < 10)
+                break;
+            cursor = page.get(page.size() - 1);
+        }
+        assertEquals(uuids, listed);
+    }
+
+    @Test
+    public void sweepsExpiredSessions() throws StorageException {
+        UUID uuid = UUID.randomUUID();
+        User user = new User();
+        user.getCredentialSession("password", false, 1000L, 0L);
+        storage.saveUser(uuid, user);
+        assertEquals(1, storage.readUser(uuid).getCredentialSessions().size());
+        SweepStatistics statistics = new SweepStatistics();
+        assertTrue(storage.sweepExpired(System.currentTimeMillis() + 60000L, 100, statistics));
+        assertEquals(1L, statistics.sessionsRemoved.get());
+        assertEquals(0, storage.readUser(uuid).getCredentialSessions().size());
+    }
+}
@@ -0,0 +1,53 @@
+package io.siggi.credentialserver.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class WriteAheadLogTest {
+    @TempDir
+    File directory;
+
+    private File writeSegment(int records) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(directory, 0L, Durability.NONE, 0L);
+        for (int i = 0; i < records; i++) {
+            wal.append(UUID.randomUUID(), ("{\"version\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        wal.close();
+        return WriteAheadLog.segmentFile(directory, 0L);
+    }
+
+    @Test
+    public void dropsARecordCutShortAtTheEndOfTheLastSegment() throws IOException {
+        File segment = writeSegment(3);
+        long complete = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(complete - 5L);
+        }
+        List<UUID> read = new ArrayList<>();
+        long length = WriteAheadLog.read(segment, true, (uuid, data) -> read.add(uuid));
+        assertEquals(2, read.size());
+        assertEquals(complete / 3L * 2L, length);
+        assertThrows(IOException.class, () -> WriteAheadLog.read(segment, false, (uuid, data) -> {
+        }));
+    }
+
+    @Test
+    public void failsOnADamagedRecordBeforeTheEnd() throws IOException {
+        File segment = writeSegment(3);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(30L);
+            file.write(0x55);
+        }
+        assertThrows(IOException.class, () -> WriteAheadLog.read(segment, true, (uuid, data) -> {
+        }));
+    }
+}
@@ -0,0 +1,19 @@
+package io.siggi.credentialserver.util;
+
+import java.util.Random;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class UtilTest {
+    @Test
+    public void uuidBytesMatchHex() {
+        Random random = new Random(4321L);
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            byte[] bytes = Util.uuidToBytes(uuid);
+            assertEquals(Util.uuidToString(uuid), Util.hex(bytes));
+            assertEquals(uuid, Util.uuidFromBytes(bytes));
+        }
+    }
+}